@@ -7,15 +7,19 @@ import it.polimi.ramses.knowledge.domain.Modules;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Availability;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.AverageResponseTime;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.ResponseTimePercentile;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Throughput;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Vulnerability;
 import it.polimi.ramses.knowledge.domain.adaptation.values.QoSCollection;
 import it.polimi.ramses.knowledge.domain.adaptation.values.QoSHistory;
+import it.polimi.ramses.knowledge.domain.architecture.DependencyGraph;
 import it.polimi.ramses.knowledge.domain.architecture.Instance;
 import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
 import it.polimi.ramses.knowledge.domain.architecture.Service;
 import it.polimi.ramses.knowledge.domain.architecture.ServiceConfiguration;
-import it.polimi.ramses.knowledge.domain.metrics.HttpEndpointMetrics;
+import it.polimi.ramses.knowledge.domain.architecture.WindowSizes;
 import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.LatencySketch;
 import it.polimi.ramses.knowledge.rest.api.UpdateServiceQosCollectionRequest;
 import lombok.Getter;
 import lombok.Setter;
@@ -23,7 +27,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.*;
 
 @Getter
 @Setter
@@ -34,19 +40,27 @@ public class AnalyseService {
     private int analysisWindowSize;
     //Number of new metrics to analyse for each instance of each service
     private int metricsWindowSize;
+    //Duration of the metrics window of each instance. If greater than 0, it is used instead of the metrics window size
+    private long metricsWindowSeconds;
     private double failureRateThreshold;
     private double unreachableRateThreshold;
     private double qosSatisfactionRate;
     private long maxBootTimeSeconds;
+    // Bounded pool for the concurrent analysis of the services
+    private final ExecutorService analysisExecutor;
+    // Analysis of the snapshots on arrival, between the loop iterations
+    private final OnlineAnalyser onlineAnalyser;
 
     // Variables to temporary store the new values specified by an admin until they are applied during the next loop iteration
     private Integer newMetricsWindowSize;
+    private Long newMetricsWindowSeconds;
     private Integer newAnalysisWindowSize;
     private Double newFailureRateThreshold;
     private Double newUnreachableRateThreshold;
 
-    // <serviceId, Service>
-    private Map<String, Service> currentArchitectureMap;
+    // <serviceId, Service>. Also read by the online analysis
+    private volatile Map<String, Service> currentArchitectureMap;
+    private DependencyGraph dependencyGraph;
     // <serviceId, List<AdaptOpt>>
     private Map<String, List<AdaptationOption>> servicesForcedAdaptationOptionsMap;
     // <serviceId, List<AdaptOpt>>
@@ -63,6 +77,9 @@ public class AnalyseService {
     // thus is in TRANSITION state
     private Set<String> servicesToSkip;
 
+    // <instanceId, latency sketch of the latest full metrics window of the instance>
+    // Used for the instances without new metrics when merging the sketches of a service
+    private final Map<String, LatencySketch> latestInstancesSketches = new ConcurrentHashMap<>();
 
     @Autowired
     private KnowledgeClient knowledgeClient;
@@ -70,18 +87,35 @@ public class AnalyseService {
     @Autowired
     private PlanClient planClient;
 
+    @Autowired
+    private ChangePointDetectorFactory changePointDetectorFactory;
+
+    @Autowired
+    private QoSForecasts qosForecasts;
+
+    @Autowired
+    private WindowSizeTuner windowSizeTuner;
+
+    @Autowired
+    private OutlierDetector outlierDetector;
+
     public AnalyseService(
         @Value("${ANALYSIS_WINDOW_SIZE}") int analysisWindowSize,
         @Value("${METRICS_WINDOW_SIZE}") int metricsWindowSize,
+        @Value("${METRICS_WINDOW_SECONDS}") long metricsWindowSeconds,
         @Value("${FAILURE_RATE_THRESHOLD}") double failureRateThreshold,
         @Value("${UNREACHABLE_RATE_THRESHOLD}") double unreachableRateThreshold,
         @Value("${QOS_SATISFACTION_RATE}") double qosSatisfactionRate,
-        @Value("${MAX_BOOT_TIME_SECONDS}") long maxBootTimeSeconds
+        @Value("${MAX_BOOT_TIME_SECONDS}") long maxBootTimeSeconds,
+        @Value("${ANALYSIS_PARALLELISM}") int analysisParallelism,
+        @Value("${ONLINE_ANALYSIS_EWMA_ALPHA}") double onlineAnalysisEwmaAlpha
     ) {
         if (analysisWindowSize < 1)
             throw new IllegalArgumentException("Analysis window size must be greater than 0");
         if (metricsWindowSize < 2)
             throw new IllegalArgumentException("Metrics window size must be greater than 1.");
+        if (metricsWindowSeconds < 0)
+            throw new IllegalArgumentException("Metrics window seconds must not be negative.");
         if (failureRateThreshold < 0 || failureRateThreshold > 1)
             throw new IllegalArgumentException("Failure rate threshold must be between 0 and 1.");
         if (unreachableRateThreshold < 0 || unreachableRateThreshold > 1)
@@ -92,14 +126,26 @@ public class AnalyseService {
             throw new IllegalArgumentException("Qos satisfaction rate must be between 0 and 1.");
         if (maxBootTimeSeconds < 1)
             throw new IllegalArgumentException("Max boot time seconds must be greater than 0.");
+        if (analysisParallelism < 1)
+            throw new IllegalArgumentException("Analysis parallelism must be greater than 0.");
         this.analysisWindowSize = analysisWindowSize;
         this.metricsWindowSize = metricsWindowSize;
+        this.metricsWindowSeconds = metricsWindowSeconds;
         this.failureRateThreshold = failureRateThreshold;
         this.unreachableRateThreshold = unreachableRateThreshold;
         this.qosSatisfactionRate = qosSatisfactionRate;
         this.maxBootTimeSeconds = maxBootTimeSeconds;
+        this.analysisExecutor = Executors.newFixedThreadPool(analysisParallelism);
+        this.onlineAnalyser = new OnlineAnalyser(onlineAnalysisEwmaAlpha);
         log.debug("AnalysisWindowSize: {}", analysisWindowSize);
         log.debug("MetricsWindowSize: {}", metricsWindowSize);
+        log.debug("MetricsWindowSeconds: {}", metricsWindowSeconds);
+        log.debug("AnalysisParallelism: {}", analysisParallelism);
+    }
+
+    @PreDestroy
+    public void shutdownAnalysisExecutor() {
+        analysisExecutor.shutdownNow();
     }
 
     // Start the Analyse Module routine
@@ -109,10 +155,18 @@ public class AnalyseService {
             knowledgeClient.notifyModuleStart(Modules.ANALYSE);
             updateWindowAndThresholds();
             currentArchitectureMap = knowledgeClient.getServicesMap();
-            servicesToSkip = new HashSet<>();
-            servicesForcedAdaptationOptionsMap = new HashMap<>();
-            servicesProposedAdaptationOptionsMap = new HashMap<>();
+            dependencyGraph = knowledgeClient.getDependencyGraph();
+            Set<String> currentInstancesIds = new HashSet<>();
+            currentArchitectureMap.values().forEach(service -> currentInstancesIds.addAll(service.getInstancesMap().keySet()));
+            latestInstancesSketches.keySet().retainAll(currentInstancesIds);
+            qosForecasts.retainServices(currentArchitectureMap.keySet());
+            changePointDetectorFactory.retainServices(currentArchitectureMap.keySet());
+            // Written concurrently by the analysis of the services
+            servicesToSkip = ConcurrentHashMap.newKeySet();
+            servicesForcedAdaptationOptionsMap = new ConcurrentHashMap<>();
+            servicesProposedAdaptationOptionsMap = new ConcurrentHashMap<>();
             analyse();
+            addOnlineForcedOptions();
             adapt();
             StringBuffer sb = new StringBuffer();
             for (String serviceId : servicesProposedAdaptationOptionsMap.keySet()) {
@@ -147,82 +201,175 @@ public class AnalyseService {
      */
     private void analyse() {
         log.debug("\nStarting analysis logic");
+        long start = System.currentTimeMillis();
+        // The services are analysed concurrently. Each analysis only changes the given service and its own entries of the shared maps
+        Map<String, Runnable> analyses = new LinkedHashMap<>();
         for (Service service : currentArchitectureMap.values()) {
             servicesForcedAdaptationOptionsMap.put(service.getServiceId(), new LinkedList<>());
-            log.debug("Analysing service {}", service.getServiceId());
-            boolean existsInstanceWithNewQoSValues = false;
-            boolean atLeastOneBootingInstance = false;
-            List<InstanceStats> instancesStats = new ArrayList<>();
-            // Analyze all the instances
-            for (Instance instance : service.getInstances()) {
-                if (instance.getCurrentStatus() == InstanceStatus.SHUTDOWN) {
-                    // Ignore shutdown instances (they will disappear from the architecture map when no metrics will be received anymore)
-                    log.debug("Instance {} is shutdown, ignoring it", instance.getInstanceId());
-                    servicesToSkip.add(instance.getServiceId());
-                    continue;
-                }
-                if (instance.getCurrentStatus() == InstanceStatus.BOOTING) {
-                    if ((new Date().getTime() - instance.getLatestInstanceMetricsSnapshot().getTimestamp().getTime()) > maxBootTimeSeconds * 1000) {
-                        log.debug("Instance " + instance.getInstanceId() + " is still booting after " + maxBootTimeSeconds + " seconds. Forcing it to shutdown.");
-                        servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new ShutdownInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), instance.getInstanceId(), "Instance boot timed out", true));
-                    } else {
-                        log.debug("Instance {} is booting, ignoring it", instance.getInstanceId());
-                        atLeastOneBootingInstance = true;
-                    }
-                    servicesToSkip.add(service.getServiceId());
-                    continue;
-                }
-                if (instance.getCurrentStatus() == InstanceStatus.FAILED) {
-                    log.debug("{}: Instance {} is in FAILED status. Forcing it to shutdown.", service.getServiceId(), instance.getInstanceId());
-                    servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new ShutdownInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), instance.getInstanceId(), "Instance failed", true));
-                    servicesToSkip.add(service.getServiceId());
-                    continue;
-                }
+            analyses.put(service.getServiceId(), () -> analyseService(service));
+        }
+        runConcurrently(analyses, "analysing");
+        log.debug("{} services analysed in {} ms", analyses.size(), System.currentTimeMillis() - start);
+    }
 
-                // Get the latest "metricsWindowSize" metrics of the instance collected after the latest adaptation of the service
-                List<InstanceMetricsSnapshot> metrics = knowledgeClient.getLatestNMetricsOfCurrentInstance(instance.getServiceId(), instance.getInstanceId(), metricsWindowSize);
+    /**
+     * Online analysis of the snapshots just collected by the Monitor. The failed and unreachable instances found are
+     * proposed as forced options at the next iteration, without waiting for a full metrics window.
+     */
+    public void analyseOnline(List<InstanceMetricsSnapshot> snapshots) {
+        Map<String, Service> architectureMap = currentArchitectureMap;
+        for (InstanceMetricsSnapshot snapshot : snapshots) {
+            Service service = architectureMap == null ? null : architectureMap.get(snapshot.getServiceId());
+            onlineAnalyser.update(snapshot, service, service == null ? metricsWindowSize : metricsWindowSizeOf(service), failureRateThreshold, unreachableRateThreshold);
+        }
+    }
 
-                // Not enough data to perform analysis. Can happen only at startup or after an adaptation.
-                if (metrics.size() != metricsWindowSize) {
-                    instancesStats.add(new InstanceStats(instance));
+    // Adds the ShutdownInstanceOptions found by the online analysis since the previous iteration, unless already forced
+    private void addOnlineForcedOptions() {
+        for (Service service : currentArchitectureMap.values()) {
+            List<AdaptationOption> forcedOptions = servicesForcedAdaptationOptionsMap.get(service.getServiceId());
+            for (AdaptationOption option : onlineAnalyser.drainForcedOptions(service.getServiceId())) {
+                String instanceId = ((ShutdownInstanceOption) option).getInstanceToShutdownId();
+                Instance instance = service.getInstancesMap().get(instanceId);
+                if (instance == null || instance.getCurrentStatus() == InstanceStatus.SHUTDOWN)
                     continue;
-                }
-
-                double failureRate = metrics.stream().reduce(0.0, (acc, m) -> acc + (m.isFailed() ? 1:0), Double::sum) / metrics.size();
-                double unreachableRate = metrics.stream().reduce(0.0, (acc, m) -> acc + (m.isUnreachable() ? 1:0), Double::sum) / metrics.size();
-                double inactiveRate = failureRate + unreachableRate;
-
-                if (unreachableRate >= unreachableRateThreshold || failureRate >= failureRateThreshold || inactiveRate >= 1) { //in ordine di probabilità
-                    log.debug("{}: Rates conditions of instance {} not satisfied.", service.getServiceId(), instance.getInstanceId());
-                    servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new ShutdownInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), instance.getInstanceId(), "Instance failed or unreachable", true));
-                    servicesToSkip.add(service.getServiceId());
+                if (forcedOptions.stream().anyMatch(forcedOption -> forcedOption instanceof ShutdownInstanceOption shutdownOption && shutdownOption.getInstanceToShutdownId().equals(instanceId)))
                     continue;
+                log.debug("{}: Instance {} found failed or unreachable by the online analysis. Forcing it to shutdown.", service.getServiceId(), instanceId);
+                forcedOptions.add(option);
+                servicesToSkip.add(service.getServiceId());
+            }
+        }
+    }
+
+    // Runs the tasks on the analysis executor and waits for all of them. If a task fails, the others are cancelled
+    private void runConcurrently(Map<String, Runnable> tasks, String description) {
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        tasks.forEach((serviceId, task) -> futures.put(serviceId, analysisExecutor.submit(task)));
+        try {
+            for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    futures.values().forEach(future -> future.cancel(true));
+                    throw new RuntimeException("Error while " + description + " service " + entry.getKey(), e.getCause());
                 }
+            }
+        } catch (InterruptedException e) {
+            futures.values().forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Analysis interrupted", e);
+        }
+    }
 
-                List<InstanceMetricsSnapshot> activeMetrics = metrics.stream().filter(instanceMetricsSnapshot -> instanceMetricsSnapshot.isActive() && instanceMetricsSnapshot.getHttpMetrics().size()>0).toList(); //la lista contiene almeno un elemento grazie all'inactive rate
+    private void analyseService(Service service) {
+        log.debug("Analysing service {}", service.getServiceId());
+        boolean existsInstanceWithNewQoSValues = false;
+        int serviceMetricsWindowSize = metricsWindowSizeOf(service);
+        long serviceMetricsWindowSeconds = metricsWindowSecondsOf(service);
+        // Requests and intervals between snapshots of the metrics windows, to tune the window size of the service
+        long windowsRequestsCount = 0;
+        int windowsIntervalsCount = 0;
+        boolean atLeastOneBootingInstance = false;
+        List<InstanceStats> instancesStats = new ArrayList<>();
+        // Analyze all the instances
+        for (Instance instance : service.getInstances()) {
+            if (instance.getCurrentStatus() == InstanceStatus.SHUTDOWN) {
+                // Ignore shutdown instances (they will disappear from the architecture map when no metrics will be received anymore)
+                log.debug("Instance {} is shutdown, ignoring it", instance.getInstanceId());
+                servicesToSkip.add(instance.getServiceId());
+                continue;
+            }
+            if (instance.getCurrentStatus() == InstanceStatus.BOOTING) {
+                if ((new Date().getTime() - instance.getLatestInstanceMetricsSnapshot().getTimestamp().getTime()) > maxBootTimeSeconds * 1000) {
+                    log.debug("Instance " + instance.getInstanceId() + " is still booting after " + maxBootTimeSeconds + " seconds. Forcing it to shutdown.");
+                    servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new ShutdownInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), instance.getInstanceId(), "Instance boot timed out", true));
+                } else {
+                    log.debug("Instance {} is booting, ignoring it", instance.getInstanceId());
+                    atLeastOneBootingInstance = true;
+                }
+                servicesToSkip.add(service.getServiceId());
+                continue;
+            }
+            if (instance.getCurrentStatus() == InstanceStatus.FAILED) {
+                log.debug("{}: Instance {} is in FAILED status. Forcing it to shutdown.", service.getServiceId(), instance.getInstanceId());
+                servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new ShutdownInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), instance.getInstanceId(), "Instance failed", true));
+                servicesToSkip.add(service.getServiceId());
+                continue;
+            }
 
-                InstanceMetricsSnapshot oldestActiveMetrics = activeMetrics.get(activeMetrics.size() - 1);
-                InstanceMetricsSnapshot latestActiveMetrics = activeMetrics.get(0);
-                instancesStats.add(new InstanceStats(instance, computeInstanceAvgResponseTime(instance, oldestActiveMetrics, latestActiveMetrics), computeInstanceAvailability(instance, oldestActiveMetrics, latestActiveMetrics)));
-                existsInstanceWithNewQoSValues = true;
+            // Get the metrics of the instance collected after the latest adaptation of the service, either the latest
+            // "metricsWindowSize" ones or the ones spanning the latest "metricsWindowSeconds"
+            List<InstanceMetricsSnapshot> metrics = serviceMetricsWindowSeconds > 0 ?
+                    knowledgeClient.getMetricsWindowOfCurrentInstance(instance.getServiceId(), instance.getInstanceId(), serviceMetricsWindowSeconds) :
+                    knowledgeClient.getLatestNMetricsOfCurrentInstance(instance.getServiceId(), instance.getInstanceId(), serviceMetricsWindowSize);
+
+            // Not enough data to perform analysis. Can happen only at startup or after an adaptation.
+            if (serviceMetricsWindowSeconds > 0 ? metrics.size() < 2 : metrics.size() != serviceMetricsWindowSize) {
+                InstanceStats instanceStats = new InstanceStats(instance);
+                instanceStats.setLatencySketch(latestInstancesSketches.get(instance.getInstanceId()));
+                instancesStats.add(instanceStats);
+                continue;
             }
 
-            if (instancesStats.isEmpty() && !atLeastOneBootingInstance) {
-                log.warn("{}: no active or booting instances. Forcing AddInstance option.", service.getServiceId());
-                servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new AddInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), "No instances available", true));
+            MetricsWindowStats windowStats = MetricsWindowStats.of(metrics, service.getQoSSpecifications().containsKey(ResponseTimePercentile.class));
+            double failureRate = windowStats.getFailureRate();
+            double unreachableRate = windowStats.getUnreachableRate();
+            double inactiveRate = failureRate + unreachableRate;
+
+            if (unreachableRate >= unreachableRateThreshold || failureRate >= failureRateThreshold || inactiveRate >= 1) { //in ordine di probabilità
+                log.debug("{}: Rates conditions of instance {} not satisfied.", service.getServiceId(), instance.getInstanceId());
+                servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new ShutdownInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), instance.getInstanceId(), "Instance failed or unreachable", true));
                 servicesToSkip.add(service.getServiceId());
                 continue;
             }
 
-            if (!existsInstanceWithNewQoSValues) {
-                log.warn("{}: no instances with enough metrics to compute new values for the QoSes. Skipping its analysis.", service.getServiceId());
+            // The active snapshots of the window have no HTTP metrics: there are no new data for the instance
+            if (!windowStats.hasActiveMetrics()) {
+                InstanceStats instanceStats = new InstanceStats(instance);
+                instanceStats.setLatencySketch(latestInstancesSketches.get(instance.getInstanceId()));
+                instancesStats.add(instanceStats);
                 continue;
             }
 
-            // Given the stats of each service instance, compute the QoS for the service and for its instances
-            // The QoS of the service are not computed if the service is in the set of services to skip
-            updateQoSHistory(service, instancesStats, servicesToSkip.contains(service.getServiceId()));
+            windowsRequestsCount += windowStats.getRequestsCount();
+            windowsIntervalsCount += windowStats.getSize() - 1;
+            InstanceStats instanceStats = new InstanceStats(instance, computeInstanceAvgResponseTime(instance, windowStats), computeInstanceAvailability(instance, windowStats));
+            instanceStats.setSuccessfulRequestsCount(windowStats.getSuccessfulRequestsCount());
+            instanceStats.setSuccessfulRequestsDuration(windowStats.getSuccessfulRequestsDuration());
+            LatencySketch latencySketch = windowStats.getLatencySketch();
+            if (!latencySketch.isEmpty()) {
+                instanceStats.setLatencySketch(latencySketch);
+                latestInstancesSketches.put(instance.getInstanceId(), latencySketch);
+            }
+            ResponseTimePercentile responseTimePercentileSpecs = (ResponseTimePercentile) service.getQoSSpecifications().get(ResponseTimePercentile.class);
+            if (responseTimePercentileSpecs != null)
+                instanceStats.setResponseTimePercentile(computeInstanceResponseTimePercentile(instance, responseTimePercentileSpecs, latencySketch));
+            if (service.getQoSSpecifications().containsKey(Throughput.class))
+                instanceStats.setThroughput(computeInstanceThroughput(instance, windowStats));
+            instancesStats.add(instanceStats);
+            existsInstanceWithNewQoSValues = true;
+        }
+
+        // The time-based windows already adapt their number of snapshots to the Monitor period
+        if (serviceMetricsWindowSeconds == 0)
+            tuneMetricsWindowSize(service, serviceMetricsWindowSize, windowsRequestsCount, windowsIntervalsCount);
+
+        if (instancesStats.isEmpty() && !atLeastOneBootingInstance) {
+            log.warn("{}: no active or booting instances. Forcing AddInstance option.", service.getServiceId());
+            servicesForcedAdaptationOptionsMap.get(service.getServiceId()).add(new AddInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), "No instances available", true));
+            servicesToSkip.add(service.getServiceId());
+            return;
+        }
+
+        if (!existsInstanceWithNewQoSValues) {
+            log.warn("{}: no instances with enough metrics to compute new values for the QoSes. Skipping its analysis.", service.getServiceId());
+            return;
         }
+
+        // Given the stats of each service instance, compute the QoS for the service and for its instances
+        // The QoS of the service are not computed if the service is in the set of services to skip
+        updateQoSHistory(service, instancesStats, servicesToSkip.contains(service.getServiceId()));
     }
 
     /** For a given service, it computes the new latest QoS value for its instances and for itself from the InstancesStats (which are built on the metrics window).
@@ -234,11 +381,24 @@ public class AnalyseService {
      * @param instancesStats: InstanceStats list, one for each instance
      */
     private void updateQoSHistory(Service service, List<InstanceStats> instancesStats, boolean skipServiceQoSComputation) {
+        int serviceAnalysisWindowSize = analysisWindowSizeOf(service);
         // Logic to compute the new latest value for the service and its instances
         Map<String, Map<Class<? extends QoSSpecification>, QoSHistory.Value>> newInstancesValues = new HashMap<>();
         Map<Class<? extends QoSSpecification>, QoSHistory.Value> newServiceValues = new HashMap<>();
         double serviceAvailability = 0;
         double serviceAverageResponseTime = 0;
+        double serviceResponseTimePercentile = 0;
+        boolean hasResponseTimePercentile = service.getQoSSpecifications().containsKey(ResponseTimePercentile.class);
+        // The throughput of the service is the sum of the throughputs of its instances
+        double serviceThroughput = 0;
+        boolean hasThroughput = service.getQoSSpecifications().containsKey(Throughput.class);
+        // The distribution of the service is the merge of the distributions of its instances, so each instance weighs as much as the requests it served
+        LatencySketch serviceLatencySketch = new LatencySketch();
+        boolean allInstancesHaveSketches = true;
+        // Likewise, the ART of the service is the total duration of the successful requests of the instances over their count
+        long serviceSuccessfulRequestsCount = 0;
+        double serviceSuccessfulRequestsDuration = 0;
+        boolean allInstancesFromNewData = true;
         Date now = new Date();
         for (InstanceStats instanceStats : instancesStats) {
             String instanceId = instanceStats.getInstance().getInstanceId();
@@ -247,31 +407,80 @@ public class AnalyseService {
                 QoSCollection currentInstanceQoSCollection = instanceStats.getInstance().getQoSCollection();
                 QoSHistory.Value newInstanceValue;
                 newInstanceValue = currentInstanceQoSCollection.createNewQoSValue(AverageResponseTime.class, instanceStats.getAverageResponseTime(), now);
+                if (instanceStats.getLatencySketch() != null)
+                    newInstanceValue.setSketch(instanceStats.getLatencySketch().encode());
                 newInstancesValues.get(instanceId).put(AverageResponseTime.class, newInstanceValue);
                 newInstanceValue = currentInstanceQoSCollection.createNewQoSValue(Availability.class, instanceStats.getAvailability(), now);
                 newInstancesValues.get(instanceId).put(Availability.class, newInstanceValue);
+                if (hasResponseTimePercentile) {
+                    newInstanceValue = currentInstanceQoSCollection.createNewQoSValue(ResponseTimePercentile.class, instanceStats.getResponseTimePercentile(), now);
+                    newInstancesValues.get(instanceId).put(ResponseTimePercentile.class, newInstanceValue);
+                }
+                if (hasThroughput) {
+                    newInstanceValue = currentInstanceQoSCollection.createNewQoSValue(Throughput.class, instanceStats.getThroughput(), now);
+                    newInstancesValues.get(instanceId).put(Throughput.class, newInstanceValue);
+                }
             }
             double weight = (service.getConfiguration().getLoadBalancerType() == ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM) ?
                     service.getLoadBalancerWeight(instanceStats.getInstance()) : 1.0/instancesStats.size();
             serviceAvailability += instanceStats.getAvailability() * weight;
             serviceAverageResponseTime += instanceStats.getAverageResponseTime() * weight;
+            if (hasResponseTimePercentile && instanceStats.getResponseTimePercentile() != null)
+                serviceResponseTimePercentile += instanceStats.getResponseTimePercentile() * weight;
+            if (hasThroughput && instanceStats.getThroughput() != null)
+                serviceThroughput += instanceStats.getThroughput();
+            if (instanceStats.getLatencySketch() != null)
+                serviceLatencySketch.merge(instanceStats.getLatencySketch());
+            else
+                allInstancesHaveSketches = false;
+            serviceSuccessfulRequestsCount += instanceStats.getSuccessfulRequestsCount();
+            serviceSuccessfulRequestsDuration += instanceStats.getSuccessfulRequestsDuration();
+            allInstancesFromNewData &= instanceStats.isFromNewData();
         }
+        // The requests of the instances without new data are unknown: in that case the ART stays the weighted mean of the instances' ones
+        if (allInstancesFromNewData && serviceSuccessfulRequestsCount > 0)
+            serviceAverageResponseTime = serviceSuccessfulRequestsDuration / serviceSuccessfulRequestsCount;
+        // Without the sketches of all the instances the service percentile stays the weighted mean of the instances' ones
+        if (!allInstancesHaveSketches)
+            serviceLatencySketch = null;
+        if (hasResponseTimePercentile && serviceLatencySketch != null && !serviceLatencySketch.isEmpty())
+            serviceResponseTimePercentile = serviceLatencySketch.getQuantile(((ResponseTimePercentile) service.getQoSSpecifications().get(ResponseTimePercentile.class)).getQuantile());
 
         Map<String, Map<Class<? extends QoSSpecification>, QoSHistory.Value>> newInstancesCurrentValues = new HashMap<>();
         Map<Class<? extends QoSSpecification>, QoSHistory.Value> newServiceCurrentValues = new HashMap<>();
 
         // Logic for creating the current value of the service and of the instances, only if the service is not to skip
         if (!skipServiceQoSComputation) {
+            // The QoS histories invalidated by the latest adaptation (or still empty) reset the forecasting models and the change point detectors
+            Set<Class<? extends QoSSpecification>> invalidatedQoS = new HashSet<>();
+            for (Class<? extends QoSSpecification> qosClass : List.of(Availability.class, AverageResponseTime.class, ResponseTimePercentile.class, Throughput.class))
+                if (service.getQoSSpecifications().containsKey(qosClass) && service.getLatestAnalysisWindowForQoS(qosClass, 1) == null)
+                    invalidatedQoS.add(qosClass);
+            // The histories are invalidated together: the online state of the instances describes the previous configuration
+            if (invalidatedQoS.contains(Availability.class))
+                onlineAnalyser.reset(service.getServiceId(), service.getInstancesMap().keySet());
             QoSCollection currentImplementationQoSCollection = service.getCurrentImplementation().getQoSCollection();
             QoSHistory.Value newServiceValue;
             newServiceValue = currentImplementationQoSCollection.createNewQoSValue(AverageResponseTime.class, serviceAverageResponseTime, now);
+            if (serviceLatencySketch != null && !serviceLatencySketch.isEmpty())
+                newServiceValue.setSketch(serviceLatencySketch.encode());
             newServiceValues.put(AverageResponseTime.class, newServiceValue);
             newServiceValue = currentImplementationQoSCollection.createNewQoSValue(Availability.class, serviceAvailability, now);
             newServiceValues.put(Availability.class, newServiceValue);
+            if (hasResponseTimePercentile) {
+                newServiceValue = currentImplementationQoSCollection.createNewQoSValue(ResponseTimePercentile.class, serviceResponseTimePercentile, now);
+                newServiceValues.put(ResponseTimePercentile.class, newServiceValue);
+            }
+            if (hasThroughput) {
+                newServiceValue = currentImplementationQoSCollection.createNewQoSValue(Throughput.class, serviceThroughput, now);
+                newServiceValues.put(Throughput.class, newServiceValue);
+            }
+            newServiceValues.forEach((qosClass, value) -> qosForecasts.update(service.getServiceId(), qosClass, value.getDoubleValue(), now, invalidatedQoS.contains(qosClass)));
+            updateChangePointDetectors(service, newServiceValues, invalidatedQoS);
 
             // Logic for creating the current value
-            List<Double> serviceAvailabilityHistory = service.getLatestAnalysisWindowForQoS(Availability.class, analysisWindowSize);
-            List<Double> serviceAvgRespTimeHistory = service.getLatestAnalysisWindowForQoS(AverageResponseTime.class, analysisWindowSize);
+            List<Double> serviceAvailabilityHistory = service.getLatestAnalysisWindowForQoS(Availability.class, serviceAnalysisWindowSize);
+            List<Double> serviceAvgRespTimeHistory = service.getLatestAnalysisWindowForQoS(AverageResponseTime.class, serviceAnalysisWindowSize);
             if (serviceAvailabilityHistory != null && serviceAvgRespTimeHistory != null) { // Null if there are not AnalysisWindowSize VALID values in the history
                 // If we should not propose adaptation options for the given service, don't update its QoS History (i.e., there are booting or shutdown instances)
                 // Update the current values for the QoS of the service.
@@ -280,15 +489,33 @@ public class AnalyseService {
                 newServiceCurrentValues.put(Availability.class, newServiceCurrentValue);
                 newServiceCurrentValue = service.changeCurrentValueForQoS(AverageResponseTime.class, serviceAvgRespTimeHistory.stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
                 newServiceCurrentValues.put(AverageResponseTime.class, newServiceCurrentValue);
+                List<Double> serviceRespTimePercentileHistory = hasResponseTimePercentile ? service.getLatestAnalysisWindowForQoS(ResponseTimePercentile.class, serviceAnalysisWindowSize) : null;
+                if (serviceRespTimePercentileHistory != null) {
+                    newServiceCurrentValue = service.changeCurrentValueForQoS(ResponseTimePercentile.class, serviceRespTimePercentileHistory.stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
+                    newServiceCurrentValues.put(ResponseTimePercentile.class, newServiceCurrentValue);
+                }
+                List<Double> serviceThroughputHistory = hasThroughput ? service.getLatestAnalysisWindowForQoS(Throughput.class, serviceAnalysisWindowSize) : null;
+                if (serviceThroughputHistory != null) {
+                    newServiceCurrentValue = service.changeCurrentValueForQoS(Throughput.class, serviceThroughputHistory.stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
+                    newServiceCurrentValues.put(Throughput.class, newServiceCurrentValue);
+                }
 
                 service.getInstances().forEach(instance -> {
                     // Update the current values for the QoS of the instances.
                     QoSHistory.Value newInstanceCurrentValue;
                     newInstancesCurrentValues.put(instance.getInstanceId(), new HashMap<>());
-                    newInstanceCurrentValue = instance.changeCurrentValueForQoS(Availability.class, instance.getLatestFilledAnalysisWindowForQoS(Availability.class, analysisWindowSize).stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
+                    newInstanceCurrentValue = instance.changeCurrentValueForQoS(Availability.class, instance.getLatestFilledAnalysisWindowForQoS(Availability.class, serviceAnalysisWindowSize).stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
                     newInstancesCurrentValues.get(instance.getInstanceId()).put(Availability.class, newInstanceCurrentValue);
-                    newInstanceCurrentValue = instance.changeCurrentValueForQoS(AverageResponseTime.class, instance.getLatestFilledAnalysisWindowForQoS(AverageResponseTime.class, analysisWindowSize).stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
+                    newInstanceCurrentValue = instance.changeCurrentValueForQoS(AverageResponseTime.class, instance.getLatestFilledAnalysisWindowForQoS(AverageResponseTime.class, serviceAnalysisWindowSize).stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
                     newInstancesCurrentValues.get(instance.getInstanceId()).put(AverageResponseTime.class, newInstanceCurrentValue);
+                    if (serviceRespTimePercentileHistory != null) {
+                        newInstanceCurrentValue = instance.changeCurrentValueForQoS(ResponseTimePercentile.class, instance.getLatestFilledAnalysisWindowForQoS(ResponseTimePercentile.class, serviceAnalysisWindowSize).stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
+                        newInstancesCurrentValues.get(instance.getInstanceId()).put(ResponseTimePercentile.class, newInstanceCurrentValue);
+                    }
+                    if (serviceThroughputHistory != null) {
+                        newInstanceCurrentValue = instance.changeCurrentValueForQoS(Throughput.class, instance.getLatestFilledAnalysisWindowForQoS(Throughput.class, serviceAnalysisWindowSize).stream().mapToDouble(Double::doubleValue).average().orElseThrow(), now);
+                        newInstancesCurrentValues.get(instance.getInstanceId()).put(Throughput.class, newInstanceCurrentValue);
+                    }
                 });
 
                 log.debug("{} has a full analysis window. Updating its current values and its instances' current values.", service.getServiceId());
@@ -311,68 +538,89 @@ public class AnalyseService {
      */
     private void adapt() {
         log.debug("\nStarting adaptation logic");
-        Map<String, Boolean> servicesRequiringOrCompletingAdaptation = new HashMap<>();
-        for (Service service : currentArchitectureMap.values()) {
-            computeAdaptationOptions(service, servicesRequiringOrCompletingAdaptation);
+        // <serviceId, true if the service is in transient state (it has been recently adapted) or it requires adaptation>
+        Map<String, Boolean> servicesRequiringOrCompletingAdaptation = new ConcurrentHashMap<>();
+        // The services are processed in topological order, so the dependencies of a service are processed before it.
+        // The services of a level do not depend on each other, so they are processed concurrently
+        for (List<String> level : dependencyGraph.getLevels()) {
+            Map<String, Runnable> tasks = new LinkedHashMap<>();
+            for (String serviceId : level) {
+                Service service = currentArchitectureMap.get(serviceId);
+                if (service != null)
+                    tasks.put(serviceId, () -> computeAdaptationOptions(service, servicesRequiringOrCompletingAdaptation));
+            }
+            runConcurrently(tasks, "computing the adaptation options of");
         }
     }
 
 
     /**
-     * Computes the adaptation options for a service.
-     * Recursive.
+     * Computes the adaptation options for a service, whose dependencies have already been processed.
+     * The options are proposed only if none of its dependencies requires (or is completing) an adaptation, so that the problems of the dependencies are solved first.
      * @param service the service to analyse
-     * @param servicesRequiringOrCompletingAdaptation the map of services already considered for the adaptation proposal logic, to avoid circular dependencies. If the service entry is not in the map, it is not analysed yet.
-     * @return true if the service is in transient state (it has been recently adapted) or it requires adaptation. False otherwise.
+     * @param servicesRequiringOrCompletingAdaptation the map of the services already processed. Each service is put in the map with
+     *                                                true if it is in transient state (it has been recently adapted) or it requires adaptation, false otherwise.
      */
-    private boolean computeAdaptationOptions(Service service, Map<String, Boolean> servicesRequiringOrCompletingAdaptation) {
+    private void computeAdaptationOptions(Service service, Map<String, Boolean> servicesRequiringOrCompletingAdaptation) {
         String serviceId = service.getServiceId();
-        if (servicesRequiringOrCompletingAdaptation.containsKey(serviceId))
-            return servicesRequiringOrCompletingAdaptation.get(serviceId);
         boolean hasForcedOptions = !servicesForcedAdaptationOptionsMap.get(serviceId).isEmpty();
-        servicesRequiringOrCompletingAdaptation.put(serviceId, hasForcedOptions);
         if (servicesToSkip.contains(serviceId)) {
             log.warn("{}: the analysis decided to skip adaptation for this service.", serviceId);
             servicesRequiringOrCompletingAdaptation.put(serviceId, true);
-            return servicesRequiringOrCompletingAdaptation.get(serviceId);
+            return;
         }
         List<AdaptationOption> proposedAdaptationOptions = new LinkedList<>();
-        List<Double> serviceAvailabilityHistory = service.getLatestAnalysisWindowForQoS(Availability.class, analysisWindowSize);
-        List<Double> serviceAvgRespTimeHistory = service.getLatestAnalysisWindowForQoS(AverageResponseTime.class, analysisWindowSize);
+        int serviceAnalysisWindowSize = analysisWindowSizeOf(service);
+        List<Double> serviceAvailabilityHistory = service.getLatestAnalysisWindowForQoS(Availability.class, serviceAnalysisWindowSize);
+        List<Double> serviceAvgRespTimeHistory = service.getLatestAnalysisWindowForQoS(AverageResponseTime.class, serviceAnalysisWindowSize);
         if (serviceAvailabilityHistory == null || serviceAvgRespTimeHistory == null) {
             log.warn("{}: the analysis window is not filled yet. Skipping the proposal of Adaptation Options.", serviceId);
-            return servicesRequiringOrCompletingAdaptation.get(serviceId);
+            servicesRequiringOrCompletingAdaptation.put(serviceId, hasForcedOptions);
+            return;
         }
-        log.debug("{}: current Availability value: {} @ {}", service.getServiceId(), service.getCurrentValueForQoS(Availability.class), service.getCurrentImplementation().getQoSCollection().getValuesHistoryForQoS(Availability.class).get(analysisWindowSize-1).getTimestamp());
-        log.debug("{}: current ART value: {} @ {}", service.getServiceId(), service.getCurrentValueForQoS(AverageResponseTime.class), service.getCurrentImplementation().getQoSCollection().getValuesHistoryForQoS(AverageResponseTime.class).get(analysisWindowSize-1).getTimestamp());
+        log.debug("{}: current Availability value: {} @ {}", service.getServiceId(), service.getCurrentValueForQoS(Availability.class), service.getCurrentImplementation().getQoSCollection().getValuesHistoryForQoS(Availability.class).get(serviceAnalysisWindowSize-1).getTimestamp());
+        log.debug("{}: current ART value: {} @ {}", service.getServiceId(), service.getCurrentValueForQoS(AverageResponseTime.class), service.getCurrentImplementation().getQoSCollection().getValuesHistoryForQoS(AverageResponseTime.class).get(serviceAnalysisWindowSize-1).getTimestamp());
         proposedAdaptationOptions.addAll(handleAvailabilityAnalysis(service, serviceAvailabilityHistory));
         proposedAdaptationOptions.addAll(handleAverageResponseTimeAnalysis(service, serviceAvgRespTimeHistory));
+        // The percentile QoS is optional, and its analysis is skipped until its own analysis window is filled
+        boolean hasResponseTimePercentile = service.getQoSSpecifications().containsKey(ResponseTimePercentile.class);
+        List<Double> serviceRespTimePercentileHistory = hasResponseTimePercentile ? service.getLatestAnalysisWindowForQoS(ResponseTimePercentile.class, serviceAnalysisWindowSize) : null;
+        if (serviceRespTimePercentileHistory != null)
+            proposedAdaptationOptions.addAll(handleResponseTimePercentileAnalysis(service, serviceRespTimePercentileHistory));
+        // The Throughput QoS is optional too. It allows to scale out on the load, before the response time degrades
+        List<Double> serviceThroughputHistory = service.getQoSSpecifications().containsKey(Throughput.class) ? service.getLatestAnalysisWindowForQoS(Throughput.class, serviceAnalysisWindowSize) : null;
+        if (serviceThroughputHistory != null)
+            proposedAdaptationOptions.addAll(handleThroughputAnalysis(service, serviceThroughputHistory));
+        // Proactive scale out, when a QoS is forecast to be violated before a new instance could boot
+        if (proposedAdaptationOptions.stream().noneMatch(option -> option instanceof AddInstanceOption))
+            proposedAdaptationOptions.addAll(handleForecastAnalysis(service));
         if (service.shouldConsiderChangingImplementation()) {
             proposedAdaptationOptions.add(createChangeImplementationOption(service, Availability.class));
             proposedAdaptationOptions.add(createChangeImplementationOption(service, AverageResponseTime.class));
+            if (hasResponseTimePercentile)
+                proposedAdaptationOptions.add(createChangeImplementationOption(service, ResponseTimePercentile.class));
+            if (serviceThroughputHistory != null)
+                proposedAdaptationOptions.add(createChangeImplementationOption(service, Throughput.class));
             proposedAdaptationOptions.add(createChangeImplementationOption(service, Vulnerability.class));
         }
 
         // If there are proposed adaptation options for the service, say that the service requires adaptation.
         // Otherwise, use the previous information
-        servicesRequiringOrCompletingAdaptation.put(serviceId, !proposedAdaptationOptions.isEmpty() || servicesRequiringOrCompletingAdaptation.get(serviceId));
-
-        // Dependencies analysis. If a dependency requires adaptation the function returns
-        for (Service serviceDependency : service.getDependencies().stream().map(currentArchitectureMap::get).toList()) {
-            log.debug("{}: Possibly computing adaptation options for dependency {}", service.getServiceId(), serviceDependency.getServiceId());
-            if (computeAdaptationOptions(serviceDependency, servicesRequiringOrCompletingAdaptation)) {
-                log.debug("{}: dependency {} has problems. First solving dependency's problems", serviceId, serviceDependency.getServiceId());
-                return servicesRequiringOrCompletingAdaptation.get(serviceId);
+        boolean requiringOrCompletingAdaptation = !proposedAdaptationOptions.isEmpty() || hasForcedOptions;
+        servicesRequiringOrCompletingAdaptation.put(serviceId, requiringOrCompletingAdaptation);
+
+        // Dependencies analysis. If a dependency requires adaptation the options are not proposed
+        for (String dependencyId : dependencyGraph.getDependencies(serviceId)) {
+            if (servicesRequiringOrCompletingAdaptation.getOrDefault(dependencyId, false)) {
+                log.debug("{}: dependency {} has problems. First solving dependency's problems", serviceId, dependencyId);
+                return;
             }
         }
 
-        if (servicesRequiringOrCompletingAdaptation.get(serviceId)) {
-            if (!proposedAdaptationOptions.isEmpty()) {
-                log.debug("{}: no problems for dependencies. Proposing adaptation options", serviceId);
-                servicesProposedAdaptationOptionsMap.put(serviceId, proposedAdaptationOptions);
-            }
+        if (requiringOrCompletingAdaptation && !proposedAdaptationOptions.isEmpty()) {
+            log.debug("{}: no problems for dependencies. Proposing adaptation options", serviceId);
+            servicesProposedAdaptationOptionsMap.put(serviceId, proposedAdaptationOptions);
         }
-        return servicesRequiringOrCompletingAdaptation.get(serviceId);
     }
 
     private AdaptationOption createChangeImplementationOption(Service service, Class<? extends QoSSpecification> goal) {
@@ -386,15 +634,19 @@ public class AnalyseService {
     private List<AdaptationOption> handleAvailabilityAnalysis(Service service, List<Double> serviceAvailabilityHistory) {
         List<AdaptationOption> adaptationOptions = new LinkedList<>();
         Availability availabilitySpecs = (Availability) service.getQoSSpecifications().get(Availability.class);
-        if (!availabilitySpecs.isSatisfied(serviceAvailabilityHistory, qosSatisfactionRate)){
+        if (!availabilitySpecs.isSatisfied(serviceAvailabilityHistory, qosSatisfactionRate) && isShiftSignificant(service, Availability.class)){
             log.debug("{}: Availability is not satisfied at rate {}. Current value: {}. Threshold: {}", service.getServiceId(), qosSatisfactionRate, service.getCurrentValueForQoS(Availability.class), ((Availability) service.getQoSSpecifications().get(Availability.class)).getMinThreshold());
             List<Instance> instances = service.getInstances();
             List<Instance> lessAvailableInstances = instances.stream().filter(
                     i -> !availabilitySpecs.isSatisfied(i.getCurrentValueForQoS(Availability.class).getDoubleValue())
             ).toList();
 
+            // If a few instances are clearly less available than their peers, they are handled directly, without optimising the LB weights
+            Set<String> outlierInstancesIds = findOutlierInstances(service, Availability.class, false, lessAvailableInstances);
+            if (!outlierInstancesIds.isEmpty())
+                adaptationOptions.addAll(createOutlierInstancesOptions(service, Availability.class, outlierInstancesIds));
             // If there is more than one instance and at least one instance satisfies the avg Response time specifications, then we can try to change the LB weights.
-            if (instances.size()>1 && lessAvailableInstances.size()<instances.size() && service.getConfiguration().getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM))
+            else if (instances.size()>1 && lessAvailableInstances.size()<instances.size() && service.getConfiguration().getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM))
                 adaptationOptions.add(new ChangeLoadBalancerWeightsOption(service.getServiceId(), service.getCurrentImplementationId(), Availability.class, "At least one instance satisfies the avg Availability specifications"));
             adaptationOptions.add(new AddInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), Availability.class, "The service avg availability specification is not satisfied"));
         }else{
@@ -406,7 +658,7 @@ public class AnalyseService {
     private List<AdaptationOption> handleAverageResponseTimeAnalysis(Service service, List<Double> serviceAvgRespTimeHistory) {
         List<AdaptationOption> adaptationOptions = new LinkedList<>();
         AverageResponseTime avgRespTimeSpecs = (AverageResponseTime) service.getQoSSpecifications().get(AverageResponseTime.class);
-        if (!avgRespTimeSpecs.isSatisfied(serviceAvgRespTimeHistory, qosSatisfactionRate)){
+        if (!avgRespTimeSpecs.isSatisfied(serviceAvgRespTimeHistory, qosSatisfactionRate) && isShiftSignificant(service, AverageResponseTime.class)){
             log.debug("{}: AVG RT is not satisfied at rate {}. Current value: {}. Threshold: {}", service.getServiceId(), qosSatisfactionRate, service.getCurrentValueForQoS(AverageResponseTime.class), ((AverageResponseTime) service.getQoSSpecifications().get(AverageResponseTime.class)).getMaxThreshold());
 
             List<Instance> instances = service.getInstances();
@@ -414,8 +666,12 @@ public class AnalyseService {
                     i -> !avgRespTimeSpecs.isSatisfied(i.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue())
             ).toList();
 
+            // If a few instances are clearly slower than their peers, they are handled directly, without optimising the LB weights
+            Set<String> outlierInstancesIds = findOutlierInstances(service, AverageResponseTime.class, true, slowInstances);
+            if (!outlierInstancesIds.isEmpty())
+                adaptationOptions.addAll(createOutlierInstancesOptions(service, AverageResponseTime.class, outlierInstancesIds));
             // If there is more than one instance and at least one instance satisfies the avg Response time specifications, then we can try to change the LB weights.
-            if (instances.size()>1 && slowInstances.size()<instances.size() && service.getConfiguration().getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM))
+            else if (instances.size()>1 && slowInstances.size()<instances.size() && service.getConfiguration().getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM))
                 adaptationOptions.add(new ChangeLoadBalancerWeightsOption(service.getServiceId(), service.getCurrentImplementationId(), AverageResponseTime.class, "At least one instance satisfies the avg Response time specifications"));
             adaptationOptions.add(new AddInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), AverageResponseTime.class, "The service avg response time specification is not satisfied"));
         }
@@ -425,44 +681,217 @@ public class AnalyseService {
         return adaptationOptions;
     }
 
-    private double computeInstanceAvgResponseTime(Instance instance, InstanceMetricsSnapshot oldestActiveMetrics, InstanceMetricsSnapshot latestActiveMetrics) {
-        double successfulRequestsDuration = 0;
-        double successfulRequestsCount = 0;
+    private List<AdaptationOption> handleResponseTimePercentileAnalysis(Service service, List<Double> serviceRespTimePercentileHistory) {
+        List<AdaptationOption> adaptationOptions = new LinkedList<>();
+        ResponseTimePercentile respTimePercentileSpecs = (ResponseTimePercentile) service.getQoSSpecifications().get(ResponseTimePercentile.class);
+        if (!respTimePercentileSpecs.isSatisfied(serviceRespTimePercentileHistory, qosSatisfactionRate) && isShiftSignificant(service, ResponseTimePercentile.class)){
+            log.debug("{}: RT p{} is not satisfied at rate {}. Current value: {}. Threshold: {}", service.getServiceId(), respTimePercentileSpecs.getPercentile(), qosSatisfactionRate, service.getCurrentValueForQoS(ResponseTimePercentile.class), respTimePercentileSpecs.getMaxThreshold());
+
+            List<Instance> instances = service.getInstances();
+            List<Instance> slowInstances = instances.stream().filter(
+                    i -> !respTimePercentileSpecs.isSatisfied(i.getCurrentValueForQoS(ResponseTimePercentile.class).getDoubleValue())
+            ).toList();
+
+            // If there is more than one instance and at least one instance satisfies the Response time percentile specifications, then we can try to change the LB weights.
+            if (instances.size()>1 && slowInstances.size()<instances.size() && service.getConfiguration().getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM))
+                adaptationOptions.add(new ChangeLoadBalancerWeightsOption(service.getServiceId(), service.getCurrentImplementationId(), ResponseTimePercentile.class, "At least one instance satisfies the Response time percentile specifications"));
+            adaptationOptions.add(new AddInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), ResponseTimePercentile.class, "The service response time percentile specification is not satisfied"));
+        }
+        else{
+            log.debug("{}: RT p{} is satisfied at rate {}", service.getServiceId(), respTimePercentileSpecs.getPercentile(), qosSatisfactionRate);
+        }
+        return adaptationOptions;
+    }
+
+    private List<AdaptationOption> handleThroughputAnalysis(Service service, List<Double> serviceThroughputHistory) {
+        List<AdaptationOption> adaptationOptions = new LinkedList<>();
+        Throughput throughputSpecs = (Throughput) service.getQoSSpecifications().get(Throughput.class);
+        double instanceCapacity = service.getCurrentImplementation().getBenchmark(Throughput.class);
+        List<Instance> instances = service.getInstances();
+        // The analysis window is invalidated by the adaptations, so the number of instances did not change during the window
+        List<Double> serviceUtilisationHistory = serviceThroughputHistory.stream().map(throughput -> Throughput.getUtilisation(throughput, instanceCapacity * instances.size())).toList();
+        List<Instance> overloadedInstances = instances.stream().filter(
+                i -> !throughputSpecs.isSatisfied(Throughput.getUtilisation(i.getCurrentValueForQoS(Throughput.class).getDoubleValue(), instanceCapacity))
+        ).toList();
+        if (!throughputSpecs.isSatisfied(serviceUtilisationHistory, qosSatisfactionRate) && isShiftSignificant(service, Throughput.class)) {
+            log.debug("{}: Utilisation is not satisfied at rate {}. Current throughput: {}. Capacity: {}. Max utilisation: {}", service.getServiceId(), qosSatisfactionRate, service.getCurrentValueForQoS(Throughput.class), instanceCapacity * instances.size(), throughputSpecs.getMaxUtilisation());
+            adaptationOptions.add(new AddInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), Throughput.class, "The service utilisation specification is not satisfied"));
+        } else if (!overloadedInstances.isEmpty() && overloadedInstances.size() < instances.size() && service.getConfiguration().getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM)) {
+            // The service can sustain the load, but the load balancer sends too many requests to some instances
+            log.debug("{}: Utilisation is satisfied at rate {}, but instances {} are overloaded", service.getServiceId(), qosSatisfactionRate, overloadedInstances.stream().map(Instance::getInstanceId).toList());
+            adaptationOptions.add(new ChangeLoadBalancerWeightsOption(service.getServiceId(), service.getCurrentImplementationId(), Throughput.class, "At least one instance is overloaded while the others are not"));
+        } else {
+            log.debug("{}: Utilisation is satisfied at rate {}", service.getServiceId(), qosSatisfactionRate);
+        }
+        return adaptationOptions;
+    }
 
-        for (String endpoint : latestActiveMetrics.getHttpMetrics().keySet()) {
-            successfulRequestsDuration += latestActiveMetrics.getHttpMetrics().get(endpoint).getTotalDurationOfSuccessful();
-            successfulRequestsCount += latestActiveMetrics.getHttpMetrics().get(endpoint).getTotalCountOfSuccessful();
-            HttpEndpointMetrics oldestEndpointMetrics = oldestActiveMetrics.getHttpMetrics().get(endpoint);
-            if (oldestEndpointMetrics != null) {
-                successfulRequestsDuration -= oldestEndpointMetrics.getTotalDurationOfSuccessful();
-                successfulRequestsCount -= oldestEndpointMetrics.getTotalCountOfSuccessful();
+    private List<AdaptationOption> handleForecastAnalysis(Service service) {
+        List<AdaptationOption> adaptationOptions = new LinkedList<>();
+        for (Class<? extends QoSSpecification> qosClass : List.of(Availability.class, AverageResponseTime.class, ResponseTimePercentile.class, Throughput.class)) {
+            QoSSpecification specs = service.getQoSSpecifications().get(qosClass);
+            Double currentForecast = qosForecasts.forecast(service.getServiceId(), qosClass, 0);
+            Double horizonForecast = qosForecasts.forecast(service.getServiceId(), qosClass, maxBootTimeSeconds);
+            if (specs == null || currentForecast == null || horizonForecast == null)
+                continue;
+            if (qosClass.equals(Throughput.class)) {
+                // The utilisation is forecast with the current number of instances
+                double capacity = service.getCurrentImplementation().getBenchmark(Throughput.class) * service.getInstances().size();
+                currentForecast = Throughput.getUtilisation(currentForecast, capacity);
+                horizonForecast = Throughput.getUtilisation(horizonForecast, capacity);
             }
+            // The current violations are left to the reactive analysis
+            if (specs.isSatisfied(currentForecast) && !specs.isSatisfied(horizonForecast)) {
+                log.debug("{}: {} is forecast to be {} in {} seconds, violating the constraint {}", service.getServiceId(), qosClass.getSimpleName(), horizonForecast, maxBootTimeSeconds, specs.getConstraintDescription());
+                adaptationOptions.add(new AddInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), qosClass, "The service " + qosClass.getSimpleName() + " is forecast to violate its specification within the boot time of a new instance"));
+                break;
+            }
+        }
+        return adaptationOptions;
+    }
+
+    /**
+     * Compares the current value of the given QoS of each instance with the ones of its peers.
+     * @param violatingInstances the instances not satisfying the QoS specification. Only they can be outliers
+     * @return the ids of the outlier instances
+     */
+    private Set<String> findOutlierInstances(Service service, Class<? extends QoSSpecification> qosClass, boolean higherIsWorse, List<Instance> violatingInstances) {
+        if (violatingInstances.isEmpty())
+            return Set.of();
+        Map<String, Double> instancesValues = new HashMap<>();
+        service.getInstances().forEach(instance -> instancesValues.put(instance.getInstanceId(), instance.getCurrentValueForQoS(qosClass).getDoubleValue()));
+        Set<String> outliers = outlierDetector.findOutliers(instancesValues, higherIsWorse);
+        outliers.retainAll(violatingInstances.stream().map(Instance::getInstanceId).toList());
+        if (!outliers.isEmpty())
+            log.debug("{}: outlier instances for {}: {}", service.getServiceId(), qosClass.getSimpleName(), outliers);
+        return outliers;
+    }
+
+    // A shutdown for each outlier instance and, with a weighted load balancer, a reduction of their weights.
+    // The new weights are computed here, so the Plan does not solve the LB weights optimisation problem for them
+    private List<AdaptationOption> createOutlierInstancesOptions(Service service, Class<? extends QoSSpecification> goal, Set<String> outlierInstancesIds) {
+        List<AdaptationOption> adaptationOptions = new LinkedList<>();
+        for (String instanceId : outlierInstancesIds) {
+            ShutdownInstanceOption shutdownInstanceOption = new ShutdownInstanceOption(service.getServiceId(), service.getCurrentImplementationId(), instanceId, "The instance is an outlier among its peers");
+            shutdownInstanceOption.setQosGoal(goal);
+            adaptationOptions.add(shutdownInstanceOption);
         }
-        if (successfulRequestsCount == 0) {
+        if (service.getConfiguration().getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM)) {
+            Map<String, Double> newWeights = outlierDetector.reduceWeights(service.getLoadBalancerWeights(), outlierInstancesIds);
+            if (newWeights != null) {
+                ChangeLoadBalancerWeightsOption changeLoadBalancerWeightsOption = new ChangeLoadBalancerWeightsOption(service.getServiceId(), service.getCurrentImplementationId(), goal, "Reducing the weights of the outlier instances");
+                changeLoadBalancerWeightsOption.setNewWeights(newWeights);
+                adaptationOptions.add(changeLoadBalancerWeightsOption);
+            }
+        }
+        return adaptationOptions;
+    }
+
+    // The options are proposed only when the violation of the analysis window is a significant shift, and not a transient spike.
+    // A QoS not satisfied on arrival by the averages of an instance confirms the violation as well
+    private boolean isShiftSignificant(Service service, Class<? extends QoSSpecification> qosClass) {
+        if (changePointDetectorFactory.detectsShift(service.getServiceId(), qosClass))
+            return true;
+        if (onlineAnalyser.isQoSBreached(service.getInstancesMap().keySet(), qosClass)) {
+            log.debug("{}: {} is not satisfied on arrival by some instances. The violation is significant", service.getServiceId(), qosClass.getSimpleName());
+            return true;
+        }
+        log.debug("{}: {} is not satisfied at rate {}, but the {} detector finds no significant shift", service.getServiceId(), qosClass.getSimpleName(), qosSatisfactionRate, changePointDetectorFactory.getType());
+        return false;
+    }
+
+    // The detectors compare the new values of the service with the thresholds of its QoS specifications. As in the
+    // Throughput analysis, the throughput is compared as the utilisation of the current instances
+    private void updateChangePointDetectors(Service service, Map<Class<? extends QoSSpecification>, QoSHistory.Value> newServiceValues, Set<Class<? extends QoSSpecification>> invalidatedQoS) {
+        newServiceValues.forEach((qosClass, value) -> {
+            QoSSpecification specification = service.getQoSSpecifications().get(qosClass);
+            boolean reset = invalidatedQoS.contains(qosClass);
+            if (specification instanceof Availability availability)
+                changePointDetectorFactory.update(service.getServiceId(), qosClass, value.getDoubleValue(), availability.getMinThreshold(), false, reset);
+            else if (specification instanceof AverageResponseTime averageResponseTime)
+                changePointDetectorFactory.update(service.getServiceId(), qosClass, value.getDoubleValue(), averageResponseTime.getMaxThreshold(), true, reset);
+            else if (specification instanceof ResponseTimePercentile responseTimePercentile)
+                changePointDetectorFactory.update(service.getServiceId(), qosClass, value.getDoubleValue(), responseTimePercentile.getMaxThreshold(), true, reset);
+            else if (specification instanceof Throughput throughput) {
+                double capacity = service.getCurrentImplementation().getBenchmark(Throughput.class) * service.getInstances().size();
+                // Without capacity the utilisation is infinite, and it would keep the detector shifted until the next reset
+                if (capacity > 0)
+                    changePointDetectorFactory.update(service.getServiceId(), qosClass, Throughput.getUtilisation(value.getDoubleValue(), capacity), throughput.getMaxUtilisation(), true, reset);
+            }
+        });
+    }
+
+    private double computeInstanceAvgResponseTime(Instance instance, MetricsWindowStats windowStats) {
+        if (windowStats.getSuccessfulRequestsCount() <= 0) {
             log.warn("{}: No successful requests for instance {}. Using its current value for ART", instance.getServiceId(), instance.getInstanceId());
             return instance.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue();
         }
-        return successfulRequestsDuration/successfulRequestsCount;
+        return windowStats.getSuccessfulRequestsDuration()/windowStats.getSuccessfulRequestsCount();
     }
 
-    private double computeInstanceAvailability(Instance instance, InstanceMetricsSnapshot oldestActiveMetrics, InstanceMetricsSnapshot latestActiveMetrics){
-        double successfulRequestsCount = 0;
-        double totalRequestsCount = 0;
+    private double computeInstanceResponseTimePercentile(Instance instance, ResponseTimePercentile specs, LatencySketch sketch) {
+        if (sketch.isEmpty()) {
+            log.warn("{}: No successful requests with latency histograms for instance {}. Using its current value for RT p{}", instance.getServiceId(), instance.getInstanceId(), specs.getPercentile());
+            return instance.getCurrentValueForQoS(ResponseTimePercentile.class).getDoubleValue();
+        }
+        return sketch.getQuantile(specs.getQuantile());
+    }
 
-        for(String endpoint : latestActiveMetrics.getHttpMetrics().keySet()){
-            HttpEndpointMetrics oldestEndpointMetrics = oldestActiveMetrics.getHttpMetrics().get(endpoint);
-            totalRequestsCount += latestActiveMetrics.getHttpMetrics().get(endpoint).getTotalCount();
-            successfulRequestsCount += latestActiveMetrics.getHttpMetrics().get(endpoint).getTotalCountOfSuccessful();
-            if (oldestEndpointMetrics != null) {
-                totalRequestsCount -= oldestEndpointMetrics.getTotalCount();
-                successfulRequestsCount -= oldestEndpointMetrics.getTotalCountOfSuccessful();
-            }
+    // Requests per second between the oldest and the latest active snapshots. The counters are cumulative and are not reset during the metrics window of the current instance
+    private double computeInstanceThroughput(Instance instance, MetricsWindowStats windowStats) {
+        double seconds = windowStats.getElapsedSeconds();
+        if (seconds <= 0) {
+            log.warn("{}: No time elapsed between the metrics of instance {}. Using its current value for Throughput", instance.getServiceId(), instance.getInstanceId());
+            return instance.getCurrentValueForQoS(Throughput.class).getDoubleValue();
         }
-        if (totalRequestsCount == 0) {
+        return Math.max(0, windowStats.getRequestsCount()) / seconds;
+    }
+
+    private double computeInstanceAvailability(Instance instance, MetricsWindowStats windowStats){
+        if (windowStats.getRequestsCount() <= 0) {
             log.warn("{}: No successful requests for instance {}. Using its current value for Availability", instance.getServiceId(), instance.getInstanceId());
             return instance.getCurrentValueForQoS(Availability.class).getDoubleValue();
         }
-        return successfulRequestsCount/totalRequestsCount;
+        return (double) windowStats.getSuccessfulRequestsCount()/windowStats.getRequestsCount();
+    }
+
+    // The window sizes set in the Knowledge for the service, or the default ones
+    private int metricsWindowSizeOf(Service service) {
+        WindowSizes windowSizes = service.getWindowSizes();
+        return windowSizes == null || windowSizes.getMetricsWindowSize() == null ? metricsWindowSize : windowSizes.getMetricsWindowSize();
+    }
+
+    private long metricsWindowSecondsOf(Service service) {
+        WindowSizes windowSizes = service.getWindowSizes();
+        return windowSizes == null || windowSizes.getMetricsWindowSeconds() == null ? metricsWindowSeconds : windowSizes.getMetricsWindowSeconds();
+    }
+
+    private int analysisWindowSizeOf(Service service) {
+        WindowSizes windowSizes = service.getWindowSizes();
+        return windowSizes == null || windowSizes.getAnalysisWindowSize() == null ? analysisWindowSize : windowSizes.getAnalysisWindowSize();
+    }
+
+    /**
+     * Tunes the metrics window size of the service from the requests of the metrics windows just analysed, and stores
+     * the new size in the Knowledge. The size of a service is tuned only if it has not been set by an admin.
+     */
+    private void tuneMetricsWindowSize(Service service, int currentSize, long requestsCount, int intervalsCount) {
+        WindowSizes windowSizes = service.getWindowSizes();
+        if (!windowSizeTuner.isEnabled() || (windowSizes != null && !windowSizes.isAutoTuned()))
+            return;
+        int newSize = windowSizeTuner.tuneMetricsWindowSize(currentSize, requestsCount, intervalsCount);
+        if (newSize == currentSize)
+            return;
+        log.debug("{}: metrics window size tuned from {} to {} ({} requests in {} intervals)", service.getServiceId(), currentSize, newSize, requestsCount, intervalsCount);
+        WindowSizes newWindowSizes = new WindowSizes(newSize, null, windowSizes == null ? null : windowSizes.getAnalysisWindowSize(), true);
+        try {
+            knowledgeClient.updateWindowSizes(service.getServiceId(), newWindowSizes);
+        } catch (RuntimeException e) {
+            // E.g., a size greater than the metrics cache of the Knowledge: the current size is kept
+            log.warn("{}: the Knowledge rejected the metrics window size {}: {}", service.getServiceId(), newSize, e.getMessage());
+            return;
+        }
+        service.setWindowSizes(newWindowSizes);
     }
 
     // Methods to update the Analyse configuration
@@ -472,6 +901,12 @@ public class AnalyseService {
         this.newMetricsWindowSize = newMetricsWindowSize;
     }
 
+    public void setNewMetricsWindowSeconds(Long newMetricsWindowSeconds) throws IllegalArgumentException {
+        if (newMetricsWindowSeconds < 0)
+            throw new IllegalArgumentException("Metrics window seconds must not be negative.");
+        this.newMetricsWindowSeconds = newMetricsWindowSeconds;
+    }
+
     public void setNewAnalysisWindowSize(Integer newAnalysisWindowSize) throws IllegalArgumentException {
         if (newAnalysisWindowSize < 1)
             throw new IllegalArgumentException("Analysis window size must be greater than 0");
@@ -496,6 +931,11 @@ public class AnalyseService {
             log.debug("Metrics window size updated to " + metricsWindowSize);
             newMetricsWindowSize = null;
         }
+        if (newMetricsWindowSeconds != null) {
+            this.metricsWindowSeconds = newMetricsWindowSeconds;
+            log.debug("Metrics window seconds updated to " + metricsWindowSeconds);
+            newMetricsWindowSeconds = null;
+        }
         if (newFailureRateThreshold != null) {
             failureRateThreshold = newFailureRateThreshold;
             log.debug("Failure rate threshold updated to " + failureRateThreshold);
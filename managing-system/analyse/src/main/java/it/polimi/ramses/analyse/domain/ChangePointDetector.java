@@ -0,0 +1,21 @@
+package it.polimi.ramses.analyse.domain;
+
+/**
+ * Sequential detector of an upward shift in a series of deviations of a QoS from its threshold.
+ * A positive deviation means that the value violates the threshold, and the in-control level of the series is 0.
+ */
+public interface ChangePointDetector {
+    enum Type {
+        // Every series is considered shifted, so the decision is left to the satisfaction rate
+        NONE,
+        CUSUM,
+        PAGE_HINKLEY,
+        EWMA
+    }
+
+    /**
+     * Feeds the next deviation of the series.
+     * @return true if a shift has been detected
+     */
+    boolean update(double deviation);
+}
@@ -0,0 +1,103 @@
+package it.polimi.ramses.analyse.domain;
+
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates the configured ChangePointDetectors and keeps one for each QoS of each service, fed with each new value of
+ * the service QoS histories. A detector is reset when the QoS history of its service is invalidated (i.e., after an
+ * adaptation), so that its decision only depends on the values collected since the latest adaptation.
+ */
+@Slf4j
+@Getter
+@Component
+public class ChangePointDetectorFactory {
+    private final ChangePointDetector.Type type;
+    // Slack of CUSUM and tolerated change of Page-Hinkley, as a fraction of the QoS threshold
+    private final double slack;
+    // Decision threshold of CUSUM and Page-Hinkley, as a fraction of the QoS threshold
+    private final double threshold;
+    private final double ewmaLambda;
+    private final double ewmaWidth;
+
+    // <serviceId, <QoS, detector>>
+    private final Map<String, Map<Class<? extends QoSSpecification>, Detection>> detections = new ConcurrentHashMap<>();
+
+    public ChangePointDetectorFactory(
+        @Value("${CHANGE_POINT_DETECTOR}") ChangePointDetector.Type type,
+        @Value("${CHANGE_POINT_SLACK}") double slack,
+        @Value("${CHANGE_POINT_THRESHOLD}") double threshold,
+        @Value("${CHANGE_POINT_EWMA_LAMBDA}") double ewmaLambda,
+        @Value("${CHANGE_POINT_EWMA_WIDTH}") double ewmaWidth
+    ) {
+        if (slack < 0)
+            throw new IllegalArgumentException("Change point slack must be greater than or equal to 0.");
+        if (threshold <= 0)
+            throw new IllegalArgumentException("Change point threshold must be greater than 0.");
+        if (ewmaLambda <= 0 || ewmaLambda > 1)
+            throw new IllegalArgumentException("Change point EWMA lambda must be in (0, 1].");
+        if (ewmaWidth <= 0)
+            throw new IllegalArgumentException("Change point EWMA width must be greater than 0.");
+        this.type = type;
+        this.slack = slack;
+        this.threshold = threshold;
+        this.ewmaLambda = ewmaLambda;
+        this.ewmaWidth = ewmaWidth;
+        log.debug("ChangePointDetector: {}", type);
+    }
+
+    public ChangePointDetector create() {
+        return switch (type) {
+            case NONE -> deviation -> true;
+            case CUSUM -> new CusumDetector(slack, threshold);
+            case PAGE_HINKLEY -> new PageHinkleyDetector(slack, threshold);
+            case EWMA -> new EwmaChartDetector(ewmaLambda, ewmaWidth);
+        };
+    }
+
+    /**
+     * Feeds the new value of a QoS of the service to its detector, as its deviation from the QoS threshold, relative to
+     * the threshold.
+     * @param higherIsWorse true if the QoS is violated by the values greater than the threshold
+     * @param reset true if the history of the QoS was invalidated since the previous value
+     */
+    public void update(String serviceId, Class<? extends QoSSpecification> qosClass, double value, double qosThreshold, boolean higherIsWorse, boolean reset) {
+        Map<Class<? extends QoSSpecification>, Detection> serviceDetections = detections.computeIfAbsent(serviceId, id -> new ConcurrentHashMap<>());
+        if (reset)
+            serviceDetections.remove(qosClass);
+        double scale = qosThreshold == 0 ? 1 : Math.abs(qosThreshold);
+        double deviation = (higherIsWorse ? value - qosThreshold : qosThreshold - value) / scale;
+        Detection detection = serviceDetections.computeIfAbsent(qosClass, c -> new Detection(create()));
+        detection.shift = detection.detector.update(deviation);
+    }
+
+    // True if, after the latest value of the QoS of the service, its detector signals a significant shift beyond the QoS threshold
+    public boolean detectsShift(String serviceId, Class<? extends QoSSpecification> qosClass) {
+        if (type == ChangePointDetector.Type.NONE)
+            return true;
+        Detection detection = detections.getOrDefault(serviceId, Map.of()).get(qosClass);
+        return detection != null && detection.shift;
+    }
+
+    // Forgets the detectors of the services no longer in the architecture
+    public void retainServices(Set<String> servicesIds) {
+        detections.keySet().retainAll(servicesIds);
+    }
+
+    private static class Detection {
+        private final ChangePointDetector detector;
+        // Decision of the detector after the latest value
+        private boolean shift = false;
+
+        private Detection(ChangePointDetector detector) {
+            this.detector = detector;
+        }
+    }
+}
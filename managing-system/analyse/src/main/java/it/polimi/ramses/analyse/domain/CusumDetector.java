@@ -0,0 +1,24 @@
+package it.polimi.ramses.analyse.domain;
+
+/**
+ * One-sided tabular CUSUM: S_t = max(0, S_{t-1} + x_t - k).
+ * A shift is detected when S_t exceeds h, so isolated spikes are absorbed while sustained violations accumulate.
+ */
+public class CusumDetector implements ChangePointDetector {
+    // Slack: the deviations not greater than k do not accumulate
+    private final double k;
+    // Decision threshold
+    private final double h;
+    private double sum = 0;
+
+    public CusumDetector(double k, double h) {
+        this.k = k;
+        this.h = h;
+    }
+
+    @Override
+    public boolean update(double deviation) {
+        sum = Math.max(0, sum + deviation - k);
+        return sum > h;
+    }
+}
@@ -0,0 +1,35 @@
+package it.polimi.ramses.analyse.domain;
+
+/**
+ * EWMA control chart: Z_t = lambda * x_t + (1 - lambda) * Z_{t-1}, with Z_0 = 0.
+ * A shift is detected when Z_t exceeds the upper control limit L * sigma * sqrt(lambda / (2 - lambda) * (1 - (1 - lambda)^(2t))),
+ * where sigma is the standard deviation of the series observed so far.
+ */
+public class EwmaChartDetector implements ChangePointDetector {
+    // Weight of the newest value
+    private final double lambda;
+    // Width of the control limits, in standard deviations
+    private final double width;
+    private double ewma = 0;
+    private int count = 0;
+    private double mean = 0;
+    // Sum of the squared differences from the mean (Welford)
+    private double m2 = 0;
+
+    public EwmaChartDetector(double lambda, double width) {
+        this.lambda = lambda;
+        this.width = width;
+    }
+
+    @Override
+    public boolean update(double deviation) {
+        count++;
+        double delta = deviation - mean;
+        mean += delta / count;
+        m2 += delta * (deviation - mean);
+        ewma = lambda * deviation + (1 - lambda) * ewma;
+        double sigma = count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+        double limit = width * sigma * Math.sqrt(lambda / (2 - lambda) * (1 - Math.pow(1 - lambda, 2 * count)));
+        return ewma > limit && ewma > 0;
+    }
+}
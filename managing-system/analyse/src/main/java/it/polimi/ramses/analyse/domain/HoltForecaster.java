@@ -0,0 +1,52 @@
+package it.polimi.ramses.analyse.domain;
+
+/**
+ * Holt's linear (double exponential) smoothing of a QoS series with irregularly spaced values.
+ * The trend is kept per second, so that the forecast horizon is a time and not a number of values.
+ * Each update is O(1).
+ */
+public class HoltForecaster {
+    private final double levelSmoothing;
+    private final double trendSmoothing;
+    private double level;
+    // Change of the level per second
+    private double trend;
+    private long latestTimestamp;
+    private int count = 0;
+
+    public HoltForecaster(double levelSmoothing, double trendSmoothing) {
+        this.levelSmoothing = levelSmoothing;
+        this.trendSmoothing = trendSmoothing;
+    }
+
+    public void update(double value, long timestamp) {
+        if (count == 0) {
+            level = value;
+            trend = 0;
+        } else {
+            double seconds = (timestamp - latestTimestamp) / 1000.0;
+            if (seconds <= 0)
+                return;
+            double previousLevel = level;
+            level = levelSmoothing * value + (1 - levelSmoothing) * (level + trend * seconds);
+            double observedTrend = (level - previousLevel) / seconds;
+            // The first difference is the initial estimate of the trend
+            trend = count == 1 ? observedTrend : trendSmoothing * observedTrend + (1 - trendSmoothing) * trend;
+        }
+        latestTimestamp = timestamp;
+        count++;
+    }
+
+    // The value forecast the given seconds after the latest update
+    public double forecast(double seconds) {
+        return level + trend * seconds;
+    }
+
+    public double getTrend() {
+        return trend;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
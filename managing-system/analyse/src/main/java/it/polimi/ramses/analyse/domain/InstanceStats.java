@@ -2,8 +2,11 @@ package it.polimi.ramses.analyse.domain;
 
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Availability;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.AverageResponseTime;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.ResponseTimePercentile;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Throughput;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Vulnerability;
 import it.polimi.ramses.knowledge.domain.architecture.Instance;
+import it.polimi.ramses.knowledge.domain.metrics.LatencySketch;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -17,6 +20,15 @@ public class InstanceStats {
     private Instance instance;
     private double averageResponseTime;
     private double availability;
+    // Null if the service has no ResponseTimePercentile specification
+    private Double responseTimePercentile;
+    // Requests per second. Null if the service has no Throughput specification
+    private Double throughput;
+    // Response times of the successful requests of the metrics window, or null if the probe sent no histograms
+    private LatencySketch latencySketch;
+    // Successful requests of the metrics window and their total duration, 0 if not from new data
+    private long successfulRequestsCount;
+    private double successfulRequestsDuration;
     private double vulnerabilityScore;
     private boolean fromNewData;
 
@@ -32,6 +44,10 @@ public class InstanceStats {
         this.instance = instance;
         availability = instance.getLatestValueForQoS(Availability.class).getDoubleValue();
         averageResponseTime = instance.getLatestValueForQoS(AverageResponseTime.class).getDoubleValue();
+        if (instance.getQoSCollection().getQoSHistory(ResponseTimePercentile.class) != null)
+            responseTimePercentile = instance.getLatestValueForQoS(ResponseTimePercentile.class).getDoubleValue();
+        if (instance.getQoSCollection().getQoSHistory(Throughput.class) != null)
+            throughput = instance.getLatestValueForQoS(Throughput.class).getDoubleValue();
         vulnerabilityScore = instance.getVulnerabilityScore();
         this.fromNewData = false;
     }
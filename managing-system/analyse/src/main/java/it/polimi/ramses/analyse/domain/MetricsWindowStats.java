@@ -0,0 +1,104 @@
+package it.polimi.ramses.analyse.domain;
+
+import it.polimi.ramses.knowledge.domain.metrics.HttpEndpointMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.LatencySketch;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The statistics of the metrics window of an instance, computed with a single sweep over the snapshots of the window
+ * and a single sweep over the outcomes of the endpoints of its oldest and latest ACTIVE snapshots.
+ * The HTTP counters are cumulative, so the requests of the window are the difference between the two snapshots.
+ */
+@Getter
+public class MetricsWindowStats {
+    private final int size;
+    // The sketches are decoded only if the percentiles are needed
+    private final boolean withLatencySketch;
+    private int failedCount;
+    private int unreachableCount;
+    // The latest and the oldest ACTIVE snapshots with HTTP metrics, or null if there are none
+    private InstanceMetricsSnapshot latestActiveMetrics;
+    private InstanceMetricsSnapshot oldestActiveMetrics;
+
+    private long requestsCount;
+    private long successfulRequestsCount;
+    private double successfulRequestsDuration;
+    // Response times of the successful requests of the window, from the probe histograms. Empty if not withLatencySketch
+    private final LatencySketch latencySketch = new LatencySketch();
+
+    private MetricsWindowStats(int size, boolean withLatencySketch) {
+        this.size = size;
+        this.withLatencySketch = withLatencySketch;
+    }
+
+    /**
+     * @param window the snapshots of the window, from the newest
+     * @param withLatencySketch true to merge the duration sketches of the window (e.g., the service has a ResponseTimePercentile specification)
+     */
+    public static MetricsWindowStats of(List<InstanceMetricsSnapshot> window, boolean withLatencySketch) {
+        MetricsWindowStats stats = new MetricsWindowStats(window.size(), withLatencySketch);
+        for (InstanceMetricsSnapshot snapshot : window) {
+            if (snapshot.isFailed())
+                stats.failedCount++;
+            else if (snapshot.isUnreachable())
+                stats.unreachableCount++;
+            else if (snapshot.isActive() && !snapshot.getHttpMetrics().isEmpty()) {
+                if (stats.latestActiveMetrics == null)
+                    stats.latestActiveMetrics = snapshot;
+                stats.oldestActiveMetrics = snapshot;
+            }
+        }
+        if (stats.latestActiveMetrics != null)
+            stats.accumulateRequests();
+        return stats;
+    }
+
+    public double getFailureRate() {
+        return size == 0 ? 0 : (double) failedCount / size;
+    }
+
+    public double getUnreachableRate() {
+        return size == 0 ? 0 : (double) unreachableCount / size;
+    }
+
+    public boolean hasActiveMetrics() {
+        return latestActiveMetrics != null;
+    }
+
+    // Seconds between the oldest and the latest ACTIVE snapshots
+    public double getElapsedSeconds() {
+        return (latestActiveMetrics.getTimestamp().getTime() - oldestActiveMetrics.getTimestamp().getTime()) / 1000.0;
+    }
+
+    private void accumulateRequests() {
+        for (Map.Entry<String, HttpEndpointMetrics> entry : latestActiveMetrics.getHttpMetrics().entrySet()) {
+            LatencySketch latestSketch = accumulate(entry.getValue(), 1);
+            HttpEndpointMetrics oldestEndpointMetrics = oldestActiveMetrics.getHttpMetrics().get(entry.getKey());
+            LatencySketch oldestSketch = oldestEndpointMetrics == null ? null : accumulate(oldestEndpointMetrics, -1);
+            if (latestSketch != null)
+                latencySketch.merge(latestSketch.minus(oldestSketch));
+        }
+    }
+
+    // Adds (sign 1) or subtracts (sign -1) the counters of the endpoint and returns the sketch of its successful requests, if any
+    private LatencySketch accumulate(HttpEndpointMetrics endpointMetrics, int sign) {
+        LatencySketch sketch = null;
+        for (HttpEndpointMetrics.OutcomeMetrics outcomeMetrics : endpointMetrics.getOutcomeMetrics().values()) {
+            requestsCount += sign * outcomeMetrics.getCount();
+            if (outcomeMetrics.getStatus() >= 500)
+                continue;
+            successfulRequestsCount += sign * outcomeMetrics.getCount();
+            successfulRequestsDuration += sign * outcomeMetrics.getTotalDuration();
+            if (withLatencySketch && outcomeMetrics.getDurationSketch() != null) {
+                if (sketch == null)
+                    sketch = new LatencySketch();
+                sketch.merge(outcomeMetrics.getLatencySketch());
+            }
+        }
+        return sketch;
+    }
+}
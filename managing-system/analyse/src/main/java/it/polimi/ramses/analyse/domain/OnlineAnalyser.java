@@ -0,0 +1,216 @@
+package it.polimi.ramses.analyse.domain;
+
+import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
+import it.polimi.ramses.knowledge.domain.adaptation.options.ShutdownInstanceOption;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Availability;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.AverageResponseTime;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.ResponseTimePercentile;
+import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
+import it.polimi.ramses.knowledge.domain.architecture.Service;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Online analysis of the snapshots of the instances, performed as soon as the Monitor collects them.
+ * Each snapshot incrementally updates the state of its instance: a fixed window of the latest statuses (for the failure
+ * and unreachable rates) and the exponentially weighted averages of the QoS between consecutive ACTIVE snapshots.
+ * The failed and unreachable instances are detected on arrival and their ShutdownInstanceOptions are kept until the
+ * next Analyse iteration, which proposes them as forced options. The QoS breaches found on arrival confirm the QoS
+ * violations of the analysis windows of the services.
+ * The state of the instances of a service is reset when its QoS histories are invalidated (i.e., after an adaptation).
+ */
+@Slf4j
+public class OnlineAnalyser {
+    // Weight of the newest interval in the exponentially weighted averages
+    private final double ewmaAlpha;
+
+    // <instanceId, state of the instance>
+    private final Map<String, InstanceState> instancesStates = new ConcurrentHashMap<>();
+    // <serviceId, <instanceId, forced ShutdownInstanceOption>>
+    private final Map<String, Map<String, AdaptationOption>> pendingForcedOptions = new ConcurrentHashMap<>();
+
+    public OnlineAnalyser(double ewmaAlpha) {
+        if (ewmaAlpha <= 0 || ewmaAlpha > 1)
+            throw new IllegalArgumentException("The EWMA alpha must be in (0, 1].");
+        this.ewmaAlpha = ewmaAlpha;
+    }
+
+    /**
+     * Updates the state of the instance of the snapshot and checks its thresholds.
+     * @param service the service of the instance, or null if it is not known yet (its QoS are not checked)
+     */
+    public void update(InstanceMetricsSnapshot snapshot, Service service, int metricsWindowSize, double failureRateThreshold, double unreachableRateThreshold) {
+        String instanceId = snapshot.getInstanceId();
+        if (snapshot.getStatus() == InstanceStatus.SHUTDOWN) {
+            // The next run of the instance starts from an empty state
+            instancesStates.remove(instanceId);
+            Map<String, AdaptationOption> serviceOptions = pendingForcedOptions.get(snapshot.getServiceId());
+            if (serviceOptions != null)
+                serviceOptions.remove(instanceId);
+            return;
+        }
+        InstanceState state = instancesStates.computeIfAbsent(instanceId, id -> new InstanceState(metricsWindowSize));
+        synchronized (state) {
+            if (state.statuses.length != metricsWindowSize)
+                state.resize(metricsWindowSize);
+            state.addStatus(snapshot.getStatus());
+            if (state.isFull() && !state.shutdownProposed) {
+                double failureRate = (double) state.failedCount / state.size;
+                double unreachableRate = (double) state.unreachableCount / state.size;
+                if (unreachableRate >= unreachableRateThreshold || failureRate >= failureRateThreshold || failureRate + unreachableRate >= 1) {
+                    log.debug("{}: Rates conditions of instance {} not satisfied on arrival.", snapshot.getServiceId(), instanceId);
+                    pendingForcedOptions.computeIfAbsent(snapshot.getServiceId(), id -> new ConcurrentHashMap<>()).put(instanceId,
+                            new ShutdownInstanceOption(snapshot.getServiceId(), snapshot.getServiceImplementationId(), instanceId, "Instance failed or unreachable", true));
+                    state.shutdownProposed = true;
+                }
+            }
+            if (!snapshot.isActive() || snapshot.getHttpMetrics().isEmpty())
+                return;
+            if (state.previousActiveMetrics != null)
+                state.updateAverages(MetricsWindowStats.of(List.of(snapshot, state.previousActiveMetrics), service != null && service.getQoSSpecifications().containsKey(ResponseTimePercentile.class)), service, ewmaAlpha);
+            state.previousActiveMetrics = snapshot;
+            if (service != null)
+                state.checkQoS(service, instanceId);
+        }
+    }
+
+    /**
+     * Removes and returns the forced options found for the service since the previous call.
+     * Their instances can be proposed again if they are still failed or unreachable at their next snapshot, since
+     * the Plan may not apply the shutdowns (e.g., for the last instance of the service).
+     */
+    public Collection<AdaptationOption> drainForcedOptions(String serviceId) {
+        Map<String, AdaptationOption> serviceOptions = pendingForcedOptions.remove(serviceId);
+        if (serviceOptions == null)
+            return List.of();
+        serviceOptions.keySet().forEach(instanceId -> {
+            InstanceState state = instancesStates.get(instanceId);
+            if (state != null) {
+                synchronized (state) {
+                    state.shutdownProposed = false;
+                }
+            }
+        });
+        return serviceOptions.values();
+    }
+
+    // Forgets the state and the forced options of the given instances of the service, which start again from their next snapshot
+    public void reset(String serviceId, Collection<String> instancesIds) {
+        instancesIds.forEach(instancesStates::remove);
+        Map<String, AdaptationOption> serviceOptions = pendingForcedOptions.get(serviceId);
+        if (serviceOptions != null)
+            serviceOptions.keySet().removeAll(instancesIds);
+    }
+
+    // True if the averages of at least one of the given instances do not satisfy the QoS
+    public boolean isQoSBreached(Collection<String> instancesIds, Class<? extends QoSSpecification> qosClass) {
+        for (String instanceId : instancesIds) {
+            InstanceState state = instancesStates.get(instanceId);
+            if (state == null)
+                continue;
+            synchronized (state) {
+                if (state.qosBreaches.contains(qosClass.getSimpleName()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // <instanceId, names of the QoS not satisfied by the averages of the instance>
+    public Map<String, Set<String>> getQoSBreaches() {
+        Map<String, Set<String>> breaches = new HashMap<>();
+        instancesStates.forEach((instanceId, state) -> {
+            synchronized (state) {
+                if (!state.qosBreaches.isEmpty())
+                    breaches.put(instanceId, new HashSet<>(state.qosBreaches));
+            }
+        });
+        return breaches;
+    }
+
+    private static class InstanceState {
+        // Ring buffer of the latest statuses
+        private InstanceStatus[] statuses;
+        private int next;
+        private int size;
+        private int failedCount;
+        private int unreachableCount;
+        private boolean shutdownProposed;
+
+        private InstanceMetricsSnapshot previousActiveMetrics;
+        private Double availabilityAverage;
+        private Double averageResponseTimeAverage;
+        private Double responseTimePercentileAverage;
+        private final Set<String> qosBreaches = new HashSet<>();
+
+        private InstanceState(int windowSize) {
+            statuses = new InstanceStatus[windowSize];
+        }
+
+        private boolean isFull() {
+            return size == statuses.length;
+        }
+
+        private void addStatus(InstanceStatus status) {
+            if (isFull())
+                count(statuses[next], -1);
+            else
+                size++;
+            statuses[next] = status;
+            count(status, 1);
+            next = (next + 1) % statuses.length;
+        }
+
+        private void count(InstanceStatus status, int delta) {
+            if (status == InstanceStatus.FAILED)
+                failedCount += delta;
+            else if (status == InstanceStatus.UNREACHABLE)
+                unreachableCount += delta;
+        }
+
+        // Keeps the latest statuses that fit in the new window
+        private void resize(int windowSize) {
+            InstanceStatus[] oldStatuses = statuses;
+            int oldNext = next, oldSize = size;
+            statuses = new InstanceStatus[windowSize];
+            next = size = failedCount = unreachableCount = 0;
+            for (int i = Math.max(0, oldSize - windowSize); i < oldSize; i++)
+                addStatus(oldStatuses[Math.floorMod(oldNext - oldSize + i, oldStatuses.length)]);
+        }
+
+        private void updateAverages(MetricsWindowStats interval, Service service, double alpha) {
+            if (interval.getRequestsCount() > 0)
+                availabilityAverage = ewma(availabilityAverage, (double) interval.getSuccessfulRequestsCount() / interval.getRequestsCount(), alpha);
+            if (interval.getSuccessfulRequestsCount() > 0)
+                averageResponseTimeAverage = ewma(averageResponseTimeAverage, interval.getSuccessfulRequestsDuration() / interval.getSuccessfulRequestsCount(), alpha);
+            ResponseTimePercentile percentileSpecs = service == null ? null : (ResponseTimePercentile) service.getQoSSpecifications().get(ResponseTimePercentile.class);
+            if (percentileSpecs != null && !interval.getLatencySketch().isEmpty())
+                responseTimePercentileAverage = ewma(responseTimePercentileAverage, interval.getLatencySketch().getQuantile(percentileSpecs.getQuantile()), alpha);
+        }
+
+        private void checkQoS(Service service, String instanceId) {
+            check(service, instanceId, Availability.class, availabilityAverage);
+            check(service, instanceId, AverageResponseTime.class, averageResponseTimeAverage);
+            check(service, instanceId, ResponseTimePercentile.class, responseTimePercentileAverage);
+        }
+
+        private void check(Service service, String instanceId, Class<? extends QoSSpecification> qosClass, Double value) {
+            QoSSpecification specification = service.getQoSSpecifications().get(qosClass);
+            if (specification == null || value == null)
+                return;
+            if (specification.isSatisfied(value)) {
+                qosBreaches.remove(qosClass.getSimpleName());
+            } else if (qosBreaches.add(qosClass.getSimpleName())) {
+                log.debug("{}: {} of instance {} not satisfied on arrival ({})", service.getServiceId(), qosClass.getSimpleName(), instanceId, value);
+            }
+        }
+
+        private static double ewma(Double average, double value, double alpha) {
+            return average == null ? value : alpha * value + (1 - alpha) * average;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package it.polimi.ramses.analyse.domain;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Compares the QoS values of the instances of a service with the ones of their peers, to find the instances clearly
+ * worse than the others (e.g., a slow but alive instance). The comparison uses the modified z-score of each value,
+ * i.e., its distance from the median in units of median absolute deviation (MAD), which is not skewed by the outliers.
+ * When more than half of the values are equal the MAD is 0, and the mean absolute deviation is used instead.
+ */
+@Getter
+@Component
+public class OutlierDetector {
+    // Ratio between the MAD and the standard deviation of a normal distribution
+    private static final double MAD_SCALE = 0.6745;
+    // Ratio between the mean absolute deviation and the standard deviation of a normal distribution
+    private static final double MEAN_AD_SCALE = 0.7979;
+
+    private final boolean enabled;
+    // Modified z-score above which a value is an outlier
+    private final double threshold;
+    // Instances needed for the median of the service to be meaningful
+    private final int minInstances;
+    // Factor applied to the load balancer weight of an outlier instance
+    private final double weightReductionFactor;
+
+    public OutlierDetector(
+        @Value("${OUTLIER_DETECTION}") boolean enabled,
+        @Value("${OUTLIER_MAD_THRESHOLD}") double threshold,
+        @Value("${OUTLIER_MIN_INSTANCES}") int minInstances,
+        @Value("${OUTLIER_WEIGHT_REDUCTION_FACTOR}") double weightReductionFactor
+    ) {
+        if (threshold <= 0)
+            throw new IllegalArgumentException("Outlier MAD threshold must be greater than 0.");
+        if (minInstances < 3)
+            throw new IllegalArgumentException("Outlier min instances must be greater than 2.");
+        if (weightReductionFactor < 0 || weightReductionFactor >= 1)
+            throw new IllegalArgumentException("Outlier weight reduction factor must be between 0 (included) and 1 (excluded).");
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.minInstances = minInstances;
+        this.weightReductionFactor = weightReductionFactor;
+    }
+
+    /**
+     * @param instancesValues <instanceId, value of a QoS of the instance>
+     * @param higherIsWorse true if the outliers are the instances with a value higher than their peers, false if lower
+     * @return the ids of the outlier instances, empty if the instances are too few or none is an outlier
+     */
+    public Set<String> findOutliers(Map<String, Double> instancesValues, boolean higherIsWorse) {
+        Set<String> outliers = new HashSet<>();
+        if (!enabled || instancesValues.size() < minInstances)
+            return outliers;
+        double median = median(instancesValues.values().stream().mapToDouble(Double::doubleValue).toArray());
+        double[] deviations = instancesValues.values().stream().mapToDouble(value -> Math.abs(value - median)).toArray();
+        double mad = median(deviations);
+        double scale = mad > 0 ? mad / MAD_SCALE : Arrays.stream(deviations).average().orElse(0) / MEAN_AD_SCALE;
+        if (scale <= 0)
+            return outliers;
+        instancesValues.forEach((instanceId, value) -> {
+            double zScore = (value - median) / scale;
+            if ((higherIsWorse ? zScore : -zScore) > threshold)
+                outliers.add(instanceId);
+        });
+        return outliers;
+    }
+
+    /**
+     * Reduces the weights of the outlier instances by the reduction factor, and gives the weight removed to the other
+     * instances, proportionally to their weights. The given map is not modified.
+     *
+     * @return the new weights, or null if there are no other instances to give the weight to
+     */
+    public Map<String, Double> reduceWeights(Map<String, Double> weights, Set<String> outliers) {
+        double weightToMove = 0;
+        double othersWeight = 0;
+        int othersCount = 0;
+        for (Map.Entry<String, Double> entry : weights.entrySet()) {
+            if (outliers.contains(entry.getKey()))
+                weightToMove += entry.getValue() * (1 - weightReductionFactor);
+            else {
+                othersWeight += entry.getValue();
+                othersCount++;
+            }
+        }
+        if (othersCount == 0)
+            return null;
+        Map<String, Double> newWeights = new HashMap<>();
+        for (Map.Entry<String, Double> entry : weights.entrySet()) {
+            if (outliers.contains(entry.getKey()))
+                newWeights.put(entry.getKey(), entry.getValue() * weightReductionFactor);
+            else
+                newWeights.put(entry.getKey(), entry.getValue() + weightToMove * (othersWeight > 0 ? entry.getValue() / othersWeight : 1.0 / othersCount));
+        }
+        return newWeights;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+}
@@ -0,0 +1,31 @@
+package it.polimi.ramses.analyse.domain;
+
+/**
+ * Page-Hinkley test for an increase of the mean: m_T = sum(x_t - mean_t - delta), M_T = min(m_t).
+ * A shift is detected when m_T - M_T exceeds lambda. The running mean starts from the in-control level 0,
+ * so that a series violating the threshold from its first value is a shift too.
+ */
+public class PageHinkleyDetector implements ChangePointDetector {
+    // Magnitude of the changes that are tolerated
+    private final double delta;
+    // Decision threshold
+    private final double lambda;
+    private double mean = 0;
+    private int count = 1;
+    private double cumulativeSum = 0;
+    private double minCumulativeSum = 0;
+
+    public PageHinkleyDetector(double delta, double lambda) {
+        this.delta = delta;
+        this.lambda = lambda;
+    }
+
+    @Override
+    public boolean update(double deviation) {
+        count++;
+        mean += (deviation - mean) / count;
+        cumulativeSum += deviation - mean - delta;
+        minCumulativeSum = Math.min(minCumulativeSum, cumulativeSum);
+        return cumulativeSum - minCumulativeSum > lambda;
+    }
+}
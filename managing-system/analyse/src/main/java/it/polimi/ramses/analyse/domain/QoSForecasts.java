@@ -0,0 +1,78 @@
+package it.polimi.ramses.analyse.domain;
+
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The HoltForecasters of the QoS of each service, updated with each new value of the service QoS histories.
+ * A model is reset when the QoS history of its service is invalidated (i.e., after an adaptation),
+ * since the values collected before the adaptation do not describe the new configuration.
+ */
+@Slf4j
+@Getter
+@Component
+public class QoSForecasts {
+    private final boolean enabled;
+    private final double levelSmoothing;
+    private final double trendSmoothing;
+    // Number of values a model must be fitted on before its forecasts are used
+    private final int minValues;
+
+    // <serviceId, <QoS, model>>
+    private final Map<String, Map<Class<? extends QoSSpecification>, HoltForecaster>> forecasters = new ConcurrentHashMap<>();
+
+    public QoSForecasts(
+        @Value("${FORECAST_ENABLED}") boolean enabled,
+        @Value("${FORECAST_LEVEL_SMOOTHING}") double levelSmoothing,
+        @Value("${FORECAST_TREND_SMOOTHING}") double trendSmoothing,
+        @Value("${FORECAST_MIN_VALUES}") int minValues
+    ) {
+        if (levelSmoothing <= 0 || levelSmoothing > 1)
+            throw new IllegalArgumentException("Forecast level smoothing must be in (0, 1].");
+        if (trendSmoothing <= 0 || trendSmoothing > 1)
+            throw new IllegalArgumentException("Forecast trend smoothing must be in (0, 1].");
+        if (minValues < 2)
+            throw new IllegalArgumentException("Forecast min values must be greater than 1.");
+        this.enabled = enabled;
+        this.levelSmoothing = levelSmoothing;
+        this.trendSmoothing = trendSmoothing;
+        this.minValues = minValues;
+    }
+
+    /**
+     * @param reset true if the history of the QoS was invalidated since the previous value
+     */
+    public void update(String serviceId, Class<? extends QoSSpecification> qosClass, double value, Date timestamp, boolean reset) {
+        if (!enabled)
+            return;
+        Map<Class<? extends QoSSpecification>, HoltForecaster> serviceForecasters = forecasters.computeIfAbsent(serviceId, id -> new ConcurrentHashMap<>());
+        if (reset)
+            serviceForecasters.remove(qosClass);
+        serviceForecasters.computeIfAbsent(qosClass, c -> new HoltForecaster(levelSmoothing, trendSmoothing)).update(value, timestamp.getTime());
+    }
+
+    // Forgets the models of the services no longer in the architecture
+    public void retainServices(Set<String> servicesIds) {
+        forecasters.keySet().retainAll(servicesIds);
+    }
+
+    /**
+     * @return the value of the QoS forecast the given seconds after its latest value, or null if the model is not fitted yet
+     */
+    public Double forecast(String serviceId, Class<? extends QoSSpecification> qosClass, double seconds) {
+        if (!enabled)
+            return null;
+        HoltForecaster forecaster = forecasters.getOrDefault(serviceId, Map.of()).get(qosClass);
+        if (forecaster == null || forecaster.getCount() < minValues)
+            return null;
+        return forecaster.forecast(seconds);
+    }
+}
@@ -0,0 +1,50 @@
+package it.polimi.ramses.analyse.domain;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tunes the metrics window size of a service from its request rate, so that the metrics window of each instance holds
+ * at least minRequests requests: the low-traffic services get longer windows, the high-traffic ones shorter windows.
+ * A window is enlarged as soon as it holds too few requests, but it is shrunk only when it holds at least twice the
+ * requests needed, so that the size does not oscillate with the load.
+ */
+@Getter
+@Component
+public class WindowSizeTuner {
+    private final boolean enabled;
+    // Requests that the metrics window of an instance must hold
+    private final int minRequests;
+    private final int maxMetricsWindowSize;
+
+    public WindowSizeTuner(
+        @Value("${WINDOW_AUTO_TUNING}") boolean enabled,
+        @Value("${WINDOW_MIN_REQUESTS}") int minRequests,
+        @Value("${WINDOW_MAX_METRICS_SIZE}") int maxMetricsWindowSize
+    ) {
+        if (minRequests < 1)
+            throw new IllegalArgumentException("Window min requests must be greater than 0.");
+        if (maxMetricsWindowSize < 2)
+            throw new IllegalArgumentException("Window max metrics size must be greater than 1.");
+        this.enabled = enabled;
+        this.minRequests = minRequests;
+        this.maxMetricsWindowSize = maxMetricsWindowSize;
+    }
+
+    /**
+     * @param requestsCount the requests in the metrics windows of the instances of the service
+     * @param intervalsCount the intervals between consecutive snapshots in the same windows
+     * @return the new metrics window size, or the current one if it must not change
+     */
+    public int tuneMetricsWindowSize(int currentSize, long requestsCount, int intervalsCount) {
+        if (intervalsCount == 0)
+            return currentSize;
+        double requestsPerInterval = (double) requestsCount / intervalsCount;
+        int neededSize = requestsPerInterval <= 0 ? maxMetricsWindowSize :
+                (int) Math.min(maxMetricsWindowSize, Math.max(2, Math.ceil(minRequests / requestsPerInterval) + 1));
+        if (neededSize > currentSize || (neededSize < currentSize && (currentSize - 1) * requestsPerInterval >= 2.0 * minRequests))
+            return neededSize;
+        return currentSize;
+    }
+}
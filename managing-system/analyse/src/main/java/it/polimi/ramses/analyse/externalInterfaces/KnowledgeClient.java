@@ -3,7 +3,9 @@ package it.polimi.ramses.analyse.externalInterfaces;
 import it.polimi.ramses.knowledge.domain.Modules;
 import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
 import it.polimi.ramses.knowledge.domain.adaptation.values.QoSCollection;
+import it.polimi.ramses.knowledge.domain.architecture.DependencyGraph;
 import it.polimi.ramses.knowledge.domain.architecture.Service;
+import it.polimi.ramses.knowledge.domain.architecture.WindowSizes;
 import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
 import it.polimi.ramses.knowledge.rest.api.UpdateServiceQosCollectionRequest;
 import org.springframework.cloud.openfeign.FeignClient;
@@ -22,6 +24,9 @@ public interface KnowledgeClient {
     @GetMapping("/rest/servicesMap")
     Map<String, Service> getServicesMap();
 
+    @GetMapping("/rest/dependencyGraph")
+    DependencyGraph getDependencyGraph();
+
     @GetMapping("/rest/metrics/getLatestNOfCurrentInstance")
     List<InstanceMetricsSnapshot> getLatestNMetricsOfCurrentInstance(
             @RequestParam String serviceId,
@@ -29,6 +34,13 @@ public interface KnowledgeClient {
             @RequestParam int n
     );
 
+    @GetMapping("/rest/metrics/getWindowOfCurrentInstance")
+    List<InstanceMetricsSnapshot> getMetricsWindowOfCurrentInstance(
+            @RequestParam String serviceId,
+            @RequestParam String instanceId,
+            @RequestParam long seconds
+    );
+
     @PostMapping("/rest/proposeAdaptationOptions")
     ResponseEntity<String> proposeAdaptationOptions(@RequestBody Map<String, List<AdaptationOption>> adaptationOptions);
 
@@ -37,4 +49,7 @@ public interface KnowledgeClient {
 
     @PostMapping("/rest/updateServiceQosCollection")
     void updateServiceQosCollection(@RequestBody UpdateServiceQosCollectionRequest request);
+
+    @PutMapping("/rest/service/{serviceId}/windowSizes")
+    ResponseEntity<String> updateWindowSizes(@PathVariable String serviceId, @RequestBody WindowSizes windowSizes);
 }
\ No newline at end of file
@@ -1,9 +1,14 @@
 package it.polimi.ramses.analyse.rest;
 
 import it.polimi.ramses.analyse.domain.AnalyseService;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 
 @RestController
 @RequestMapping("/rest")
@@ -17,12 +22,31 @@ public class AnalyseRestController {
         return "OK";
     }
 
+    // Online analysis of the snapshots of a Monitor iteration
+    @PostMapping("/metrics")
+    public String analyseOnline(@RequestBody List<InstanceMetricsSnapshot> snapshots) {
+        analyseService.analyseOnline(snapshots);
+        return "OK";
+    }
+
+    // <instanceId, QoS not satisfied according to the online analysis>
+    @GetMapping("/qosBreaches")
+    public Map<String, Set<String>> getQoSBreaches() {
+        return analyseService.getOnlineAnalyser().getQoSBreaches();
+    }
+
     @PutMapping("/metricsWindowSize")
     public String changeMetricsWindowSize(@RequestParam int value) {
         analyseService.setNewMetricsWindowSize(value);
         return "OK";
     }
 
+    @PutMapping("/metricsWindowSeconds")
+    public String changeMetricsWindowSeconds(@RequestParam long value) {
+        analyseService.setNewMetricsWindowSeconds(value);
+        return "OK";
+    }
+
     @PutMapping("/analysisWindowSize")
     public String changeAnalysisWindowSize(@RequestParam int value) {
         analyseService.setNewAnalysisWindowSize(value);
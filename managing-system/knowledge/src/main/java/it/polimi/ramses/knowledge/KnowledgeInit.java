@@ -3,7 +3,9 @@ package it.polimi.ramses.knowledge;
 import it.polimi.ramses.knowledge.domain.architecture.Instance;
 import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
 import it.polimi.ramses.knowledge.domain.architecture.ServiceConfiguration;
+import it.polimi.ramses.knowledge.domain.architecture.ServiceImplementation;
 import it.polimi.ramses.knowledge.domain.persistence.ConfigurationRepository;
+import it.polimi.ramses.knowledge.domain.persistence.ModelCheckpointStore;
 import it.polimi.ramses.knowledge.domain.persistence.Vulnerability;
 import it.polimi.ramses.knowledge.domain.persistence.VulnerabilityRepository;
 import it.polimi.ramses.knowledge.externalinterfaces.ProbeClient;
@@ -13,21 +15,31 @@ import it.polimi.ramses.knowledge.parser.SystemArchitectureParser;
 import it.polimi.ramses.knowledge.parser.SystemBenchmarkParser;
 import it.polimi.ramses.knowledge.domain.KnowledgeService;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
+import it.polimi.ramses.knowledge.domain.adaptation.values.QoSCollection;
+import it.polimi.ramses.knowledge.domain.adaptation.values.QoSHistory;
 import it.polimi.ramses.knowledge.domain.architecture.Service;
 import it.polimi.ramses.knowledge.parser.VulnerabilityParser;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ResourceUtils;
-import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Component
+// The id sequences must be moved past the existing rows before any entity is persisted
+@DependsOn("idSequencesInitializer")
 public class KnowledgeInit implements InitializingBean {
     @Autowired
     private KnowledgeService knowledgeService;
@@ -39,23 +51,34 @@ public class KnowledgeInit implements InitializingBean {
     private Environment environment;
     @Autowired
     private VulnerabilityRepository vulnerabilityRepository;
+    @Autowired
+    private ModelCheckpointStore modelCheckpointStore;
+    @Value("${KNOWLEDGE_INIT_PARALLELISM}")
+    private int initParallelism;
 
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        long start = System.currentTimeMillis();
         String configDirPath = environment.getProperty("CONFIGURATION_PATH");
         if (configDirPath == null) {
             configDirPath = Paths.get("").toAbsolutePath().toString();
             log.warn("No configuration path specified. Using current working directory: {}", configDirPath);
         }
-        FileReader architectureReader = new FileReader(ResourceUtils.getFile(configDirPath + "/system_architecture.json"));
-        List<Service> serviceList = SystemArchitectureParser.parse(architectureReader);
-        FileReader qoSReader = new FileReader(ResourceUtils.getFile(configDirPath + "/qos_specification.json"));
-        Map<String, List<QoSSpecification>> servicesQoS = QoSParser.parse(qoSReader);
-        FileReader benchmarkReader = new FileReader(ResourceUtils.getFile(configDirPath + "/system_benchmarks.json"));
-        Map<String, List<SystemBenchmarkParser.ServiceImplementationBenchmarks>> servicesBenchmarks = SystemBenchmarkParser.parse(benchmarkReader);
-        FileReader vulnerabilitiesReader = new FileReader(ResourceUtils.getFile(configDirPath + "/vulnerabilities.json"));
-        Map<String, List<Vulnerability>> servicesVulnerabilities = VulnerabilityParser.parse(vulnerabilitiesReader, serviceList);
+        List<Service> serviceList;
+        Map<String, List<QoSSpecification>> servicesQoS;
+        Map<String, List<SystemBenchmarkParser.ServiceImplementationBenchmarks>> servicesBenchmarks;
+        Map<String, List<Vulnerability>> servicesVulnerabilities;
+        try (BufferedReader architectureReader = openConfigurationFile(configDirPath, "system_architecture.json");
+             BufferedReader qoSReader = openConfigurationFile(configDirPath, "qos_specification.json");
+             BufferedReader benchmarkReader = openConfigurationFile(configDirPath, "system_benchmarks.json");
+             BufferedReader vulnerabilitiesReader = openConfigurationFile(configDirPath, "vulnerabilities.json")) {
+            serviceList = SystemArchitectureParser.parse(architectureReader);
+            servicesQoS = QoSParser.parse(qoSReader);
+            servicesBenchmarks = SystemBenchmarkParser.parse(benchmarkReader);
+            servicesVulnerabilities = VulnerabilityParser.parse(vulnerabilitiesReader, serviceList);
+        }
+        log.debug("Configuration files parsed in {} ms", System.currentTimeMillis() - start);
 
         // Compute the vulnerability score for each service implementation
         serviceList.forEach(service ->
@@ -67,9 +90,7 @@ public class KnowledgeInit implements InitializingBean {
                     serviceImplementation.setVulnerabilityScore(score);
                 }));
 
-        // Save vulnerabilities in the database
-        vulnerabilityRepository.deleteAll();
-        servicesVulnerabilities.forEach((serviceId, vulnerabilities) -> vulnerabilityRepository.saveAll(vulnerabilities));
+        saveVulnerabilities(servicesVulnerabilities);
 
         Map<String, ServiceInfo> probeSystemRuntimeArchitecture = probeClient.getSystemArchitecture();
 
@@ -83,22 +104,26 @@ public class KnowledgeInit implements InitializingBean {
             }
             service.setCurrentImplementationId(serviceInfo.getCurrentImplementationId());
             service.setAllQoS(servicesQoS.get(service.getServiceId()));
-            servicesBenchmarks.get(service.getServiceId()).forEach(serviceImplementationBenchmarks -> {
-                serviceImplementationBenchmarks.getQoSBenchmarks().forEach((adaptationClass, value) ->
-                        service.getPossibleImplementations()
-                                .get(serviceImplementationBenchmarks.getServiceImplementationId())
-                                .setBenchmark(adaptationClass, value));
+            List<SystemBenchmarkParser.ServiceImplementationBenchmarks> serviceBenchmarks = servicesBenchmarks.get(service.getServiceId());
+            if (serviceBenchmarks == null)
+                throw new RuntimeException("Service " + service.getServiceId() + " not found in system_benchmarks.json");
+            serviceBenchmarks.forEach(serviceImplementationBenchmarks -> {
+                ServiceImplementation serviceImplementation = service.getPossibleImplementations().get(serviceImplementationBenchmarks.getServiceImplementationId());
+                if (serviceImplementation == null)
+                    throw new RuntimeException("Service " + service.getServiceId() + " has no implementation " + serviceImplementationBenchmarks.getServiceImplementationId() + " of system_benchmarks.json");
+                serviceImplementationBenchmarks.getQoSBenchmarks().forEach(serviceImplementation::setBenchmark);
             });
+            checkBenchmarks(service);
             instances.forEach(instanceId -> {
                 if (!instanceId.split("@")[0].equals(service.getCurrentImplementationId()))
                     throw new RuntimeException("Service " + service.getServiceId() + " has more than one running implementation");
                 service.createInstance(instanceId.split("@")[1]).setCurrentStatus(InstanceStatus.ACTIVE);
             });
-            service.setConfiguration(probeClient.getServiceConfiguration(service.getServiceId(), service.getCurrentImplementationId()));
-            configurationRepository.save(service.getConfiguration());
-            knowledgeService.addService(service);
         });
 
+        fetchConfigurations(serviceList);
+        configurationRepository.saveAll(serviceList.stream().map(Service::getConfiguration).toList());
+
         for (Service service : serviceList) {
             ServiceConfiguration configuration = service.getConfiguration();
             if (configuration.getLoadBalancerType() != null && configuration.getLoadBalancerType().equals(ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM)) {
@@ -110,10 +135,119 @@ public class KnowledgeInit implements InitializingBean {
                 }
             }
         }
+        // Warm restart: the QoS histories of the checkpoint are restored if it still matches the running system
+        Map<String, Service> checkpointedServices = modelCheckpointStore.load();
+        if (checkpointedServices != null && isCheckpointValid(checkpointedServices, serviceList)) {
+            serviceList.forEach(service -> restoreQoSHistories(service, checkpointedServices.get(service.getServiceId())));
+            log.info("QoS histories restored from checkpoint");
+        }
+
+        // The services are published in the Knowledge model once they are complete
+        knowledgeService.addServices(serviceList);
+        knowledgeService.loadLatestQoSValues();
 
         for (Service service : serviceList) {
             log.debug(service.toString());
         }
-        log.info("Knowledge initialized");
+        log.info("Knowledge initialized with {} services in {} ms", serviceList.size(), System.currentTimeMillis() - start);
+    }
+
+    // Every implementation needs a benchmark for each QoS of the service, except Vulnerability, which is computed from the vulnerabilities
+    private void checkBenchmarks(Service service) {
+        service.getPossibleImplementations().values().forEach(serviceImplementation ->
+                service.getQoSSpecifications().keySet().forEach(qosClass -> {
+                    if (!qosClass.equals(it.polimi.ramses.knowledge.domain.adaptation.specifications.Vulnerability.class) && !serviceImplementation.getQoSBenchmarks().containsKey(qosClass))
+                        throw new RuntimeException("Implementation " + serviceImplementation.getImplementationId() + " of service " + service.getServiceId() +
+                                " has no " + qosClass.getSimpleName() + " benchmark in system_benchmarks.json, but the QoS is declared in qos_specification.json");
+                }));
+    }
+
+    private BufferedReader openConfigurationFile(String configDirPath, String fileName) throws IOException {
+        return Files.newBufferedReader(ResourceUtils.getFile(configDirPath + "/" + fileName).toPath(), StandardCharsets.UTF_8);
+    }
+
+    // Each configuration requires two requests to the config server through the Probe, so they are fetched concurrently
+    private void fetchConfigurations(List<Service> serviceList) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(initParallelism, serviceList.size())));
+        try {
+            Map<Service, Future<ServiceConfiguration>> configurations = new LinkedHashMap<>();
+            for (Service service : serviceList)
+                configurations.put(service, executor.submit(() -> probeClient.getServiceConfiguration(service.getServiceId(), service.getCurrentImplementationId())));
+            for (Map.Entry<Service, Future<ServiceConfiguration>> entry : configurations.entrySet()) {
+                try {
+                    entry.getKey().setConfiguration(entry.getValue().get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Error while fetching the configuration of service " + entry.getKey().getServiceId(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.debug("Configurations of {} services fetched in {} ms", serviceList.size(), System.currentTimeMillis() - start);
+    }
+
+    // Upsert of the vulnerabilities: the existing rows are updated in place, the new ones inserted and the stale ones deleted, in a single batch each
+    private void saveVulnerabilities(Map<String, List<Vulnerability>> servicesVulnerabilities) {
+        // <serviceImplementationId@jarName, vulnerability>
+        Map<String, Vulnerability> existingVulnerabilities = new HashMap<>();
+        List<Vulnerability> staleVulnerabilities = new LinkedList<>();
+        for (Vulnerability vulnerability : vulnerabilityRepository.findAll()) {
+            if (existingVulnerabilities.putIfAbsent(vulnerability.getServiceImplementationId() + "@" + vulnerability.getJarName(), vulnerability) != null)
+                staleVulnerabilities.add(vulnerability);
+        }
+        List<Vulnerability> toSave = new LinkedList<>();
+        servicesVulnerabilities.values().forEach(vulnerabilities -> vulnerabilities.forEach(vulnerability -> {
+            Vulnerability existing = existingVulnerabilities.remove(vulnerability.getServiceImplementationId() + "@" + vulnerability.getJarName());
+            if (existing == null) {
+                toSave.add(vulnerability);
+            } else if (!Objects.equals(existing.getScore(), vulnerability.getScore()) || !Objects.equals(existing.getServiceId(), vulnerability.getServiceId())) {
+                existing.setScore(vulnerability.getScore());
+                existing.setServiceId(vulnerability.getServiceId());
+                toSave.add(existing);
+            }
+        }));
+        staleVulnerabilities.addAll(existingVulnerabilities.values());
+        vulnerabilityRepository.saveAll(toSave);
+        vulnerabilityRepository.deleteAll(staleVulnerabilities);
+        log.debug("Vulnerabilities saved: {} inserted or updated, {} deleted", toSave.size(), staleVulnerabilities.size());
+    }
+
+    // The checkpoint must contain the same services of the architecture, with the same implementation and instances running now
+    private boolean isCheckpointValid(Map<String, Service> checkpointedServices, List<Service> serviceList) {
+        if (!checkpointedServices.keySet().equals(serviceList.stream().map(Service::getServiceId).collect(Collectors.toSet()))) {
+            log.info("Discarding checkpoint: the services are not the ones of the architecture");
+            return false;
+        }
+        for (Service service : serviceList) {
+            Service checkpointedService = checkpointedServices.get(service.getServiceId());
+            if (!service.getCurrentImplementationId().equals(checkpointedService.getCurrentImplementationId())) {
+                log.info("Discarding checkpoint: service {} changed implementation", service.getServiceId());
+                return false;
+            }
+            if (!service.getCurrentImplementation().getInstances().keySet().equals(checkpointedService.getCurrentImplementation().getInstances().keySet())) {
+                log.info("Discarding checkpoint: the instances of service {} changed", service.getServiceId());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Only the QoS values are restored: the specifications, benchmarks, vulnerabilities and configurations are the current ones
+    private void restoreQoSHistories(Service service, Service checkpointedService) {
+        restoreQoSHistories(service.getCurrentImplementation().getQoSCollection(), checkpointedService.getCurrentImplementation().getQoSCollection());
+        service.getInstances().forEach(instance ->
+                restoreQoSHistories(instance.getQoSCollection(), checkpointedService.getInstance(instance.getInstanceId()).getQoSCollection()));
+    }
+
+    private void restoreQoSHistories(QoSCollection qosCollection, QoSCollection checkpointedQoSCollection) {
+        qosCollection.getQoSHistoryMap().forEach((qosClass, history) -> {
+            QoSHistory<? extends QoSSpecification> checkpointedHistory = checkpointedQoSCollection.getQoSHistoryMap().get(qosClass);
+            if (checkpointedHistory == null)
+                return;
+            history.setValuesStack(checkpointedHistory.getValuesStack());
+            if (checkpointedHistory.getCurrentValue() != null)
+                history.setCurrentValue(checkpointedHistory.getCurrentValue());
+        });
     }
 }
@@ -1,94 +1,253 @@
 package it.polimi.ramses.knowledge.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Availability;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.AverageResponseTime;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.ResponseTimePercentile;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Throughput;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Vulnerability;
 import it.polimi.ramses.knowledge.domain.adaptation.values.QoSCollection;
 import it.polimi.ramses.knowledge.domain.adaptation.values.QoSHistory;
+import it.polimi.ramses.knowledge.domain.architecture.DependencyGraph;
 import it.polimi.ramses.knowledge.domain.architecture.Instance;
 import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
 import it.polimi.ramses.knowledge.domain.architecture.Service;
 import it.polimi.ramses.knowledge.domain.architecture.ServiceConfiguration;
+import it.polimi.ramses.knowledge.domain.architecture.ServiceImplementation;
+import it.polimi.ramses.knowledge.domain.architecture.WindowSizes;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsCache;
 import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.MetricsAggregate;
+import it.polimi.ramses.knowledge.domain.metrics.MetricsRollup;
 import it.polimi.ramses.knowledge.domain.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Pageable;
+import org.springframework.beans.factory.annotation.Value;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Slf4j
 @org.springframework.stereotype.Service
 public class KnowledgeService {
     @Autowired
-    private MetricsRepository metricsRepository;
+    private MetricsStorage metricsStorage;
+
+    @Autowired
+    private MetricsRollupRepository metricsRollupRepository;
+
+    @Autowired
+    private MetricsQueryEngine metricsQueryEngine;
 
     @Autowired
     private ConfigurationRepository configurationRepository;
 
     @Autowired
-    private AdaptationChoicesRepository adaptationChoicesRepository;
+    private AdaptationEventLog adaptationEventLog;
 
     @Autowired
     private QoSRepository qosRepository;
 
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    // Working copy of the architecture model. It is accessed only by the writers, while holding the modelLock
+    private final Map<String, Service> servicesMap = new HashMap<>();
+    private final ReentrantLock modelLock = new ReentrantLock();
+    // Services changed by the current writer, to be copied in the next published snapshot
+    private final Set<String> changedServices = new HashSet<>();
+    // Immutable snapshot of the architecture model read by the REST API. Each service is deep-copied only when it changes,
+    // so the readers never block and never see a partially applied update
+    private final AtomicReference<Map<String, Service>> servicesSnapshot = new AtomicReference<>(Map.of());
+    // Mapper used to copy the services without their QoS values and latest metrics snapshots, which are shared with the snapshot
+    private final ObjectMapper snapshotMapper;
+    // Max number of values kept in each QoS history. Older values are only in the database
+    private final int qosHistoryMaxSize;
+    // Dependencies among the services of the snapshot. Rebuilt only when a service is added or replaced
     @Getter
-    private final Map<String, Service> servicesMap = new ConcurrentHashMap<>();
+    private volatile DependencyGraph dependencyGraph = new DependencyGraph();
+    private boolean dependenciesChanged = false;
 
     private Set<Instance> previouslyActiveInstances = new HashSet<>();
 
+    // <serviceId, <implementationId|instanceId|qos, latest QoS value persisted>>. The instanceId is null for the values of the service
+    private final Map<String, Map<String, QoSValueEntity>> latestQoSValues = new ConcurrentHashMap<>();
+
+    // Latest metrics snapshots of each instance, used to serve the metrics windows without querying the database
+    private final InstanceMetricsCache metricsCache;
+    // Metrics window size of the services without one set by the Analyse or by an admin
+    private final int defaultMetricsWindowSize;
+
     // <serviceId, AdaptationOptions proposed by the Analyse>
-    @Getter @Setter
-    private Map<String, List<AdaptationOption>> proposedAdaptationOptions = new HashMap<>();
+    @Getter
+    private volatile Map<String, List<AdaptationOption>> proposedAdaptationOptions = Map.of();
 
     // <serviceId, AdaptationOptions chosen by the Plan (in this implementation, the Plan chooses ONE option per service)>
-    @Getter @Setter
-    private Map<String, List<AdaptationOption>> chosenAdaptationOptions = new HashMap<>();
+    @Getter
+    private volatile Map<String, List<AdaptationOption>> chosenAdaptationOptions = Map.of();
 
     @Getter
-    private Modules activeModule = null;
+    private volatile Modules activeModule = null;
 
     @Getter @Setter
-    private Modules failedModule = null;
-
+    private volatile Modules failedModule = null;
+
+    public KnowledgeService(
+        @Value("${METRICS_CACHE_SIZE}") int metricsCacheSize,
+        @Value("${QOS_HISTORY_MAX_SIZE}") int qosHistoryMaxSize,
+        @Value("${DEFAULT_METRICS_WINDOW_SIZE}") int defaultMetricsWindowSize,
+        ObjectMapper objectMapper
+    ) {
+        if (qosHistoryMaxSize < 1)
+            throw new IllegalArgumentException("QoS history max size must be greater than 0.");
+        if (defaultMetricsWindowSize < 2 || defaultMetricsWindowSize > metricsCacheSize)
+            throw new IllegalArgumentException("Default metrics window size must be greater than 1 and not greater than the metrics cache size.");
+        metricsCache = new InstanceMetricsCache(metricsCacheSize);
+        this.defaultMetricsWindowSize = defaultMetricsWindowSize;
+        this.qosHistoryMaxSize = qosHistoryMaxSize;
+        snapshotMapper = objectMapper.copy()
+                .addMixIn(QoSHistory.class, WithoutValuesStack.class)
+                .addMixIn(Instance.class, WithoutLatestMetricsSnapshot.class);
+        log.debug("MetricsCacheSize: {}, QoSHistoryMaxSize: {}, DefaultMetricsWindowSize: {}", metricsCacheSize, qosHistoryMaxSize, defaultMetricsWindowSize);
+    }
 
     public void setActiveModule(Modules activeModule) {
-        this.activeModule = activeModule;
-        if (activeModule == Modules.MONITOR) {
-            // A new loop is started: reset the previous chosen options and the current proposed adaptation options
-            for (String serviceId : chosenAdaptationOptions.keySet()) {
-                servicesMap.get(serviceId).setLatestAdaptationDate(new Date());
+        updateModel(() -> {
+            this.activeModule = activeModule;
+            if (activeModule == Modules.MONITOR) {
+                // A new loop is started: reset the previous chosen options and the current proposed adaptation options
+                for (String serviceId : chosenAdaptationOptions.keySet()) {
+                    getServiceToUpdate(serviceId).setLatestAdaptationDate(new Date());
+                }
+                proposedAdaptationOptions = Map.of();
+                chosenAdaptationOptions = Map.of();
             }
-            proposedAdaptationOptions = new HashMap<>();
-            chosenAdaptationOptions = new HashMap<>();
-        }
+        });
     }
 
     public Date getLatestAdaptationDateForService(String serviceId) {
-        return servicesMap.get(serviceId).getLatestAdaptationDate();
+        return getService(serviceId).getLatestAdaptationDate();
     }
 
     // Called by the KnowledgeInit
     public void addService(Service service) {
-        servicesMap.put(service.getServiceId(), service);
+        updateModel(() -> {
+            servicesMap.put(service.getServiceId(), service);
+            changedServices.add(service.getServiceId());
+            dependenciesChanged = true;
+        });
+    }
+
+    // The services are published in a single snapshot
+    public void addServices(Collection<Service> services) {
+        updateModel(() -> services.forEach(this::addService));
+    }
+
+    public Map<String, Service> getServicesMap() {
+        return servicesSnapshot.get();
     }
-    
 
     public List<Service> getServicesList(){
-        return servicesMap.values().stream().toList();
+        return servicesSnapshot.get().values().stream().toList();
     }
 
+    /**
+     * Applies a batch of changes to the working copy of the model, then publishes a new snapshot with a copy of the
+     * services changed. The writers are serialized. Nested calls publish the snapshot only once, at the end of the outermost one.
+     */
+    private void updateModel(Runnable update) {
+        modelLock.lock();
+        try {
+            update.run();
+        } finally {
+            try {
+                if (modelLock.getHoldCount() == 1)
+                    publishSnapshot();
+            } finally {
+                modelLock.unlock();
+            }
+        }
+    }
+
+    // Returns the working copy of the service, which will be copied in the next snapshot. Must be called by a writer
+    private Service getServiceToUpdate(String serviceId) {
+        changedServices.add(serviceId);
+        return servicesMap.get(serviceId);
+    }
+
+    private void publishSnapshot() {
+        if (changedServices.isEmpty())
+            return;
+        Map<String, Service> newSnapshot = new HashMap<>(servicesSnapshot.get());
+        for (String serviceId : changedServices) {
+            Service service = servicesMap.get(serviceId);
+            if (service == null)
+                newSnapshot.remove(serviceId);
+            else
+                newSnapshot.put(serviceId, copyOf(service));
+        }
+        changedServices.clear();
+        servicesSnapshot.set(Collections.unmodifiableMap(newSnapshot));
+        if (dependenciesChanged) {
+            dependencyGraph = DependencyGraph.of(newSnapshot.values());
+            dependenciesChanged = false;
+        }
+    }
+
+    // Deep copy through the same JSON representation used to send the services to the other modules.
+    // The stacks of QoS values and the latest metrics snapshots of the instances are never modified in place (they are
+    // replaced), so they are shared instead of being copied. The snapshots are most of the size of a service
+    private Service copyOf(Service service) {
+        Service copy;
+        try {
+            copy = snapshotMapper.readValue(snapshotMapper.writeValueAsBytes(service), Service.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while copying service " + service.getServiceId(), e);
+        }
+        service.getPossibleImplementations().forEach((implementationId, implementation) -> {
+            ServiceImplementation implementationCopy = copy.getPossibleImplementations().get(implementationId);
+            shareValuesStacks(implementation.getQoSCollection(), implementationCopy.getQoSCollection());
+            implementation.getInstances().forEach((instanceId, instance) -> {
+                Instance instanceCopy = implementationCopy.getInstances().get(instanceId);
+                shareValuesStacks(instance.getQoSCollection(), instanceCopy.getQoSCollection());
+                instanceCopy.setLatestInstanceMetricsSnapshot(instance.getLatestInstanceMetricsSnapshot());
+            });
+        });
+        return copy;
+    }
+
+    private static void shareValuesStacks(QoSCollection qosCollection, QoSCollection qosCollectionCopy) {
+        qosCollection.getQoSHistoryMap().forEach((qosClass, history) -> qosCollectionCopy.getQoSHistoryMap().get(qosClass).setValuesStack(history.getValuesStack()));
+    }
+
+    @JsonIgnoreProperties("valuesStack")
+    private static abstract class WithoutValuesStack {}
+
+    @JsonIgnoreProperties("latestInstanceMetricsSnapshot")
+    private static abstract class WithoutLatestMetricsSnapshot {}
+
 
     public void addMetricsFromBuffer(Queue<List<InstanceMetricsSnapshot>> metricsBuffer) {
+        updateModel(() -> addMetricsFromBufferToModel(metricsBuffer));
+    }
+
+    private void addMetricsFromBufferToModel(Queue<List<InstanceMetricsSnapshot>> metricsBuffer) {
         try {
             Set<Instance> shutdownInstancesStillMonitored = new HashSet<>();
+            // The snapshots are persisted in background once the whole buffer is processed
+            List<InstanceMetricsSnapshot> metricsToPersist = new LinkedList<>();
             log.info("Saving new set of metrics");
             for (List<InstanceMetricsSnapshot> metricsList : metricsBuffer) {
                 Set<Instance> currentlyActiveInstances = new HashSet<>();
@@ -102,9 +261,11 @@ public class KnowledgeService {
                     // If the instance has been shutdown, skip its metrics snapshot in the buffer. Next buffer won't contain its metrics snapshots.
                     if (instance.getCurrentStatus() != InstanceStatus.SHUTDOWN) {
                         if (!instance.getLatestInstanceMetricsSnapshot().equals(metricsSnapshot)) {
-                            metricsRepository.save(metricsSnapshot);
+                            metricsToPersist.add(metricsSnapshot);
+                            metricsCache.add(metricsSnapshot);
                             instance.setLatestInstanceMetricsSnapshot(metricsSnapshot);
                             instance.setCurrentStatus(metricsSnapshot.getStatus());
+                            changedServices.add(service.getServiceId());
                         } else
                             log.warn("Metrics Snapshot already saved: " + metricsSnapshot);
                         if (metricsSnapshot.isActive() || metricsSnapshot.isUnreachable())
@@ -127,12 +288,15 @@ public class KnowledgeService {
                         InstanceMetricsSnapshot metrics = new InstanceMetricsSnapshot(instance.getServiceId(), instance.getInstanceId());
                         metrics.setStatus(InstanceStatus.FAILED);
                         metrics.applyTimestamp();
-                        metricsRepository.save(metrics);
+                        metricsToPersist.add(metrics);
+                        metricsCache.add(metrics);
                         instance.setLatestInstanceMetricsSnapshot(metrics);
+                        changedServices.add(instance.getServiceId());
                     });
                 }
                 previouslyActiveInstances = new HashSet<>(currentlyActiveInstances);
             }
+            metricsStorage.save(metricsToPersist);
             // For each service, remove from the map of instances the instances that have been shutdown that are not monitored anymore
             for (Service service : servicesMap.values()) {
                 Set<Instance> instancesToBeRemoved = new HashSet<>(service.getShutdownInstances());
@@ -140,6 +304,9 @@ public class KnowledgeService {
                 for (Instance instance : instancesToBeRemoved) {
                     log.debug("{}: Removing shutdown instance {}", service.getServiceId(), instance.getInstanceId());
                     service.removeInstance(instance);
+                    metricsCache.remove(instance.getInstanceId());
+                    removeLatestQoSValues(service.getServiceId(), instance.getInstanceId());
+                    changedServices.add(service.getServiceId());
                 }
             }
         } catch (Exception e) {
@@ -150,58 +317,118 @@ public class KnowledgeService {
     }
 
     public void markInstanceAsShutdown(String serviceId, String instanceId) {
-        Service service = servicesMap.get(serviceId);
-        Instance instance = service.getInstance(instanceId);
-        InstanceMetricsSnapshot metrics = new InstanceMetricsSnapshot(instance.getServiceId(), instance.getInstanceId());
-        metrics.setStatus(InstanceStatus.SHUTDOWN);
-        metrics.applyTimestamp();
-        metricsRepository.save(metrics);
-        instance.setCurrentStatus(InstanceStatus.SHUTDOWN);
-        instance.setLatestInstanceMetricsSnapshot(metrics);
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            Instance instance = service.getInstance(instanceId);
+            InstanceMetricsSnapshot metrics = new InstanceMetricsSnapshot(instance.getServiceId(), instance.getInstanceId());
+            metrics.setStatus(InstanceStatus.SHUTDOWN);
+            metrics.applyTimestamp();
+            metricsStorage.save(metrics);
+            metricsCache.reset(instanceId);
+            instance.setCurrentStatus(InstanceStatus.SHUTDOWN);
+            instance.setLatestInstanceMetricsSnapshot(metrics);
+        });
     }
 
     public void changeServiceImplementation(String serviceId, String newImplementationId, List<String> newInstancesAddresses){
-        Service service = servicesMap.get(serviceId);
-        service.getCurrentImplementation().setPenalty(0);
-
-        for (Instance instance : service.getInstances()) {
-            markInstanceAsShutdown(serviceId, instance.getInstanceId());
-            service.removeInstance(instance);
-        }
-        service.setCurrentImplementationId(newImplementationId);
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            service.getCurrentImplementation().setPenalty(0);
+
+            for (Instance instance : service.getInstances()) {
+                markInstanceAsShutdown(serviceId, instance.getInstanceId());
+                service.removeInstance(instance);
+                metricsCache.remove(instance.getInstanceId());
+                removeLatestQoSValues(serviceId, instance.getInstanceId());
+            }
+            service.setCurrentImplementationId(newImplementationId);
 
-        for (String instanceAddress : newInstancesAddresses) {
-            service.createInstance(instanceAddress);
-        }
+            for (String instanceAddress : newInstancesAddresses) {
+                service.createInstance(instanceAddress);
+            }
 
-        if (service.getConfiguration().getLoadBalancerType() == ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM) {
-            Map<String, Double> newWeights = new HashMap<>();
-            for(Instance instance : service.getInstances()){
-                newWeights.put(instance.getInstanceId(), 1.0/service.getInstances().size());
+            if (service.getConfiguration().getLoadBalancerType() == ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM) {
+                Map<String, Double> newWeights = new HashMap<>();
+                for(Instance instance : service.getInstances()){
+                    newWeights.put(instance.getInstanceId(), 1.0/service.getInstances().size());
+                }
+                setLoadBalancerWeights(serviceId, newWeights);
             }
-            setLoadBalancerWeights(serviceId, newWeights);
-        }
+        });
     }
 
     public void addInstance(String serviceId, String instanceAddress){
-        Service service = servicesMap.get(serviceId);
-        service.createInstance(instanceAddress);
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            service.createInstance(instanceAddress);
+        });
     }
 
     public InstanceMetricsSnapshot getMetrics(long id) {
-        return metricsRepository.findById(id).orElse(null);
+        return metricsStorage.findById(id);
     }
 
     public void changeServicesConfigurations(Map<String, ServiceConfiguration> newConfigurations){
-        for (String serviceId : newConfigurations.keySet()){
-            Service service = servicesMap.get(serviceId);
-            service.setConfiguration(newConfigurations.get(serviceId));
-            configurationRepository.save(newConfigurations.get(serviceId));
-        }
+        updateModel(() -> {
+            for (String serviceId : newConfigurations.keySet()){
+                Service service = getServiceToUpdate(serviceId);
+                service.setConfiguration(newConfigurations.get(serviceId));
+                configurationRepository.save(newConfigurations.get(serviceId));
+            }
+        });
+    }
+
+    // The metrics window of the instance, with the metrics window size of its service, or the default one if not set
+    public List<InstanceMetricsSnapshot> getLatestMetricsWindowOfCurrentInstance(String serviceId, String instanceId) {
+        WindowSizes windowSizes = getService(serviceId).getWindowSizes();
+        if (windowSizes != null && windowSizes.isTimeBased())
+            return getMetricsWindowOfCurrentInstance(serviceId, instanceId, windowSizes.getMetricsWindowSeconds());
+        if (windowSizes == null || windowSizes.getMetricsWindowSize() == null)
+            return getLatestNMetricsOfCurrentInstance(serviceId, instanceId, defaultMetricsWindowSize);
+        return getLatestNMetricsOfCurrentInstance(serviceId, instanceId, windowSizes.getMetricsWindowSize());
     }
 
     public List<InstanceMetricsSnapshot> getLatestNMetricsOfCurrentInstance(String serviceId, String instanceId, int n) {
-        QoSCollection qosCollection = servicesMap.get(serviceId).getInstance(instanceId).getQoSCollection();
+        Date after = getLatestQoSValueDate(serviceId, instanceId);
+        List<InstanceMetricsSnapshot> cachedMetrics = metricsCache.getLatestN(instanceId, after, n);
+        if (cachedMetrics == null && seedMetricsCache(instanceId))
+            cachedMetrics = metricsCache.getLatestN(instanceId, after, n);
+        if (cachedMetrics != null)
+            return cachedMetrics;
+        // The window is older than the snapshots kept in memory
+        log.debug("Metrics window of instance {} not in cache. Querying the database", instanceId);
+        writeBehindQueue.flush();
+        return metricsStorage.findLatestOfCurrentInstance(instanceId, after, n);
+    }
+
+    // Time-based metrics window: the snapshots of the instance spanning the latest windowSeconds, empty if they do not span it yet
+    public List<InstanceMetricsSnapshot> getMetricsWindowOfCurrentInstance(String serviceId, String instanceId, long windowSeconds) {
+        if (windowSeconds < 1)
+            throw new IllegalArgumentException("Metrics window seconds must be greater than 0.");
+        Date after = getLatestQoSValueDate(serviceId, instanceId);
+        List<InstanceMetricsSnapshot> cachedMetrics = metricsCache.getLatestInWindow(instanceId, after, windowSeconds * 1000);
+        if (cachedMetrics == null && seedMetricsCache(instanceId))
+            cachedMetrics = metricsCache.getLatestInWindow(instanceId, after, windowSeconds * 1000);
+        if (cachedMetrics != null)
+            return cachedMetrics;
+        log.debug("Metrics window of instance {} not in cache. Querying the database", instanceId);
+        writeBehindQueue.flush();
+        return metricsStorage.findWindowOfCurrentInstance(instanceId, after, windowSeconds * 1000);
+    }
+
+    // Cold start: loads the latest snapshots of the current run of the instance in the cache. Returns false if it was already complete
+    private boolean seedMetricsCache(String instanceId) {
+        if (metricsCache.isComplete(instanceId))
+            return false;
+        log.debug("Seeding the metrics cache of instance {} from the database", instanceId);
+        writeBehindQueue.flush();
+        metricsCache.seed(instanceId, metricsStorage.findLatestOfCurrentInstance(instanceId, MetricsRepository.MIN_TIMESTAMP, metricsCache.getCapacity()));
+        return true;
+    }
+
+    // The metrics windows start after the latest QoS values of the instance, so that each snapshot is used once
+    private Date getLatestQoSValueDate(String serviceId, String instanceId) {
+        QoSCollection qosCollection = getService(serviceId).getInstance(instanceId).getQoSCollection();
         QoSHistory.Value availabilityLatestValue = qosCollection.getQoSHistory(Availability.class).getLatestValue();
         QoSHistory.Value artLatestValue = qosCollection.getQoSHistory(AverageResponseTime.class).getLatestValue();
         if (availabilityLatestValue == null)
@@ -210,76 +437,84 @@ public class KnowledgeService {
             artLatestValue = qosCollection.getQoSHistory(AverageResponseTime.class).getCurrentValue();
         if (availabilityLatestValue == null || artLatestValue == null)
             throw new RuntimeException("THIS SHOULD NOT HAPPEN");
-        return metricsRepository.findLatestOfCurrentInstanceOrderByTimestampDesc(instanceId, artLatestValue.getTimestamp().after(availabilityLatestValue.getTimestamp()) ? artLatestValue.getTimestamp() : availabilityLatestValue.getTimestamp(), Pageable.ofSize(n)).stream().toList();
+        return artLatestValue.getTimestamp().after(availabilityLatestValue.getTimestamp()) ? artLatestValue.getTimestamp() : availabilityLatestValue.getTimestamp();
     }
 
     public List<InstanceMetricsSnapshot> getAllInstanceMetricsBetween(String instanceId, String startDateStr, String endDateStr) {
         Date startDate = Date.from(LocalDateTime.parse(startDateStr).toInstant(ZoneOffset.UTC));
         Date endDate = Date.from(LocalDateTime.parse(endDateStr).toInstant(ZoneOffset.UTC));
-        return metricsRepository.findAllByInstanceIdAndTimestampBetween(instanceId, startDate, endDate).stream().toList();
+        return metricsStorage.findAllByInstanceIdBetween(instanceId, startDate, endDate);
     }
 
     public InstanceMetricsSnapshot getLatestByInstanceId(String instanceId) {
-        return metricsRepository.findLatestByInstanceId(instanceId).stream().findFirst().orElse(null);
+        return metricsStorage.findLatestByInstanceId(instanceId);
     }
 
     public List<InstanceMetricsSnapshot> getAllLatestByServiceId(String serviceId) {
-        return metricsRepository.findLatestByServiceId(serviceId).stream().toList();
+        return metricsStorage.findLatestByServiceId(serviceId);
     }
 
     public Service getService(String serviceId) {
-        return servicesMap.get(serviceId);
+        return servicesSnapshot.get().get(serviceId);
     }
 
     public List<AdaptationOption> getChosenAdaptationOptionsHistory(String serviceId, int n) {
-        return adaptationChoicesRepository.findAllByServiceIdOrderByTimestampDesc(serviceId, Pageable.ofSize(n)).stream().toList();
+        return adaptationEventLog.getLatest(serviceId, n);
     }
 
     public Map<String, List<AdaptationOption>> getChosenAdaptationOptionsHistory(int n) {
-        return adaptationChoicesRepository.findAll(Pageable.ofSize(n)).stream().collect(Collectors.groupingBy(AdaptationOption::getServiceId));
+        return adaptationEventLog.getLatest(n).stream().collect(Collectors.groupingBy(AdaptationOption::getServiceId));
     }
 
     public void proposeAdaptationOptions(Map<String, List<AdaptationOption>> proposedAdaptationOptions) {
-        this.proposedAdaptationOptions = proposedAdaptationOptions;
-        for (String serviceId : proposedAdaptationOptions.keySet()) {
-            if (!proposedAdaptationOptions.get(serviceId).isEmpty()) {
-                Service service = servicesMap.get(serviceId);
-                service.getCurrentImplementation().incrementPenalty();
+        updateModel(() -> {
+            this.proposedAdaptationOptions = Collections.unmodifiableMap(new HashMap<>(proposedAdaptationOptions));
+            for (String serviceId : proposedAdaptationOptions.keySet()) {
+                if (!proposedAdaptationOptions.get(serviceId).isEmpty()) {
+                    Service service = getServiceToUpdate(serviceId);
+                    service.getCurrentImplementation().incrementPenalty();
+                }
             }
-        }
+        });
     }
 
     // Called by the Plan module to choose the adaptation options
     public void chooseAdaptationOptions(Map<String, List<AdaptationOption>> chosenAdaptationOptions) {
-        this.chosenAdaptationOptions = chosenAdaptationOptions;
-        this.chosenAdaptationOptions.values().forEach(serviceOptions -> {
+        this.chosenAdaptationOptions = Collections.unmodifiableMap(new HashMap<>(chosenAdaptationOptions));
+        List<AdaptationOption> options = new LinkedList<>();
+        chosenAdaptationOptions.values().forEach(serviceOptions -> {
             serviceOptions.forEach(option -> {
                 option.applyTimestamp();
-                adaptationChoicesRepository.save(option);
+                options.add(option);
             });
         });
+        adaptationEventLog.append(options);
     }
 
 
     // Update QoS-related properties
     public void addNewInstanceQoSValue(String serviceId, String instanceId, Class<? extends QoSSpecification> qosClass, Double value, Date date) {
-        servicesMap.get(serviceId).getInstance(instanceId).getQoSCollection().createNewQoSValue(qosClass, value, date);
+        updateModel(() -> getServiceToUpdate(serviceId).getInstance(instanceId).getQoSCollection().createNewQoSValue(qosClass, value, date, qosHistoryMaxSize));
     }
 
     public void addNewServiceQoSValue(String serviceId, Class<? extends QoSSpecification> qosClass, Double value, Date date) {
-        servicesMap.get(serviceId).getCurrentImplementation().getQoSCollection().createNewQoSValue(qosClass, value, date);
+        updateModel(() -> getServiceToUpdate(serviceId).getCurrentImplementation().getQoSCollection().createNewQoSValue(qosClass, value, date, qosHistoryMaxSize));
     }
 
     public void updateServiceQoSCollection(String serviceId, QoSCollection qoSCollection) {
-        servicesMap.get(serviceId).getCurrentImplementation().setQoSCollection(qoSCollection);
+        updateModel(() -> getServiceToUpdate(serviceId).getCurrentImplementation().setQoSCollection(qoSCollection));
     }
 
     public void updateInstanceQoSCollection(String serviceId, String instanceId, QoSCollection qoSCollection) {
-        servicesMap.get(serviceId).getInstance(instanceId).setQoSCollection(qoSCollection);
+        updateModel(() -> getServiceToUpdate(serviceId).getInstance(instanceId).setQoSCollection(qoSCollection));
     }
 
     public void updateService(Service service) {
-        servicesMap.put(service.getServiceId(), service);
+        updateModel(() -> {
+            servicesMap.put(service.getServiceId(), service);
+            changedServices.add(service.getServiceId());
+            dependenciesChanged = true;
+        });
     }
 
     public void updateBenchmark(String serviceId, String serviceImplementationId, String simpleClassName, Double value) {
@@ -289,7 +524,7 @@ public class KnowledgeService {
             qosClass = (Class<? extends QoSSpecification>) Class.forName(qosSpecificationClassName);
             if (!QoSSpecification.class.isAssignableFrom(qosClass))
                 throw new RuntimeException("The provided class " + qosClass.getName() + " does not extend the QoS class.");
-            servicesMap.get(serviceId).getPossibleImplementations().get(serviceImplementationId).getQoSBenchmarks().put(qosClass, value);
+            updateModel(() -> getServiceToUpdate(serviceId).getPossibleImplementations().get(serviceImplementationId).getQoSBenchmarks().put(qosClass, value));
             log.info("Updated "+simpleClassName+" benchmark for service " + serviceId + " of implementation " + serviceImplementationId + " to " + value);
         } catch (ClassNotFoundException | ClassCastException e) {
             throw new RuntimeException(e);
@@ -297,16 +532,18 @@ public class KnowledgeService {
     }
 
     public void setLoadBalancerWeights(String serviceId, Map<String, Double> weights) { // serviceId, Map<instanceId, weight>
-        Service service = servicesMap.get(serviceId);
-        ServiceConfiguration oldConfiguration = service.getConfiguration();
-        ServiceConfiguration newConfiguration = new ServiceConfiguration();
-        newConfiguration.setLoadBalancerType(oldConfiguration.getLoadBalancerType());
-        newConfiguration.setLoadBalancerWeights(weights);
-        newConfiguration.setServiceId(serviceId);
-        newConfiguration.setCircuitBreakersConfiguration(oldConfiguration.getCircuitBreakersConfiguration());
-        newConfiguration.setTimestamp(new Date());
-        service.setConfiguration(newConfiguration);
-        configurationRepository.save(service.getConfiguration());
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            ServiceConfiguration oldConfiguration = service.getConfiguration();
+            ServiceConfiguration newConfiguration = new ServiceConfiguration();
+            newConfiguration.setLoadBalancerType(oldConfiguration.getLoadBalancerType());
+            newConfiguration.setLoadBalancerWeights(weights);
+            newConfiguration.setServiceId(serviceId);
+            newConfiguration.setCircuitBreakersConfiguration(oldConfiguration.getCircuitBreakersConfiguration());
+            newConfiguration.setTimestamp(new Date());
+            service.setConfiguration(newConfiguration);
+            configurationRepository.save(service.getConfiguration());
+        });
     }
 
     public void updateServiceQosCollection(String serviceId,
@@ -314,100 +551,203 @@ public class KnowledgeService {
                                            Map<Class<? extends QoSSpecification>, QoSHistory.Value> newServiceValues,
                                            Map<String, Map<Class<? extends QoSSpecification>, QoSHistory.Value>> newInstancesCurrentValues,
                                            Map<Class<? extends QoSSpecification>, QoSHistory.Value> newServiceCurrentValues) {
-        Service service = servicesMap.get(serviceId);
-        // Update the current value of all the instances of the service
-        newInstancesCurrentValues.forEach((instanceId, newInstanceQoSCurrentValues) -> {
-            Instance instance = service.getInstance(instanceId);
-            newInstanceQoSCurrentValues.forEach((qosClass, qosValue) -> {
-                instance.getQoSCollection().setCurrentValueForQoS(qosClass, qosValue);
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            List<QoSValueEntity> qosValuesToPersist = new LinkedList<>();
+            // Update the current value of all the instances of the service
+            newInstancesCurrentValues.forEach((instanceId, newInstanceQoSCurrentValues) -> {
+                Instance instance = service.getInstance(instanceId);
+                newInstanceQoSCurrentValues.forEach((qosClass, qosValue) -> {
+                    instance.getQoSCollection().setCurrentValueForQoS(qosClass, qosValue);
+                });
             });
-        });
-        // Add the latest value of each QoS of all the instances of the service. Then persist it.
-        newInstancesValues.forEach((instanceId, newInstanceQoSValues) -> {
-            Instance instance = service.getInstance(instanceId);
-            newInstanceQoSValues.forEach((qosClass, qosValue) -> {
+            // Add the latest value of each QoS of all the instances of the service. Then persist it.
+            newInstancesValues.forEach((instanceId, newInstanceQoSValues) -> {
+                Instance instance = service.getInstance(instanceId);
+                newInstanceQoSValues.forEach((qosClass, qosValue) -> {
+                    double threshold = -1;
+                    QoSSpecification qosSpecification = service.getQoSSpecifications().get(qosClass);
+                    if (qosClass.equals(Availability.class))
+                        threshold = ((Availability) qosSpecification).getMinThreshold();
+                    else if (qosClass.equals(AverageResponseTime.class))
+                        threshold = ((AverageResponseTime) qosSpecification).getMaxThreshold();
+                    else if (qosClass.equals(ResponseTimePercentile.class))
+                        threshold = ((ResponseTimePercentile) qosSpecification).getMaxThreshold();
+                    else if (qosClass.equals(Throughput.class)) // The max throughput of the instance
+                        threshold = ((Throughput) qosSpecification).getMaxUtilisation() * service.getCurrentImplementation().getBenchmark(Throughput.class);
+                    instance.getQoSCollection().addNewQoSValue(qosClass, qosValue, qosHistoryMaxSize);
+                    QoSValueEntity qosValueEntity = new QoSValueEntity(serviceId, service.getCurrentImplementationId(), instanceId,
+                            qosClass.getSimpleName(), threshold, instance.getCurrentValueForQoS(qosClass), qosValue);
+                    // The sketches are only kept with the latest values, so the histories in the model do not grow with them
+                    qosValue.setSketch(null);
+                    qosValuesToPersist.add(qosValueEntity);
+                    setLatestQoSValue(qosValueEntity);
+                });
+            });
+            // Update the current value of each QoS for the service
+            newServiceCurrentValues.forEach((qosClass, qosValue) -> {
+                service.getCurrentImplementation().getQoSCollection().setCurrentValueForQoS(qosClass, qosValue);
+            });
+            // Add the latest value of each QoS for the service. Then persist it.
+            newServiceValues.forEach((qosClass, qosValue) -> {
                 double threshold = -1;
                 QoSSpecification qosSpecification = service.getQoSSpecifications().get(qosClass);
                 if (qosClass.equals(Availability.class))
                     threshold = ((Availability) qosSpecification).getMinThreshold();
-                else if (qosClass.equals(AverageResponseTime.class))
+                else if (qosClass.equals(AverageResponseTime.class)) {
                     threshold = ((AverageResponseTime) qosSpecification).getMaxThreshold();
-                instance.getQoSCollection().addNewQoSValue(qosClass, qosValue);
-                qosRepository.save(new QoSValueEntity(serviceId, service.getCurrentImplementationId(), instanceId,
-                        qosClass.getSimpleName(), threshold, instance.getCurrentValueForQoS(qosClass), qosValue));
+                    if (qosValue.getDoubleValue() > 5000)
+                        log.warn("Huge ART for service " + serviceId);
+                } else if (qosClass.equals(ResponseTimePercentile.class))
+                    threshold = ((ResponseTimePercentile) qosSpecification).getMaxThreshold();
+                else if (qosClass.equals(Throughput.class)) // The max throughput of all the instances of the service
+                    threshold = ((Throughput) qosSpecification).getMaxUtilisation() * service.getCurrentImplementation().getBenchmark(Throughput.class) * service.getInstances().size();
+                service.getCurrentImplementation().getQoSCollection().addNewQoSValue(qosClass, qosValue, qosHistoryMaxSize);
+                QoSValueEntity qosValueEntity = new QoSValueEntity(serviceId, service.getCurrentImplementationId(), null,
+                        qosClass.getSimpleName(), threshold, service.getCurrentValueForQoS(qosClass), qosValue);
+                qosValue.setSketch(null);
+                qosValuesToPersist.add(qosValueEntity);
+                setLatestQoSValue(qosValueEntity);
             });
+            writeBehindQueue.enqueueQoSValues(qosValuesToPersist);
         });
-        // Update the current value of each QoS for the service
-        newServiceCurrentValues.forEach((qosClass, qosValue) -> {
-            service.getCurrentImplementation().getQoSCollection().setCurrentValueForQoS(qosClass, qosValue);
-        });
-        // Add the latest value of each QoS for the service. Then persist it.
-        newServiceValues.forEach((qosClass, qosValue) -> {
-            double threshold = -1;
-            QoSSpecification qosSpecification = service.getQoSSpecifications().get(qosClass);
-            if (qosClass.equals(Availability.class))
-                threshold = ((Availability) qosSpecification).getMinThreshold();
-            else if (qosClass.equals(AverageResponseTime.class)) {
-                threshold = ((AverageResponseTime) qosSpecification).getMaxThreshold();
-                if (qosValue.getDoubleValue() > 5000)
-                    log.warn("Huge ART for service " + serviceId);
-            }
-            service.getCurrentImplementation().getQoSCollection().addNewQoSValue(qosClass, qosValue);
-            qosRepository.save(new QoSValueEntity(serviceId, service.getCurrentImplementationId(), null,
-                    qosClass.getSimpleName(), threshold, service.getCurrentValueForQoS(qosClass), qosValue));
-        });
+    }
+
+    private void setLatestQoSValue(QoSValueEntity qosValue) {
+        latestQoSValues.computeIfAbsent(qosValue.getServiceId(), serviceId -> new ConcurrentHashMap<>()).put(latestQoSValueKey(qosValue), qosValue);
+    }
+
+    private static String latestQoSValueKey(QoSValueEntity qosValue) {
+        return qosValue.getServiceImplementationId() + "|" + qosValue.getInstanceId() + "|" + qosValue.getQos();
+    }
+
+    // Forgets the latest QoS values of an instance removed from the model
+    private void removeLatestQoSValues(String serviceId, String instanceId) {
+        Map<String, QoSValueEntity> serviceLatestQoSValues = latestQoSValues.get(serviceId);
+        if (serviceLatestQoSValues != null)
+            serviceLatestQoSValues.values().removeIf(qosValue -> instanceId.equals(qosValue.getInstanceId()));
     }
 
     // Useful methods to investigate the metrics of the instances
 
     public List<InstanceMetricsSnapshot> getAllInstanceMetrics(String instanceId) {
-        return metricsRepository.findAllByInstanceId(instanceId).stream().toList();
+        return metricsStorage.findAllByInstanceId(instanceId);
     }
 
     public List<InstanceMetricsSnapshot> getAllMetricsBetween(String startDateStr, String endDateStr) {
         Date startDate = Date.from(LocalDateTime.parse(startDateStr).toInstant(ZoneOffset.UTC));
         Date endDate = Date.from(LocalDateTime.parse(endDateStr).toInstant(ZoneOffset.UTC));
-        return metricsRepository.findAllByTimestampBetween(startDate, endDate).stream().toList();
+        return metricsStorage.findAllBetween(startDate, endDate);
     }
 
     public List<InstanceMetricsSnapshot> getNMetricsBefore(String instanceId, String timestampStr, int n) {
         Date timestamp = Date.from(LocalDateTime.parse(timestampStr).toInstant(ZoneOffset.UTC));
-        return metricsRepository.findAllByInstanceIdAndTimestampBeforeOrderByTimestampDesc(instanceId, timestamp, Pageable.ofSize(n)).stream().toList();
+        return metricsStorage.findNBefore(instanceId, timestamp, n);
     }
 
     public List<InstanceMetricsSnapshot> getNMetricsAfter(String instanceId, String timestampStr, int n) {
         Date timestamp = Date.from(LocalDateTime.parse(timestampStr).toInstant(ZoneOffset.UTC));
-        return metricsRepository.findAllByInstanceIdAndTimestampAfterOrderByTimestampDesc(instanceId, timestamp, Pageable.ofSize(n)).stream().toList();
+        return metricsStorage.findNAfter(instanceId, timestamp, n);
     }
 
     public InstanceMetricsSnapshot getLatestActiveByInstanceId(String instanceId) {
-        return metricsRepository.findLatestOnlineMeasurementByInstanceId(instanceId).stream().findFirst().orElse(null);
+        return metricsStorage.findLatestActiveByInstanceId(instanceId);
+    }
+
+    // Historical queries are served by the rollups, since the raw snapshots are deleted after their retention
+    public void streamMetrics(String serviceId, String instanceId, Date startDate, Date endDate, Consumer<InstanceMetricsSnapshot> consumer) {
+        metricsQueryEngine.stream(serviceId, instanceId, startDate, endDate, consumer);
+    }
+
+    public void aggregateMetrics(String serviceId, String instanceId, Date startDate, Date endDate, long stepSeconds, Set<MetricsAggregate.Aggregation> aggregations, Consumer<MetricsAggregate> consumer) {
+        metricsQueryEngine.aggregate(serviceId, instanceId, startDate, endDate, stepSeconds * 1000, aggregations, consumer);
+    }
+
+    public List<MetricsRollup> getMetricsRollups(MetricsRollup.Resolution resolution, String serviceId, String instanceId, String startDateStr, String endDateStr) {
+        Date startDate = Date.from(LocalDateTime.parse(startDateStr).toInstant(ZoneOffset.UTC));
+        Date endDate = Date.from(LocalDateTime.parse(endDateStr).toInstant(ZoneOffset.UTC));
+        if (instanceId != null)
+            return metricsRollupRepository.findAllByResolutionAndInstanceIdAndBucketStartBetweenOrderByBucketStartAsc(resolution, instanceId, startDate, endDate).stream().toList();
+        if (serviceId != null)
+            return metricsRollupRepository.findAllByResolutionAndServiceIdAndBucketStartBetweenOrderByBucketStartAsc(resolution, serviceId, startDate, endDate).stream().toList();
+        return metricsRollupRepository.findAllByResolutionAndBucketStartBetweenOrderByBucketStartAsc(resolution, startDate, endDate).stream().toList();
     }
 
 
     public void invalidateQosHistory(String serviceId) {
-        Service service = servicesMap.get(serviceId);
-        service.getInstances().forEach(instance -> {
-            instance.invalidateQoSHistory(Availability.class);
-            instance.invalidateQoSHistory(AverageResponseTime.class);
+        invalidateQosHistories(List.of(serviceId));
+    }
+
+    // Invalidates the QoS histories of all the given services (e.g., a service and its dependants).
+    // The latest values are invalidated by id through the write-behind queue, after the values still queued are persisted
+    public void invalidateQosHistories(Collection<String> serviceIds) {
+        updateModel(() -> {
+            List<QoSValueEntity> qosValuesToInvalidate = new LinkedList<>();
+            for (String serviceId : serviceIds) {
+                Service service = getServiceToUpdate(serviceId);
+                // All the QoS with a history, including the optional ones (Vulnerability has no history)
+                List<Class<? extends QoSSpecification>> qosClasses = service.getQoSSpecifications().keySet().stream().filter(qosClass -> !qosClass.equals(Vulnerability.class)).toList();
+                service.getInstances().forEach(instance -> qosClasses.forEach(instance::invalidateQoSHistory));
+                qosClasses.forEach(service::invalidateQoSHistory);
+                // Without latest values, the service has no QoS value persisted (see loadLatestQoSValues)
+                latestQoSValues.getOrDefault(serviceId, Map.of()).values().forEach(qosValue -> {
+                    if (qosValue.getServiceImplementationId().equals(service.getCurrentImplementationId()))
+                        qosValuesToInvalidate.add(qosValue);
+                });
+            }
+            writeBehindQueue.enqueueQoSValuesInvalidation(qosValuesToInvalidate);
         });
-        service.invalidateQoSHistory(Availability.class);
-        service.invalidateQoSHistory(AverageResponseTime.class);
-        qosRepository.invalidateServiceQoSHistory(serviceId, service.getCurrentImplementationId());
+    }
+
+    // Called by the KnowledgeInit. Loads the latest persisted QoS values of the current implementations and instances,
+    // so that the QoS histories persisted before a restart are invalidated by id as well
+    public void loadLatestQoSValues() {
+        long start = System.currentTimeMillis();
+        Map<String, Service> services = getServicesMap();
+        List<String> implementationIds = services.values().stream().map(Service::getCurrentImplementationId).toList();
+        if (implementationIds.isEmpty())
+            return;
+        int loaded = 0;
+        for (QoSValueEntity qosValue : qosRepository.findLatestOfImplementations(implementationIds)) {
+            Service service = services.get(qosValue.getServiceId());
+            if (service == null || !qosValue.getServiceImplementationId().equals(service.getCurrentImplementationId()) ||
+                    (qosValue.getInstanceId() != null && service.getInstance(qosValue.getInstanceId()) == null))
+                continue;
+            // The values added since the startup are newer
+            latestQoSValues.computeIfAbsent(qosValue.getServiceId(), serviceId -> new ConcurrentHashMap<>()).putIfAbsent(latestQoSValueKey(qosValue), qosValue);
+            loaded++;
+        }
+        log.debug("{} latest QoS values loaded in {} ms", loaded, System.currentTimeMillis() - start);
     }
 
     public void updateImplementationPreference(String serviceId, String implementationId, double preference) {
-        Service service = servicesMap.get(serviceId);
-        service.getPossibleImplementations().get(implementationId).setPreference(preference);
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            service.getPossibleImplementations().get(implementationId).setPreference(preference);
+        });
+    }
+
+    public void updateWindowSizes(String serviceId, WindowSizes windowSizes) {
+        windowSizes.validate();
+        if (windowSizes.getAnalysisWindowSize() != null && windowSizes.getAnalysisWindowSize() > qosHistoryMaxSize)
+            throw new IllegalArgumentException("Analysis window size must not be greater than the QoS history max size (" + qosHistoryMaxSize + ").");
+        // A larger window could never be served from the metrics cache
+        if (windowSizes.getMetricsWindowSize() != null && windowSizes.getMetricsWindowSize() > metricsCache.getCapacity())
+            throw new IllegalArgumentException("Metrics window size must not be greater than the metrics cache size (" + metricsCache.getCapacity() + ").");
+        updateModel(() -> getServiceToUpdate(serviceId).setWindowSizes(windowSizes));
     }
 
     public void updateAvailabilityThreshold(String serviceId, double availabilityThreshold) {
-        Service service = servicesMap.get(serviceId);
-        ((Availability)(service.getQoSSpecifications().get(Availability.class))).setMinThreshold(availabilityThreshold);
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            ((Availability)(service.getQoSSpecifications().get(Availability.class))).setMinThreshold(availabilityThreshold);
+        });
     }
 
     public void updateResponseTimeThreshold(String serviceId, double responseTimeThreshold) {
-        Service service = servicesMap.get(serviceId);
-        ((AverageResponseTime)(service.getQoSSpecifications().get(AverageResponseTime.class))).setMaxThreshold(responseTimeThreshold);
+        updateModel(() -> {
+            Service service = getServiceToUpdate(serviceId);
+            ((AverageResponseTime)(service.getQoSSpecifications().get(AverageResponseTime.class))).setMaxThreshold(responseTimeThreshold);
+        });
     }
 }
\ No newline at end of file
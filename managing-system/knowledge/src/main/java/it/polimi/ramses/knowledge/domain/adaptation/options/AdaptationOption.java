@@ -7,12 +7,8 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-import javax.persistence.*;
 import java.util.Date;
 
-@Entity
-@Inheritance(strategy = InheritanceType.JOINED)
-@DiscriminatorColumn(name = "DISCRIMINATOR", discriminatorType = DiscriminatorType.STRING)
 @Getter
 @Setter
 @NoArgsConstructor
@@ -24,8 +20,7 @@ import java.util.Date;
         @JsonSubTypes.Type(value = ChangeImplementationOption.class),
 })
 public abstract class AdaptationOption {
-    @Id
-    @GeneratedValue
+    // Id of the AdaptationEvent that recorded the option (0 if the option has not been chosen yet)
     private long id;
 
     private String serviceId;
@@ -36,7 +31,6 @@ public abstract class AdaptationOption {
     private boolean forced = false;
 
     // Timestamp of acceptance (it is NOT NULL ONLY IF the adaptation option has been accepted by the Plan)
-    @Temporal(TemporalType.TIMESTAMP)
     private Date timestamp;
 
     public abstract String getDescription();
@@ -6,22 +6,15 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-import javax.persistence.DiscriminatorValue;
-import javax.persistence.ElementCollection;
-import javax.persistence.Entity;
 import java.util.*;
 
 @Getter
 @Setter
-@Entity
 @NoArgsConstructor
-@DiscriminatorValue("ADD_INSTANCE")
 public class AddInstanceOption extends AdaptationOption {
-    @ElementCollection
     // <instanceId, newWeight>
     private Map<String, Double> oldInstancesNewWeights;
     private Double newInstanceWeight;
-    @ElementCollection
     private List<String> instancesToShutdownIds = new LinkedList<>(); //There could be instances whose weight have gone below the shutdown threshold after redistributing the weights
 
 
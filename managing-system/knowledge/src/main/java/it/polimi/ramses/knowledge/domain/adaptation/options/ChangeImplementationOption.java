@@ -5,18 +5,12 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-import javax.persistence.DiscriminatorValue;
-import javax.persistence.ElementCollection;
-import javax.persistence.Entity;
 import java.util.List;
 
 @Getter
 @Setter
-@Entity
 @NoArgsConstructor
-@DiscriminatorValue("CHANGE_IMPLEMENTATION")
 public class ChangeImplementationOption extends AdaptationOption {
-    @ElementCollection
     private List<String> possibleImplementations;
     private String newImplementationId;
     private int numberOfInstances;
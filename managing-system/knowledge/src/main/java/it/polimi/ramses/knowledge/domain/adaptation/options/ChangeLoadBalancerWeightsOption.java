@@ -6,23 +6,16 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-import javax.persistence.DiscriminatorValue;
-import javax.persistence.ElementCollection;
-import javax.persistence.Entity;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 @Getter
 @Setter
-@Entity
 @NoArgsConstructor
-@DiscriminatorValue("CHANGE_LOAD_BALANCER_WEIGHTS")
 public class ChangeLoadBalancerWeightsOption extends AdaptationOption {
-    @ElementCollection
     // <instanceId, newWeight>
     private Map<String, Double> newWeights; //Contains only the weights of the instances that will remain active
-    @ElementCollection
     private List<String> instancesToShutdownIds = new LinkedList<>();
 
 
@@ -5,19 +5,13 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-import javax.persistence.DiscriminatorValue;
-import javax.persistence.ElementCollection;
-import javax.persistence.Entity;
 import java.util.Map;
 
 @Getter
 @Setter
 @NoArgsConstructor
-@Entity
-@DiscriminatorValue("SHUTDOWN_INSTANCE")
 public class ShutdownInstanceOption extends AdaptationOption {
     private String instanceToShutdownId;
-    @ElementCollection
     // <instanceId, newWeight>
     private Map<String, Double> newWeights;
 
@@ -14,6 +14,8 @@ import java.util.List;
 @JsonSubTypes({
         @JsonSubTypes.Type(value = Availability.class),
         @JsonSubTypes.Type(value = AverageResponseTime.class),
+        @JsonSubTypes.Type(value = ResponseTimePercentile.class),
+        @JsonSubTypes.Type(value = Throughput.class),
         @JsonSubTypes.Type(value = Vulnerability.class)
         //@JsonSubTypes.Type(value = TotalCost.class)
 })
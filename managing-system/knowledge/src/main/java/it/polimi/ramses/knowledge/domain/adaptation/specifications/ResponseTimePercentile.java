@@ -0,0 +1,58 @@
+package it.polimi.ramses.knowledge.domain.adaptation.specifications;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+// Tail latency of the successful requests, e.g. the p95 or the p99 response time
+@Getter
+@Setter
+@Slf4j
+public class ResponseTimePercentile extends QoSSpecification {
+    // In (0, 100)
+    private double percentile;
+    @JsonProperty("max_threshold")
+    private double maxThreshold;
+
+    @JsonCreator
+    public ResponseTimePercentile() { super(); }
+
+    // used in QoSParser: clazz.getDeclaredConstructor(String.class)
+    public ResponseTimePercentile(String json) {
+        super();
+        fromJson(json);
+    }
+
+    @Override
+    void fromJson(String json) {
+        Gson gson = new Gson();
+        JsonObject parameter = gson.fromJson(json, JsonObject.class).getAsJsonObject();
+        super.setWeight(parameter.get("weight").getAsDouble());
+        percentile = parameter.get("percentile").getAsDouble();
+        if (percentile <= 0 || percentile >= 100)
+            throw new RuntimeException("The percentile must be in (0, 100)");
+        maxThreshold = parameter.get("max_threshold").getAsDouble();
+    }
+
+    // The percentile as a quantile in (0, 1)
+    @JsonIgnore
+    public double getQuantile() {
+        return percentile / 100;
+    }
+
+    @Override
+    @JsonIgnore
+    public boolean isSatisfied(double value) {
+        return value <= maxThreshold;
+    }
+
+    @Override
+    public String getConstraintDescription() {
+        return "p" + percentile + " < " + maxThreshold;
+    }
+}
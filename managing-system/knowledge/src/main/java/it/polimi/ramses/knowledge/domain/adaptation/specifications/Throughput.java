@@ -0,0 +1,60 @@
+package it.polimi.ramses.knowledge.domain.adaptation.specifications;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Locale;
+
+/**
+ * Arrival rate of the requests, in requests per second. The values in the QoS histories are throughputs, while the
+ * constraint is on the utilisation, i.e. the throughput divided by the capacity. The benchmark of this QoS
+ * is the capacity of a single instance of the implementation.
+ */
+@Getter
+@Setter
+@Slf4j
+public class Throughput extends QoSSpecification {
+    @JsonProperty("max_utilisation")
+    private double maxUtilisation;
+
+    @JsonCreator
+    public Throughput() { super(); }
+
+    // used in QoSParser: clazz.getDeclaredConstructor(String.class)
+    public Throughput(String json) {
+        super();
+        fromJson(json);
+    }
+
+    @Override
+    void fromJson(String json) {
+        Gson gson = new Gson();
+        JsonObject parameter = gson.fromJson(json, JsonObject.class).getAsJsonObject();
+        super.setWeight(parameter.get("weight").getAsDouble());
+        maxUtilisation = parameter.get("max_utilisation").getAsDouble();
+        if (maxUtilisation <= 0 || maxUtilisation > 1)
+            throw new RuntimeException("The max utilisation must be in (0, 1]");
+    }
+
+    // The value is a utilisation
+    @Override
+    @JsonIgnore
+    public boolean isSatisfied(double value) {
+        return value <= maxUtilisation;
+    }
+
+    public static double getUtilisation(double throughput, double capacity) {
+        return capacity > 0 ? throughput / capacity : Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public String getConstraintDescription() {
+        return "utilisation < " + String.format(Locale.ROOT, "%.2f", maxUtilisation * 100) + "%";
+    }
+}
@@ -33,14 +33,23 @@ public class QoSCollection {
 
 
     // Functions on values history
+    // The other modules keep the whole history received from the Knowledge, which bounds it
     public <T extends QoSSpecification> QoSHistory.Value createNewQoSValue(Class<T> qosClass, double value, Date date) {
-        QoSHistory<T> qoSHistory = (QoSHistory<T>) qoSHistoryMap.get(qosClass);
-        return qoSHistory.addValue(value, date);
+        return createNewQoSValue(qosClass, value, date, Integer.MAX_VALUE);
     }
 
     public <T extends QoSSpecification> void addNewQoSValue(Class<T> qosClass, QoSHistory.Value value) {
+        addNewQoSValue(qosClass, value, Integer.MAX_VALUE);
+    }
+
+    public <T extends QoSSpecification> QoSHistory.Value createNewQoSValue(Class<T> qosClass, double value, Date date, int maxHistorySize) {
+        QoSHistory<T> qoSHistory = (QoSHistory<T>) qoSHistoryMap.get(qosClass);
+        return qoSHistory.addValue(value, date, maxHistorySize);
+    }
+
+    public <T extends QoSSpecification> void addNewQoSValue(Class<T> qosClass, QoSHistory.Value value, int maxHistorySize) {
         QoSHistory<T> qoSHistory = (QoSHistory<T>) qoSHistoryMap.get(qosClass);
-        qoSHistory.getValuesStack().add(0, value);
+        qoSHistory.addValue(value, maxHistorySize);
     }
 
     public <T extends QoSSpecification> List<Double> getLatestAnalysisWindowForQoS(Class<T> qosClass, int windowSize, boolean fillWithCurrentValue) {
@@ -5,25 +5,36 @@ import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecificat
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
+/**
+ * The values of a QoS, latest first. The stack is never modified in place: each new value (or invalidation) replaces
+ * it with a new list, so the published snapshots of the model can share the histories with the working copy.
+ */
 @Data
 @NoArgsConstructor
 public class QoSHistory<T extends QoSSpecification> {
 
     private T specification;
-    private List<Value> valuesStack = new LinkedList<>();
+    private List<Value> valuesStack = List.of();
     private QoSHistory.Value currentValue;
 
     public QoSHistory(T specification) {
         this.specification = specification;
     }
 
-    public Value addValue(double value, Date date) {
-        valuesStack.add(0, new Value(value, date));
-        return valuesStack.get(0);
+    // Pushes a new value, keeping at most the latest maxSize values
+    public Value addValue(double value, Date date, int maxSize) {
+        Value newValue = new Value(value, date);
+        addValue(newValue, maxSize);
+        return newValue;
+    }
+
+    public void addValue(Value value, int maxSize) {
+        List<Value> newValuesStack = new ArrayList<>(Math.min(valuesStack.size() + 1, maxSize));
+        newValuesStack.add(value);
+        newValuesStack.addAll(valuesStack.subList(0, Math.min(valuesStack.size(), maxSize - 1)));
+        valuesStack = Collections.unmodifiableList(newValuesStack);
     }
 
     @JsonIgnore
@@ -64,9 +75,16 @@ public class QoSHistory<T extends QoSSpecification> {
         return values;
     }
 
+    // The latest value is replaced by an invalidated copy, since the value may be shared with a snapshot
     public void invalidateLatestAndPreviousValues() {
-        if (valuesStack.size() > 0)
-            valuesStack.get(0).invalidateThisAndPreviousValues();
+        if (valuesStack.size() > 0) {
+            Value latestValue = valuesStack.get(0);
+            Value invalidatedValue = new Value(latestValue.getDoubleValue(), latestValue.getTimestamp());
+            invalidatedValue.invalidateThisAndPreviousValues();
+            List<Value> newValuesStack = new ArrayList<>(valuesStack);
+            newValuesStack.set(0, invalidatedValue);
+            valuesStack = Collections.unmodifiableList(newValuesStack);
+        }
     }
 
     @Data
@@ -74,6 +92,10 @@ public class QoSHistory<T extends QoSSpecification> {
         private boolean invalidatesThisAndPreviousValues = false;
         private final double doubleValue;
         private final Date timestamp;
+        // Encoded LatencySketch of the response times the value is computed from, if any.
+        // It is only carried to the Knowledge, which stores it with the QoSValueEntity and not in the history
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private byte[] sketch;
 
         protected Value(double doubleValue, Date timestamp) {
             this.doubleValue = doubleValue;
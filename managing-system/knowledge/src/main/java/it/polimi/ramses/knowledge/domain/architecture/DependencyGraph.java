@@ -0,0 +1,87 @@
+package it.polimi.ramses.knowledge.domain.architecture;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * The dependencies among the services, with the forward and the reverse adjacency lists and a topological order.
+ * The services are also grouped in levels: the dependencies of the services of a level are all in the previous levels,
+ * so the services of the same level can be processed in parallel.
+ * The services on a dependency cycle (or depending on one) cannot be ordered, and they are all put in the last level.
+ */
+@Slf4j
+@Getter
+@Setter
+@NoArgsConstructor
+public class DependencyGraph {
+    // <serviceId, ids of the services it depends on>
+    private Map<String, List<String>> dependencies = new HashMap<>();
+    // <serviceId, ids of the services that depend on it>
+    private Map<String, List<String>> dependants = new HashMap<>();
+    // Each service comes after its dependencies
+    private List<String> topologicalOrder = new ArrayList<>();
+    private List<List<String>> levels = new ArrayList<>();
+
+    public static DependencyGraph of(Collection<Service> services) {
+        DependencyGraph graph = new DependencyGraph();
+        for (Service service : services) {
+            List<String> serviceDependencies = service.getDependencies() == null ? List.of() : service.getDependencies();
+            graph.dependencies.put(service.getServiceId(), List.copyOf(serviceDependencies));
+            graph.dependants.putIfAbsent(service.getServiceId(), new ArrayList<>());
+        }
+        graph.dependencies.forEach((serviceId, serviceDependencies) -> serviceDependencies.forEach(dependency ->
+                graph.dependants.computeIfAbsent(dependency, id -> new ArrayList<>()).add(serviceId)));
+        graph.sort();
+        return graph;
+    }
+
+    public List<String> getDependencies(String serviceId) {
+        return dependencies.getOrDefault(serviceId, List.of());
+    }
+
+    public List<String> getDependants(String serviceId) {
+        return dependants.getOrDefault(serviceId, List.of());
+    }
+
+    // The given services and, transitively, all the services that depend on them. Each service is visited once
+    public Set<String> getServicesAndDependants(Collection<String> servicesIds) {
+        Set<String> visited = new HashSet<>();
+        Deque<String> servicesToVisit = new ArrayDeque<>(servicesIds);
+        while (!servicesToVisit.isEmpty()) {
+            String serviceId = servicesToVisit.pop();
+            if (visited.add(serviceId))
+                getDependants(serviceId).forEach(servicesToVisit::push);
+        }
+        return visited;
+    }
+
+    // Kahn's algorithm, one level at a time
+    private void sort() {
+        Map<String, Integer> missingDependencies = new HashMap<>();
+        dependencies.forEach((serviceId, serviceDependencies) ->
+                missingDependencies.put(serviceId, (int) serviceDependencies.stream().filter(dependencies::containsKey).count()));
+        List<String> level = missingDependencies.entrySet().stream().filter(entry -> entry.getValue() == 0).map(Map.Entry::getKey).sorted().toList();
+        while (!level.isEmpty()) {
+            levels.add(level);
+            topologicalOrder.addAll(level);
+            List<String> nextLevel = new ArrayList<>();
+            for (String serviceId : level)
+                for (String dependant : getDependants(serviceId))
+                    if (missingDependencies.merge(dependant, -1, Integer::sum) == 0)
+                        nextLevel.add(dependant);
+            Collections.sort(nextLevel);
+            level = nextLevel;
+        }
+        if (topologicalOrder.size() < dependencies.size()) {
+            Set<String> sorted = new HashSet<>(topologicalOrder);
+            List<String> cyclic = dependencies.keySet().stream().filter(serviceId -> !sorted.contains(serviceId)).sorted().toList();
+            log.warn("Services on a dependency cycle: {}", cyclic);
+            levels.add(cyclic);
+            topologicalOrder.addAll(cyclic);
+        }
+    }
+}
@@ -23,6 +23,9 @@ public class Service {
     private Map<Class<? extends QoSSpecification>, QoSSpecification> qoSSpecifications = new HashMap<>();
     @Setter
     private Date latestAdaptationDate = new Date();
+    // Null if the service uses the default window sizes of the Analyse
+    @Setter
+    private WindowSizes windowSizes;
 
     public Service(String serviceId) {
         this.serviceId = serviceId;
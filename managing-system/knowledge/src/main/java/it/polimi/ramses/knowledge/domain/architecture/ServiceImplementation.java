@@ -1,6 +1,7 @@
 package it.polimi.ramses.knowledge.domain.architecture;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Throughput;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Vulnerability;
 import it.polimi.ramses.knowledge.domain.adaptation.values.QoSCollection;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
@@ -40,7 +41,10 @@ public class ServiceImplementation {
     }
 
     public double getBenchmark(Class<? extends QoSSpecification> qosSpecificationClass) {
-        return qoSBenchmarks.get(qosSpecificationClass);
+        Double benchmark = qoSBenchmarks.get(qosSpecificationClass);
+        if (benchmark == null)
+            throw new RuntimeException("Implementation " + implementationId + " has no " + qosSpecificationClass.getSimpleName() + " benchmark");
+        return benchmark;
     }
 
     public void setBenchmark(Class<? extends QoSSpecification> qosSpecificationClass, Double benchmark) {
@@ -78,7 +82,11 @@ public class ServiceImplementation {
             if (specification.getClass().equals(Vulnerability.class))
                 continue;
             instance.getQoSCollection().createHistory(specification);
-            instance.getQoSCollection().changeCurrentValueForQoS(specification.getClass(), getBenchmark(specification.getClass()), new Date());
+            // The Throughput benchmark is the capacity of the instance, not its expected value: a new instance has no load yet
+            if (specification.getClass().equals(Throughput.class))
+                instance.getQoSCollection().changeCurrentValueForQoS(Throughput.class, 0, new Date());
+            else
+                instance.getQoSCollection().changeCurrentValueForQoS(specification.getClass(), getBenchmark(specification.getClass()), new Date());
         }
         instance.setVulnerabilityScore(vulnerabilityScore);
 
@@ -0,0 +1,38 @@
+package it.polimi.ramses.knowledge.domain.architecture;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The window sizes used by the Analyse for a service. A null size means that the default size of the Analyse is used.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WindowSizes {
+    // Number of snapshots of each instance used to compute a new QoS value
+    private Integer metricsWindowSize;
+    // Duration of the metrics window of each instance. If greater than 0, it is used instead of the metrics window size
+    private Long metricsWindowSeconds;
+    // Number of QoS values used to compute the current value of a QoS
+    private Integer analysisWindowSize;
+    // If true, the Analyse tunes the metrics window size from the request rate of the service
+    private boolean autoTuned;
+
+    public void validate() {
+        if (metricsWindowSize != null && metricsWindowSize < 2)
+            throw new IllegalArgumentException("Metrics window size must be greater than 1.");
+        if (metricsWindowSeconds != null && metricsWindowSeconds < 0)
+            throw new IllegalArgumentException("Metrics window seconds must not be negative.");
+        if (analysisWindowSize != null && analysisWindowSize < 1)
+            throw new IllegalArgumentException("Analysis window size must be greater than 0.");
+    }
+
+    // A null or 0 metrics window seconds means that the metrics window is count-based, as METRICS_WINDOW_SECONDS=0 in the Analyse
+    @JsonIgnore
+    public boolean isTimeBased() {
+        return metricsWindowSeconds != null && metricsWindowSeconds > 0;
+    }
+}
@@ -3,6 +3,8 @@ package it.polimi.ramses.knowledge.domain.metrics;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 import javax.persistence.*;
 import java.util.HashMap;
@@ -15,7 +17,12 @@ import java.util.Map;
 public class CircuitBreakerMetrics {
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "circuit_breaker_metrics_seq")
+    @GenericGenerator(name = "circuit_breaker_metrics_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "circuit_breaker_metrics_seq"),
+            @Parameter(name = "optimizer", value = "pooled"),
+            @Parameter(name = "increment_size", value = "50")
+    })
     private Long id;
 
     private String name;
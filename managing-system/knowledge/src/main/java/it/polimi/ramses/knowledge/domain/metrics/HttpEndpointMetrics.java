@@ -1,7 +1,10 @@
 package it.polimi.ramses.knowledge.domain.metrics;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonSetter;
 import lombok.*;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 import javax.persistence.*;
 import java.util.HashMap;
@@ -16,7 +19,12 @@ import java.util.Set;
 public class HttpEndpointMetrics {
 
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "http_endpoint_metrics_seq")
+    @GenericGenerator(name = "http_endpoint_metrics_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "http_endpoint_metrics_seq"),
+            @Parameter(name = "optimizer", value = "pooled"),
+            @Parameter(name = "increment_size", value = "50")
+    })
     private Long id;
 
     private String endpoint;
@@ -36,6 +44,9 @@ public class HttpEndpointMetrics {
         private long count = 0;
         private double totalDuration = 0;
         private double maxDuration = 0;
+        // Encoded LatencySketch of the durations, built from the histogram buckets sent by the probe
+        @Lob
+        private byte[] durationSketch;
 
         @JsonIgnore
         @Transient
@@ -62,7 +73,17 @@ public class HttpEndpointMetrics {
                 this.maxDuration = maxDuration;
         }
 
+        // The probe sends the cumulative histogram buckets: <upper bound in ms, cumulative count>
+        @JsonSetter("durationBuckets")
+        public void setDurationBuckets(Map<Double, Long> durationBuckets) {
+            durationSketch = durationBuckets == null || durationBuckets.isEmpty() ? null : LatencySketch.fromCumulativeBuckets(durationBuckets).encode();
+        }
 
+        @JsonIgnore
+        @Transient
+        public LatencySketch getLatencySketch() {
+            return LatencySketch.decode(durationSketch);
+        }
 
     }
 
@@ -131,6 +152,20 @@ public class HttpEndpointMetrics {
         return total;
     }
 
+    // The merged durations of the successful requests, or null if the probe did not send the histogram buckets
+    @JsonIgnore
+    public LatencySketch getLatencySketchOfSuccessful(){
+        LatencySketch sketch = null;
+        for(OutcomeMetrics outcomeMetrics : outcomeMetrics.values()){
+            if(outcomeMetrics.status<500 && outcomeMetrics.getDurationSketch() != null) {
+                if (sketch == null)
+                    sketch = new LatencySketch();
+                sketch.merge(outcomeMetrics.getLatencySketch());
+            }
+        }
+        return sketch;
+    }
+
     @JsonIgnore
     public double getMaxDuration(){
         double max = 0;
@@ -200,6 +235,12 @@ public class HttpEndpointMetrics {
         outcomeMetrics.put(outcome, outcomeMetric);
     }
 
+    public void addOrSetOutcomeMetricsDurationSketch(String outcome, byte[] durationSketch) {
+        OutcomeMetrics outcomeMetric = outcomeMetrics.getOrDefault(outcome, new OutcomeMetrics(outcome));
+        outcomeMetric.setDurationSketch(durationSketch);
+        outcomeMetrics.put(outcome, outcomeMetric);
+    }
+
 
 
 
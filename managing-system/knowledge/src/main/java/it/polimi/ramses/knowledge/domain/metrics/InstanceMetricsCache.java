@@ -0,0 +1,164 @@
+package it.polimi.ramses.knowledge.domain.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded in-memory store of the latest InstanceMetricsSnapshots of each instance.
+ * It keeps up to "capacity" snapshots per instance, from the newest to the oldest, so that the metrics windows
+ * requested by the Analyse can be served without querying the database.
+ * The window of an instance is used only once it covers all the snapshots of the current run of the instance, either
+ * because it has been emptied at the shutdown of the previous run or because it has been seeded from the database
+ * (e.g., after a restart of the Knowledge, when only the snapshots received since the restart are in memory).
+ */
+public class InstanceMetricsCache {
+    private final int capacity;
+    // <instanceId, latest snapshots of the instance>
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    public InstanceMetricsCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Metrics cache size must be greater than 0.");
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void add(InstanceMetricsSnapshot snapshot) {
+        windows.computeIfAbsent(snapshot.getInstanceId(), id -> new Window()).add(snapshot);
+    }
+
+    // Empties the window of the instance. The window is still considered complete, since the snapshots collected
+    // before the reset (e.g., before a shutdown) must not be returned anymore.
+    public void reset(String instanceId) {
+        Window window = new Window();
+        window.complete = true;
+        windows.put(instanceId, window);
+    }
+
+    public boolean isComplete(String instanceId) {
+        Window window = windows.get(instanceId);
+        return window != null && window.isComplete();
+    }
+
+    /**
+     * Completes the window of the instance with the persisted snapshots of its current run.
+     * The snapshots added to the cache while the database was queried are kept: only the persisted snapshots older
+     * than the oldest cached one are added.
+     *
+     * @param persistedSnapshots the latest "capacity" snapshots of the current run of the instance, from the newest to the oldest
+     */
+    public void seed(String instanceId, List<InstanceMetricsSnapshot> persistedSnapshots) {
+        windows.computeIfAbsent(instanceId, id -> new Window()).seed(persistedSnapshots);
+    }
+
+    // Forgets the instance. The next requests for its window will be served by the database until new snapshots are added.
+    public void remove(String instanceId) {
+        windows.remove(instanceId);
+    }
+
+    /**
+     * Returns the latest n snapshots of the instance taken at or after the given date, from the newest to the oldest.
+     * The window stops at the latest SHUTDOWN snapshot of the instance, if any.
+     * The result can contain less than n snapshots if no more are available.
+     *
+     * @return the list of snapshots, or null if the cache cannot answer (e.g., at cold start or if the older snapshots have been evicted)
+     */
+    public List<InstanceMetricsSnapshot> getLatestN(String instanceId, Date after, int n) {
+        Window window = windows.get(instanceId);
+        if (window == null || n > capacity)
+            return null;
+        return window.getLatestN(after, n);
+    }
+
+    /**
+     * Returns the snapshots of the instance in the latest windowMillis, from the newest to the oldest, taken at or after
+     * the given date. The window ends with the newest snapshot and starts with its anchor, i.e., the newest snapshot
+     * taken at least windowMillis before it, so that the snapshots span the whole duration of the window.
+     * The window stops at the latest SHUTDOWN snapshot of the instance, if any.
+     * The result is empty if the snapshots taken at or after the given date do not span the whole window yet.
+     *
+     * @return the list of snapshots, or null if the cache cannot answer (e.g., at cold start, before the window is seeded,
+     * or if the anchor has been evicted)
+     */
+    public List<InstanceMetricsSnapshot> getLatestInWindow(String instanceId, Date after, long windowMillis) {
+        Window window = windows.get(instanceId);
+        if (window == null)
+            return null;
+        return window.getLatestInWindow(after, windowMillis);
+    }
+
+    private class Window {
+        private final Deque<InstanceMetricsSnapshot> snapshots = new ArrayDeque<>(capacity);
+        // True if at least one snapshot has been evicted from the window
+        private boolean truncated = false;
+        // True if the window holds (or held, before the evictions) all the snapshots of the current run of the instance
+        private boolean complete = false;
+
+        synchronized boolean isComplete() {
+            return complete;
+        }
+
+        synchronized void seed(List<InstanceMetricsSnapshot> persistedSnapshots) {
+            if (complete)
+                return;
+            Date oldestCached = snapshots.isEmpty() ? null : snapshots.getLast().getTimestamp();
+            for (InstanceMetricsSnapshot snapshot : persistedSnapshots) {
+                if (oldestCached == null || snapshot.getTimestamp().before(oldestCached))
+                    snapshots.addLast(snapshot);
+            }
+            // Older snapshots of the current run may still be in the database
+            truncated = persistedSnapshots.size() >= capacity;
+            while (snapshots.size() > capacity) {
+                snapshots.removeLast();
+                truncated = true;
+            }
+            complete = true;
+        }
+
+        synchronized void add(InstanceMetricsSnapshot snapshot) {
+            snapshots.addFirst(snapshot);
+            if (snapshots.size() > capacity) {
+                snapshots.removeLast();
+                truncated = true;
+            }
+        }
+
+        synchronized List<InstanceMetricsSnapshot> getLatestN(Date after, int n) {
+            // The snapshots received before the window was created may be missing
+            if (!complete)
+                return null;
+            List<InstanceMetricsSnapshot> result = new ArrayList<>(Math.min(n, snapshots.size()));
+            for (InstanceMetricsSnapshot snapshot : snapshots) {
+                if (snapshot.isShutdown() || snapshot.getTimestamp().before(after))
+                    return result;
+                result.add(snapshot);
+                if (result.size() == n)
+                    return result;
+            }
+            // All the cached snapshots are valid: if some have been evicted, the window cannot be served from memory
+            return truncated ? null : result;
+        }
+
+        synchronized List<InstanceMetricsSnapshot> getLatestInWindow(Date after, long windowMillis) {
+            // The snapshots received before the window was created may be missing
+            if (!complete)
+                return null;
+            List<InstanceMetricsSnapshot> result = new ArrayList<>();
+            long start = Long.MIN_VALUE;
+            for (InstanceMetricsSnapshot snapshot : snapshots) {
+                if (snapshot.isShutdown() || snapshot.getTimestamp().before(after))
+                    return List.of();
+                if (result.isEmpty())
+                    start = snapshot.getTimestamp().getTime() - windowMillis;
+                result.add(snapshot);
+                if (snapshot.getTimestamp().getTime() <= start)
+                    return result;
+            }
+            // No anchor in the cached snapshots: if some have been evicted, the window cannot be served from memory
+            return truncated ? null : List.of();
+        }
+    }
+}
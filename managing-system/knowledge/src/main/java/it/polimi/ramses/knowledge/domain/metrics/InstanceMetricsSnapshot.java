@@ -5,17 +5,32 @@ import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 import javax.persistence.*;
 import java.util.*;
 
 @Entity
+@Table(indexes = {
+        @Index(name = "metrics_instance_timestamp_idx", columnList = "instanceId, timestamp"),
+        @Index(name = "metrics_service_instance_timestamp_idx", columnList = "serviceId, instanceId, timestamp"),
+        @Index(name = "metrics_service_timestamp_idx", columnList = "serviceId, timestamp"),
+        @Index(name = "metrics_instance_status_timestamp_idx", columnList = "instanceId, status, timestamp"),
+        @Index(name = "metrics_timestamp_idx", columnList = "timestamp")
+})
 @Getter
 @Setter
 @NoArgsConstructor
 public class InstanceMetricsSnapshot {
     @Id
-    @GeneratedValue
+    // Pooled ids (instead of IDENTITY) let Hibernate batch the inserts of the snapshots and of their cascaded metrics
+    @GeneratedValue(generator = "instance_metrics_snapshot_seq")
+    @GenericGenerator(name = "instance_metrics_snapshot_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "instance_metrics_snapshot_seq"),
+            @Parameter(name = "optimizer", value = "pooled"),
+            @Parameter(name = "increment_size", value = "50")
+    })
     private Long id;
 
     private String serviceId;
@@ -0,0 +1,245 @@
+package it.polimi.ramses.knowledge.domain.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mergeable sketch of a distribution of durations (in ms), with logarithmic buckets.
+ * A value v is counted in the bucket ceil(log_gamma(v)), so every quantile is estimated with a relative error of at most
+ * RELATIVE_ACCURACY and two sketches can be merged (or subtracted) by adding (or subtracting) their bucket counts.
+ * The values are clamped to [MIN_VALUE, MAX_VALUE], so a sketch never has more than a few hundred buckets.
+ */
+public class LatencySketch {
+    public static final double RELATIVE_ACCURACY = 0.02;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    // Values not greater than MIN_VALUE are counted as zero
+    private static final double MIN_VALUE = 1e-3;
+    private static final double MAX_VALUE = 1e7;
+    private static final int ENCODING_VERSION = 1;
+
+    private long zeroCount;
+    // counts[i] is the count of the bucket with index offset + i
+    private long[] counts = new long[0];
+    private int offset;
+    private long count;
+
+    public LatencySketch() { }
+
+    /**
+     * Builds a sketch from the cumulative counts of a histogram (e.g. the Prometheus buckets of a Micrometer timer).
+     * The samples of each histogram bucket are counted at the geometric midpoint of its bounds, so the accuracy
+     * is limited by the resolution of the histogram.
+     * @param cumulativeCounts <upper bound in ms, count of the values not greater than the bound>
+     */
+    public static LatencySketch fromCumulativeBuckets(Map<Double, Long> cumulativeCounts) {
+        LatencySketch sketch = new LatencySketch();
+        double previousBound = 0;
+        long previousCount = 0;
+        for (Map.Entry<Double, Long> bucket : new TreeMap<>(cumulativeCounts).entrySet()) {
+            long n = bucket.getValue() - previousCount;
+            if (n > 0) {
+                double bound = bucket.getKey();
+                if (Double.isInfinite(bound))
+                    sketch.add(previousBound, n);
+                else
+                    sketch.add(previousBound > 0 ? Math.sqrt(previousBound * bound) : bound, n);
+            }
+            if (!Double.isInfinite(bucket.getKey()))
+                previousBound = bucket.getKey();
+            previousCount = Math.max(previousCount, bucket.getValue());
+        }
+        return sketch;
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, long n) {
+        if (n <= 0)
+            return;
+        count += n;
+        if (value <= MIN_VALUE) {
+            zeroCount += n;
+            return;
+        }
+        int index = index(Math.min(value, MAX_VALUE));
+        ensureCapacity(index, index);
+        counts[index - offset] += n;
+    }
+
+    public void merge(LatencySketch other) {
+        if (other == null || other.count == 0)
+            return;
+        if (other.counts.length > 0) {
+            ensureCapacity(other.offset, other.offset + other.counts.length - 1);
+            for (int i = 0; i < other.counts.length; i++)
+                counts[other.offset + i - offset] += other.counts[i];
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    /**
+     * The values added after the previous sketch, when both are taken from the same cumulative histogram.
+     * If any bucket decreased the histogram was reset (e.g. the instance restarted), so a copy of this sketch is returned.
+     */
+    public LatencySketch minus(LatencySketch previous) {
+        LatencySketch difference = copy();
+        if (previous == null)
+            return difference;
+        if (previous.zeroCount > zeroCount)
+            return difference;
+        for (int i = 0; i < previous.counts.length; i++) {
+            int index = previous.offset + i;
+            if (previous.counts[i] > getBucketCount(index))
+                return copy();
+            if (previous.counts[i] > 0)
+                difference.counts[index - offset] -= previous.counts[i];
+        }
+        difference.zeroCount -= previous.zeroCount;
+        difference.count -= previous.count;
+        return difference;
+    }
+
+    public LatencySketch copy() {
+        LatencySketch copy = new LatencySketch();
+        copy.zeroCount = zeroCount;
+        copy.counts = Arrays.copyOf(counts, counts.length);
+        copy.offset = offset;
+        copy.count = count;
+        return copy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @param quantile in [0, 1]
+     * @return the estimated quantile, or NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("The quantile must be in [0, 1]");
+        if (count == 0)
+            return Double.NaN;
+        // Rank of the value, from 0
+        long rank = (long) Math.ceil(quantile * count) - 1;
+        if (rank < zeroCount)
+            return 0;
+        long cumulativeCount = zeroCount;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount > rank)
+                return value(offset + i);
+        }
+        return value(offset + counts.length - 1);
+    }
+
+    // Version, zero count, offset and the counts from the first to the last non-empty bucket, as varints
+    public byte[] encode() {
+        int first = 0, last = counts.length - 1;
+        while (first <= last && counts[first] == 0)
+            first++;
+        while (last >= first && counts[last] == 0)
+            last--;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + Math.max(0, last - first + 1) * 2);
+        out.write(ENCODING_VERSION);
+        writeVarLong(out, zeroCount);
+        writeVarLong(out, zigZag(offset + first));
+        writeVarLong(out, Math.max(0, last - first + 1));
+        for (int i = first; i <= last; i++)
+            writeVarLong(out, counts[i]);
+        return out.toByteArray();
+    }
+
+    public static LatencySketch decode(byte[] bytes) {
+        if (bytes == null || bytes.length == 0)
+            return null;
+        int[] position = {0};
+        int version = bytes[position[0]++];
+        if (version != ENCODING_VERSION)
+            throw new RuntimeException("Unsupported latency sketch version " + version);
+        LatencySketch sketch = new LatencySketch();
+        sketch.zeroCount = readVarLong(bytes, position);
+        long zigZagOffset = readVarLong(bytes, position);
+        sketch.offset = (int) ((zigZagOffset >>> 1) ^ -(zigZagOffset & 1));
+        int length = (int) readVarLong(bytes, position);
+        sketch.counts = new long[length];
+        sketch.count = sketch.zeroCount;
+        for (int i = 0; i < length; i++) {
+            sketch.counts[i] = readVarLong(bytes, position);
+            sketch.count += sketch.counts[i];
+        }
+        return sketch;
+    }
+
+    private long getBucketCount(int index) {
+        if (index < offset || index >= offset + counts.length)
+            return 0;
+        return counts[index - offset];
+    }
+
+    // Grows the counts so that they cover the indexes in [minIndex, maxIndex]
+    private void ensureCapacity(int minIndex, int maxIndex) {
+        if (counts.length == 0) {
+            counts = new long[maxIndex - minIndex + 1];
+            offset = minIndex;
+            return;
+        }
+        int newOffset = Math.min(offset, minIndex);
+        int newLength = Math.max(offset + counts.length, maxIndex + 1) - newOffset;
+        if (newOffset == offset && newLength == counts.length)
+            return;
+        long[] newCounts = new long[newLength];
+        System.arraycopy(counts, 0, newCounts, offset - newOffset, counts.length);
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+    private static int index(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    // The value with the same relative error from both bounds of the bucket
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(byte[] bytes, int[] position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencySketch{count=" + count + ", p50=" + getQuantile(0.5) + ", p95=" + getQuantile(0.95) + ", p99=" + getQuantile(0.99) + "}";
+    }
+}
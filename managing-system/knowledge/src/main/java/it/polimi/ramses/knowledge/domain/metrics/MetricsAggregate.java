@@ -0,0 +1,47 @@
+package it.polimi.ramses.knowledge.domain.metrics;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.Date;
+
+/**
+ * Aggregates of the InstanceMetricsSnapshots of an instance over a step of a metrics query.
+ * Only the requested aggregations are set.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class MetricsAggregate {
+    public enum Aggregation {
+        // Requests per second
+        RATE,
+        // Average duration of the successful requests
+        AVG,
+        // 95th percentile of the average durations of the successful requests between consecutive snapshots
+        P95,
+        // Successful requests over all the requests
+        AVAILABILITY,
+        // Average CPU usage
+        CPU
+    }
+
+    private String serviceId;
+    private String instanceId;
+    private Date stepStart;
+    private int samples;
+    private Double rate;
+    private Double averageResponseTime;
+    private Double p95ResponseTime;
+    private Double availability;
+    private Double averageCpuUsage;
+
+    public MetricsAggregate(String serviceId, String instanceId, Date stepStart) {
+        this.serviceId = serviceId;
+        this.instanceId = instanceId;
+        this.stepStart = stepStart;
+    }
+}
@@ -0,0 +1,114 @@
+package it.polimi.ramses.knowledge.domain.metrics;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Aggregate of the InstanceMetricsSnapshots of an instance over a minute or an hour.
+ * The HTTP counters are the increments of the cumulative counters of the snapshots within the bucket.
+ */
+@Entity
+@Table(indexes = {
+        @Index(name = "metrics_rollup_resolution_instance_bucket_idx", columnList = "resolution, instanceId, bucketStart"),
+        @Index(name = "metrics_rollup_resolution_service_bucket_idx", columnList = "resolution, serviceId, bucketStart")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+public class MetricsRollup {
+    public enum Resolution {
+        MINUTE(60 * 1000L),
+        HOUR(60 * 60 * 1000L);
+
+        private final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public Date bucketStartOf(Date date) {
+            return new Date(date.getTime() - date.getTime() % millis);
+        }
+    }
+
+    @Id
+    @GeneratedValue(generator = "metrics_rollup_seq")
+    @GenericGenerator(name = "metrics_rollup_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "metrics_rollup_seq"),
+            @Parameter(name = "optimizer", value = "pooled"),
+            @Parameter(name = "increment_size", value = "50")
+    })
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    private Resolution resolution;
+    private String serviceId;
+    private String instanceId;
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date bucketStart;
+
+    // Number of snapshots, by status
+    private int samples = 0;
+    private int activeSamples = 0;
+    private int unreachableSamples = 0;
+    private int failedSamples = 0;
+
+    private long requestsCount = 0;
+    private long successfulRequestsCount = 0;
+    private double successfulRequestsTotalDuration = 0;
+    private double maxRequestDuration = 0;
+
+    // Sum of the CPU usages of the snapshots reporting it, used to compute the average
+    private double cpuUsageSum = 0;
+    private int cpuUsageSamples = 0;
+
+    public MetricsRollup(Resolution resolution, String serviceId, String instanceId, Date bucketStart) {
+        this.resolution = resolution;
+        this.serviceId = serviceId;
+        this.instanceId = instanceId;
+        this.bucketStart = bucketStart;
+    }
+
+    // Merges a rollup of a finer resolution into this one
+    public void merge(MetricsRollup other) {
+        samples += other.samples;
+        activeSamples += other.activeSamples;
+        unreachableSamples += other.unreachableSamples;
+        failedSamples += other.failedSamples;
+        requestsCount += other.requestsCount;
+        successfulRequestsCount += other.successfulRequestsCount;
+        successfulRequestsTotalDuration += other.successfulRequestsTotalDuration;
+        maxRequestDuration = Math.max(maxRequestDuration, other.maxRequestDuration);
+        cpuUsageSum += other.cpuUsageSum;
+        cpuUsageSamples += other.cpuUsageSamples;
+    }
+
+    @JsonIgnore
+    @Transient
+    public Double getAverageResponseTime() {
+        return successfulRequestsCount == 0 ? null : successfulRequestsTotalDuration / successfulRequestsCount;
+    }
+
+    @JsonIgnore
+    @Transient
+    public Double getAvailability() {
+        return requestsCount == 0 ? null : (double) successfulRequestsCount / requestsCount;
+    }
+
+    @JsonIgnore
+    @Transient
+    public Double getAverageCpuUsage() {
+        return cpuUsageSamples == 0 ? null : cpuUsageSum / cpuUsageSamples;
+    }
+}
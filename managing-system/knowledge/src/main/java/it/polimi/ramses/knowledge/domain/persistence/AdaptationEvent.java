@@ -0,0 +1,44 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Entry of the append-only log of the adaptation options chosen by the Plan.
+ * The option itself is stored as a JSON payload, so that all the kinds of options share a single table
+ * and the history of a service is read with a range scan of the (serviceId, timestamp) index.
+ */
+@Entity
+@Table(indexes = {
+        @Index(name = "adaptation_event_service_timestamp_idx", columnList = "serviceId, timestamp"),
+        @Index(name = "adaptation_event_timestamp_idx", columnList = "timestamp")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+public class AdaptationEvent {
+    @Id
+    @GeneratedValue(generator = "adaptation_event_seq")
+    @GenericGenerator(name = "adaptation_event_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "adaptation_event_seq"),
+            @Parameter(name = "optimizer", value = "pooled"),
+            @Parameter(name = "increment_size", value = "50")
+    })
+    private Long id;
+
+    private String serviceId;
+    private String serviceImplementationId;
+    // Simple name of the AdaptationOption class
+    private String type;
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date timestamp;
+
+    @Lob
+    private byte[] payload;
+}
@@ -0,0 +1,113 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Append-only log of the chosen adaptation options, stored as AdaptationEvents.
+ * The events older than the retention are periodically compacted: for each service only the latest
+ * events are kept, so that the history of the services that are rarely adapted is not lost.
+ */
+@Slf4j
+@Component
+public class AdaptationEventLog {
+    private final long retentionMillis;
+    private final int keptEventsPerService;
+
+    @Autowired
+    private AdaptationEventRepository adaptationEventRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    public AdaptationEventLog(@Value("${ADAPTATION_EVENTS_RETENTION_DAYS}") int retentionDays,
+                              @Value("${ADAPTATION_EVENTS_KEPT_PER_SERVICE}") int keptEventsPerService) {
+        if (retentionDays < 1)
+            throw new IllegalArgumentException("Adaptation events retention must be at least one day.");
+        if (keptEventsPerService < 1)
+            throw new IllegalArgumentException("The number of adaptation events kept per service must be greater than 0.");
+        this.retentionMillis = retentionDays * 24 * 3600 * 1000L;
+        this.keptEventsPerService = keptEventsPerService;
+    }
+
+    // Appends the options in a single batch. The options must have their timestamp set
+    public void append(Collection<AdaptationOption> options) {
+        if (options.isEmpty())
+            return;
+        List<AdaptationEvent> events = new ArrayList<>(options.size());
+        for (AdaptationOption option : options) {
+            AdaptationEvent event = new AdaptationEvent();
+            event.setServiceId(option.getServiceId());
+            event.setServiceImplementationId(option.getServiceImplementationId());
+            event.setType(option.getClass().getSimpleName());
+            event.setTimestamp(option.getTimestamp());
+            event.setPayload(encode(option));
+            events.add(event);
+        }
+        adaptationEventRepository.saveAll(events);
+        Iterator<AdaptationEvent> eventsIterator = events.iterator();
+        options.forEach(option -> option.setId(eventsIterator.next().getId()));
+    }
+
+    // The latest n options chosen for the service, from the newest
+    public List<AdaptationOption> getLatest(String serviceId, int n) {
+        return decode(adaptationEventRepository.findAllByServiceIdOrderByTimestampDesc(serviceId, Pageable.ofSize(n)));
+    }
+
+    // The latest n options chosen for all the services, from the newest
+    public List<AdaptationOption> getLatest(int n) {
+        return decode(adaptationEventRepository.findAllByOrderByTimestampDesc(Pageable.ofSize(n)));
+    }
+
+    @Scheduled(fixedDelayString = "${ADAPTATION_EVENTS_COMPACTION_PERIOD}", initialDelayString = "${ADAPTATION_EVENTS_COMPACTION_PERIOD}")
+    public void compact() {
+        try {
+            Date retentionLimit = new Date(System.currentTimeMillis() - retentionMillis);
+            int totalDeleted = 0;
+            for (String serviceId : adaptationEventRepository.findAllServiceIds()) {
+                // Timestamp of the oldest of the events to keep for the service
+                List<AdaptationEvent> oldestKept = adaptationEventRepository.findAllByServiceIdOrderByTimestampDesc(serviceId, PageRequest.of(keptEventsPerService - 1, 1));
+                if (oldestKept.isEmpty())
+                    continue;
+                Date limit = oldestKept.get(0).getTimestamp().before(retentionLimit) ? oldestKept.get(0).getTimestamp() : retentionLimit;
+                totalDeleted += adaptationEventRepository.deleteAllByServiceIdAndTimestampBefore(serviceId, limit);
+            }
+            if (totalDeleted > 0)
+                log.debug("Compacted the adaptation log: deleted {} events", totalDeleted);
+        } catch (Exception e) {
+            log.error("Error while compacting the adaptation log: {}", e.getMessage());
+        }
+    }
+
+    private byte[] encode(AdaptationOption option) {
+        try {
+            return objectMapper.writeValueAsBytes(option);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while encoding the adaptation option " + option, e);
+        }
+    }
+
+    private List<AdaptationOption> decode(List<AdaptationEvent> events) {
+        List<AdaptationOption> options = new ArrayList<>(events.size());
+        for (AdaptationEvent event : events) {
+            try {
+                AdaptationOption option = objectMapper.readValue(event.getPayload(), AdaptationOption.class);
+                option.setId(event.getId());
+                options.add(option);
+            } catch (IOException e) {
+                log.error("Skipping unreadable adaptation event {}: {}", event.getId(), e.getMessage());
+            }
+        }
+        return options;
+    }
+}
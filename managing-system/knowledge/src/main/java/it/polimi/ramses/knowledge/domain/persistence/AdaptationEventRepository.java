@@ -0,0 +1,27 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Date;
+import java.util.List;
+
+
+public interface AdaptationEventRepository extends CrudRepository<AdaptationEvent, Long> {
+
+    // Range scan of the (service_id, timestamp) index from the newest event
+    List<AdaptationEvent> findAllByServiceIdOrderByTimestampDesc(String serviceId, Pageable pageable);
+
+    List<AdaptationEvent> findAllByOrderByTimestampDesc(Pageable pageable);
+
+    @Query("SELECT DISTINCT e.serviceId FROM AdaptationEvent e")
+    List<String> findAllServiceIds();
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM AdaptationEvent e WHERE e.serviceId = :serviceId AND e.timestamp < :before")
+    int deleteAllByServiceIdAndTimestampBefore(String serviceId, Date before);
+}
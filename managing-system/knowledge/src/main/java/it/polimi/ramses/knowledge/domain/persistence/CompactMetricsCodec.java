@@ -0,0 +1,224 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.metrics.CircuitBreakerMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.HttpEndpointMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts InstanceMetricsSnapshots to CompactMetricsSnapshots and back.
+ * Each HTTP endpoint outcome and each circuit breaker is a series, identified by an integer id in the MetricsSeries dictionary.
+ * The counters column is a binary blob with the following layout:
+ * <pre>
+ * byte version
+ * int httpSeriesCount, then for each: int seriesId, int status, long count, double totalDuration, double maxDuration,
+ *     int durationSketchLength (-1 if null), then the encoded LatencySketch (not in version 1)
+ * int circuitBreakersCount, then for each: int seriesId, byte state (-1 if null), int notPermittedCallsCount,
+ *     double failureRate, double slowCallRate, and for each of the five CallOutcomeStatus maps:
+ *     byte presence mask (bit i set if the i-th CallOutcomeStatus is in the map), then the present values
+ * </pre>
+ */
+@Slf4j
+@Component
+public class CompactMetricsCodec {
+    private static final byte VERSION = 2;
+    private static final String HTTP_SERIES_PREFIX = "http:";
+    private static final String CIRCUIT_BREAKER_SERIES_PREFIX = "cb:";
+    private static final CircuitBreakerMetrics.CallOutcomeStatus[] CALL_OUTCOME_STATUSES = CircuitBreakerMetrics.CallOutcomeStatus.values();
+    private static final CircuitBreakerMetrics.State[] STATES = CircuitBreakerMetrics.State.values();
+
+    @Autowired
+    private MetricsSeriesRepository metricsSeriesRepository;
+
+    // <seriesName, seriesId>
+    private final Map<String, Integer> seriesIds = new ConcurrentHashMap<>();
+    // <seriesId, seriesName>
+    private final Map<Integer, String> seriesNames = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void loadDictionary() {
+        metricsSeriesRepository.findAll().forEach(series -> {
+            seriesIds.put(series.getName(), series.getId());
+            seriesNames.put(series.getId(), series.getName());
+        });
+        log.debug("Loaded {} metrics series", seriesIds.size());
+    }
+
+    public CompactMetricsSnapshot encode(InstanceMetricsSnapshot snapshot) {
+        CompactMetricsSnapshot compactSnapshot = new CompactMetricsSnapshot();
+        compactSnapshot.setServiceId(snapshot.getServiceId());
+        compactSnapshot.setInstanceId(snapshot.getInstanceId());
+        compactSnapshot.setStatus(snapshot.getStatus());
+        compactSnapshot.setCpuUsage(snapshot.getCpuUsage());
+        compactSnapshot.setDiskTotalSpace(snapshot.getDiskTotalSpace());
+        compactSnapshot.setDiskFreeSpace(snapshot.getDiskFreeSpace());
+        compactSnapshot.setTimestamp(snapshot.getTimestamp());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            int httpSeriesCount = 0;
+            for (HttpEndpointMetrics endpointMetrics : snapshot.getHttpMetrics().values())
+                httpSeriesCount += endpointMetrics.getOutcomeMetrics().size();
+            out.writeInt(httpSeriesCount);
+            for (HttpEndpointMetrics endpointMetrics : snapshot.getHttpMetrics().values()) {
+                for (HttpEndpointMetrics.OutcomeMetrics outcomeMetrics : endpointMetrics.getOutcomeMetrics().values()) {
+                    out.writeInt(getOrCreateSeriesId(HTTP_SERIES_PREFIX + endpointMetrics.getHttpMethod() + "@" + endpointMetrics.getEndpoint() + "|" + outcomeMetrics.getOutcome()));
+                    out.writeInt(outcomeMetrics.getStatus());
+                    out.writeLong(outcomeMetrics.getCount());
+                    out.writeDouble(outcomeMetrics.getTotalDuration());
+                    out.writeDouble(outcomeMetrics.getMaxDuration());
+                    byte[] durationSketch = outcomeMetrics.getDurationSketch();
+                    out.writeInt(durationSketch == null ? -1 : durationSketch.length);
+                    if (durationSketch != null)
+                        out.write(durationSketch);
+                }
+            }
+            out.writeInt(snapshot.getCircuitBreakerMetrics().size());
+            for (CircuitBreakerMetrics circuitBreakerMetrics : snapshot.getCircuitBreakerMetrics().values()) {
+                out.writeInt(getOrCreateSeriesId(CIRCUIT_BREAKER_SERIES_PREFIX + circuitBreakerMetrics.getName()));
+                out.writeByte(circuitBreakerMetrics.getState() == null ? -1 : circuitBreakerMetrics.getState().ordinal());
+                out.writeInt(circuitBreakerMetrics.getNotPermittedCallsCount());
+                out.writeDouble(circuitBreakerMetrics.getFailureRate());
+                out.writeDouble(circuitBreakerMetrics.getSlowCallRate());
+                writeIntegerMap(out, circuitBreakerMetrics.getBufferedCallsCount());
+                writeDoubleMap(out, circuitBreakerMetrics.getCallDuration());
+                writeDoubleMap(out, circuitBreakerMetrics.getCallMaxDuration());
+                writeIntegerMap(out, circuitBreakerMetrics.getCallCount());
+                writeIntegerMap(out, circuitBreakerMetrics.getSlowCallCount());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error while encoding " + snapshot, e);
+        }
+        compactSnapshot.setCounters(bytes.toByteArray());
+        return compactSnapshot;
+    }
+
+    public InstanceMetricsSnapshot decode(CompactMetricsSnapshot compactSnapshot) {
+        InstanceMetricsSnapshot snapshot = new InstanceMetricsSnapshot(compactSnapshot.getServiceId(), compactSnapshot.getInstanceId());
+        snapshot.setId(compactSnapshot.getId());
+        snapshot.setStatus(compactSnapshot.getStatus());
+        snapshot.setCpuUsage(compactSnapshot.getCpuUsage());
+        snapshot.setDiskTotalSpace(compactSnapshot.getDiskTotalSpace());
+        snapshot.setDiskFreeSpace(compactSnapshot.getDiskFreeSpace());
+        snapshot.setTimestamp(compactSnapshot.getTimestamp());
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(compactSnapshot.getCounters()))) {
+            byte version = in.readByte();
+            // Version 1 has no duration sketches
+            if (version != VERSION && version != 1)
+                throw new RuntimeException("Unsupported compact metrics version " + version);
+            int httpSeriesCount = in.readInt();
+            for (int i = 0; i < httpSeriesCount; i++) {
+                String seriesName = getSeriesName(in.readInt()).substring(HTTP_SERIES_PREFIX.length());
+                int outcomeSeparator = seriesName.lastIndexOf('|');
+                String endpointKey = seriesName.substring(0, outcomeSeparator); // HTTP-Method@endpoint
+                int methodSeparator = endpointKey.indexOf('@');
+                HttpEndpointMetrics endpointMetrics = snapshot.getHttpMetrics().get(endpointKey);
+                if (endpointMetrics == null) {
+                    endpointMetrics = new HttpEndpointMetrics(endpointKey.substring(methodSeparator + 1), endpointKey.substring(0, methodSeparator));
+                    snapshot.addHttpMetrics(endpointMetrics);
+                }
+                String outcome = seriesName.substring(outcomeSeparator + 1);
+                endpointMetrics.addOrSetOutcomeMetricsDetails(outcome, in.readInt(), in.readLong(), in.readDouble());
+                endpointMetrics.addOrSetOutcomeMetricsMaxDuration(outcome, in.readDouble());
+                if (version >= 2) {
+                    int durationSketchLength = in.readInt();
+                    if (durationSketchLength >= 0) {
+                        byte[] durationSketch = new byte[durationSketchLength];
+                        in.readFully(durationSketch);
+                        endpointMetrics.addOrSetOutcomeMetricsDurationSketch(outcome, durationSketch);
+                    }
+                }
+            }
+            int circuitBreakersCount = in.readInt();
+            for (int i = 0; i < circuitBreakersCount; i++) {
+                CircuitBreakerMetrics circuitBreakerMetrics = new CircuitBreakerMetrics(getSeriesName(in.readInt()).substring(CIRCUIT_BREAKER_SERIES_PREFIX.length()));
+                byte state = in.readByte();
+                circuitBreakerMetrics.setState(state < 0 ? null : STATES[state]);
+                circuitBreakerMetrics.setNotPermittedCallsCount(in.readInt());
+                circuitBreakerMetrics.setFailureRate(in.readDouble());
+                circuitBreakerMetrics.setSlowCallRate(in.readDouble());
+                readIntegerMap(in, circuitBreakerMetrics.getBufferedCallsCount());
+                readDoubleMap(in, circuitBreakerMetrics.getCallDuration());
+                readDoubleMap(in, circuitBreakerMetrics.getCallMaxDuration());
+                readIntegerMap(in, circuitBreakerMetrics.getCallCount());
+                readIntegerMap(in, circuitBreakerMetrics.getSlowCallCount());
+                snapshot.getCircuitBreakerMetrics().put(circuitBreakerMetrics.getName(), circuitBreakerMetrics);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error while decoding the compact metrics " + compactSnapshot.getId(), e);
+        }
+        return snapshot;
+    }
+
+    private int getOrCreateSeriesId(String seriesName) {
+        Integer seriesId = seriesIds.get(seriesName);
+        if (seriesId != null)
+            return seriesId;
+        synchronized (this) {
+            seriesId = seriesIds.get(seriesName);
+            if (seriesId == null) {
+                seriesId = metricsSeriesRepository.save(new MetricsSeries(seriesName)).getId();
+                seriesNames.put(seriesId, seriesName);
+                seriesIds.put(seriesName, seriesId);
+                log.debug("New metrics series {}: {}", seriesId, seriesName);
+            }
+            return seriesId;
+        }
+    }
+
+    private String getSeriesName(int seriesId) {
+        String seriesName = seriesNames.get(seriesId);
+        if (seriesName == null)
+            throw new RuntimeException("Unknown metrics series " + seriesId);
+        return seriesName;
+    }
+
+    private static void writeIntegerMap(DataOutputStream out, Map<CircuitBreakerMetrics.CallOutcomeStatus, Integer> map) throws IOException {
+        out.writeByte(presenceMask(map));
+        if (map == null)
+            return;
+        for (CircuitBreakerMetrics.CallOutcomeStatus status : CALL_OUTCOME_STATUSES)
+            if (map.get(status) != null)
+                out.writeInt(map.get(status));
+    }
+
+    private static void writeDoubleMap(DataOutputStream out, Map<CircuitBreakerMetrics.CallOutcomeStatus, Double> map) throws IOException {
+        out.writeByte(presenceMask(map));
+        if (map == null)
+            return;
+        for (CircuitBreakerMetrics.CallOutcomeStatus status : CALL_OUTCOME_STATUSES)
+            if (map.get(status) != null)
+                out.writeDouble(map.get(status));
+    }
+
+    private static void readIntegerMap(DataInputStream in, Map<CircuitBreakerMetrics.CallOutcomeStatus, Integer> map) throws IOException {
+        byte mask = in.readByte();
+        for (CircuitBreakerMetrics.CallOutcomeStatus status : CALL_OUTCOME_STATUSES)
+            if ((mask & (1 << status.ordinal())) != 0)
+                map.put(status, in.readInt());
+    }
+
+    private static void readDoubleMap(DataInputStream in, Map<CircuitBreakerMetrics.CallOutcomeStatus, Double> map) throws IOException {
+        byte mask = in.readByte();
+        for (CircuitBreakerMetrics.CallOutcomeStatus status : CALL_OUTCOME_STATUSES)
+            if ((mask & (1 << status.ordinal())) != 0)
+                map.put(status, in.readDouble());
+    }
+
+    private static int presenceMask(Map<CircuitBreakerMetrics.CallOutcomeStatus, ?> map) {
+        int mask = 0;
+        if (map == null)
+            return mask;
+        for (CircuitBreakerMetrics.CallOutcomeStatus status : CALL_OUTCOME_STATUSES)
+            if (map.get(status) != null)
+                mask |= 1 << status.ordinal();
+        return mask;
+    }
+}
@@ -0,0 +1,65 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+
+public interface CompactMetricsRepository extends CrudRepository<CompactMetricsSnapshot, Long> {
+
+    Collection<CompactMetricsSnapshot> findAllByInstanceIdOrderByTimestampAsc(String instanceId);
+
+    Collection<CompactMetricsSnapshot> findAllByTimestampBetweenOrderByTimestampAsc(Date start, Date end);
+
+    Collection<CompactMetricsSnapshot> findAllByInstanceIdAndTimestampBetweenOrderByTimestampAsc(String instanceId, Date start, Date end);
+
+    CompactMetricsSnapshot findFirstByOrderByTimestampAsc();
+
+    // Bounded delete, so that the retention does not lock the table for a long time
+    @Transactional
+    @Modifying
+    @Query(value = "delete from compact_metrics_snapshot where timestamp < :before limit :limit", nativeQuery = true)
+    int deleteOldest(Date before, int limit);
+
+    @Query("SELECT m FROM CompactMetricsSnapshot m WHERE m.instanceId = :instanceId AND m.timestamp > :lastShutdown " +
+            "AND m.timestamp >= :after ORDER BY m.timestamp DESC")
+    List<CompactMetricsSnapshot> findLatestOfCurrentInstanceOrderByTimestampDesc(String instanceId, Date lastShutdown, Date after, Pageable pageable);
+
+    // Same range scan, bounded by the given date
+    @Query("SELECT m FROM CompactMetricsSnapshot m WHERE m.instanceId = :instanceId AND m.timestamp > :lastShutdown " +
+            "AND m.timestamp >= :after AND m.timestamp <= :before ORDER BY m.timestamp DESC")
+    List<CompactMetricsSnapshot> findLatestOfCurrentInstanceBeforeOrderByTimestampDesc(String instanceId, Date lastShutdown, Date after, Date before, Pageable pageable);
+
+    @Query("SELECT m FROM CompactMetricsSnapshot m WHERE (m.timestamp > :afterTimestamp OR (m.timestamp = :afterTimestamp AND m.id > :afterId)) " +
+            "AND m.timestamp < :end ORDER BY m.timestamp ASC, m.id ASC")
+    List<CompactMetricsSnapshot> findPageAfter(Date afterTimestamp, long afterId, Date end, Pageable pageable);
+
+    @Query("SELECT m FROM CompactMetricsSnapshot m WHERE m.serviceId = :serviceId AND (m.timestamp > :afterTimestamp OR (m.timestamp = :afterTimestamp AND m.id > :afterId)) " +
+            "AND m.timestamp < :end ORDER BY m.timestamp ASC, m.id ASC")
+    List<CompactMetricsSnapshot> findPageOfServiceAfter(String serviceId, Date afterTimestamp, long afterId, Date end, Pageable pageable);
+
+    @Query("SELECT m FROM CompactMetricsSnapshot m WHERE m.instanceId = :instanceId AND (m.timestamp > :afterTimestamp OR (m.timestamp = :afterTimestamp AND m.id > :afterId)) " +
+            "AND m.timestamp < :end ORDER BY m.timestamp ASC, m.id ASC")
+    List<CompactMetricsSnapshot> findPageOfInstanceAfter(String instanceId, Date afterTimestamp, long afterId, Date end, Pageable pageable);
+
+    Page<CompactMetricsSnapshot> findAllByInstanceIdAndTimestampBeforeOrderByTimestampDesc(String instanceId, Date timestamp, Pageable pageable);
+
+    Page<CompactMetricsSnapshot> findAllByInstanceIdAndTimestampAfterOrderByTimestampDesc(String instanceId, Date timestamp, Pageable pageable);
+
+    CompactMetricsSnapshot findFirstByInstanceIdOrderByTimestampDesc(String instanceId);
+
+    CompactMetricsSnapshot findFirstByInstanceIdAndStatusOrderByTimestampDesc(String instanceId, InstanceStatus status);
+
+    @Query(value = "select m.* from compact_metrics_snapshot m join (" +
+                "select instance_id, max(timestamp) as latest from compact_metrics_snapshot where service_id = :serviceId group by instance_id" +
+            ") l on m.instance_id = l.instance_id and m.timestamp = l.latest where m.service_id = :serviceId", nativeQuery = true)
+    Collection<CompactMetricsSnapshot> findLatestByServiceId(String serviceId);
+}
@@ -0,0 +1,51 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Compact storage of an InstanceMetricsSnapshot: one row per instance per tick.
+ * The HTTP endpoint counters and the circuit breakers metrics are encoded in a single binary column
+ * by the CompactMetricsCodec, which refers to the series through the MetricsSeries dictionary.
+ */
+@Entity
+@Table(indexes = {
+        @Index(name = "compact_metrics_instance_timestamp_idx", columnList = "instanceId, timestamp"),
+        @Index(name = "compact_metrics_service_instance_timestamp_idx", columnList = "serviceId, instanceId, timestamp"),
+        @Index(name = "compact_metrics_service_timestamp_idx", columnList = "serviceId, timestamp"),
+        @Index(name = "compact_metrics_instance_status_timestamp_idx", columnList = "instanceId, status, timestamp"),
+        @Index(name = "compact_metrics_timestamp_idx", columnList = "timestamp")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+public class CompactMetricsSnapshot {
+    @Id
+    @GeneratedValue(generator = "compact_metrics_snapshot_seq")
+    @GenericGenerator(name = "compact_metrics_snapshot_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "compact_metrics_snapshot_seq"),
+            @Parameter(name = "optimizer", value = "pooled"),
+            @Parameter(name = "increment_size", value = "50")
+    })
+    private Long id;
+
+    private String serviceId;
+    private String instanceId;
+    @Enumerated(EnumType.STRING)
+    private InstanceStatus status;
+    private Double cpuUsage;
+    private Double diskTotalSpace;
+    private Double diskFreeSpace;
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date timestamp;
+
+    @Lob
+    private byte[] counters;
+}
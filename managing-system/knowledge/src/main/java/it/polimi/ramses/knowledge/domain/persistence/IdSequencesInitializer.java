@@ -0,0 +1,57 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.metrics.CircuitBreakerMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.HttpEndpointMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.MetricsRollup;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Map;
+
+/**
+ * Moves the id sequences of the entities past the ids already stored in their tables.
+ * The metrics and QoS entities had IDENTITY ids before their ids were generated by pooled sequences, whose tables are
+ * created by ddl-auto starting from 1: on an existing database the first inserts would collide with the existing rows.
+ * It runs at startup, before the KnowledgeInit and before any entity is persisted.
+ */
+@Slf4j
+@Component
+public class IdSequencesInitializer implements InitializingBean {
+    // The increment_size of the generators. A pooled generator can hand out the ids up to next_val + increment_size
+    private static final int INCREMENT_SIZE = 50;
+    // <sequence table, entity using it>
+    private static final Map<String, Class<?>> SEQUENCES = Map.of(
+            "instance_metrics_snapshot_seq", InstanceMetricsSnapshot.class,
+            "http_endpoint_metrics_seq", HttpEndpointMetrics.class,
+            "circuit_breaker_metrics_seq", CircuitBreakerMetrics.class,
+            "compact_metrics_snapshot_seq", CompactMetricsSnapshot.class,
+            "metrics_rollup_seq", MetricsRollup.class,
+            "qos_value_entity_seq", QoSValueEntity.class,
+            "adaptation_event_seq", AdaptationEvent.class
+    );
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Override
+    public void afterPropertiesSet() {
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> SEQUENCES.forEach((sequence, entityClass) -> {
+            Number maxId = (Number) entityManager.createQuery("SELECT COALESCE(MAX(e.id), 0) FROM " + entityClass.getSimpleName() + " e").getSingleResult();
+            long nextValue = maxId.longValue() + 1 + INCREMENT_SIZE;
+            int updated = entityManager.createNativeQuery("UPDATE " + sequence + " SET next_val = :nextValue WHERE next_val < :nextValue")
+                    .setParameter("nextValue", nextValue).executeUpdate();
+            if (updated > 0)
+                log.info("Sequence {} moved to {}, past the ids of {}", sequence, nextValue, entityClass.getSimpleName());
+        }));
+    }
+}
@@ -0,0 +1,169 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
+import it.polimi.ramses.knowledge.domain.metrics.HttpEndpointMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.LatencySketch;
+import it.polimi.ramses.knowledge.domain.metrics.MetricsAggregate;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Streaming queries over the InstanceMetricsSnapshots of a time range.
+ * The snapshots are read one page at a time with keyset pagination and are passed to the consumer as soon as they are read,
+ * so the memory used does not depend on the length of the range.
+ */
+@Slf4j
+@Component
+public class MetricsQueryEngine {
+    private final int pageSize;
+
+    @Autowired
+    private MetricsStorage metricsStorage;
+
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    public MetricsQueryEngine(@Value("${METRICS_QUERY_PAGE_SIZE}") int pageSize) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("Metrics query page size must be greater than 0.");
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Streams the snapshots taken in [start, end), ordered by timestamp.
+     * @param serviceId the service of the snapshots, or null
+     * @param instanceId the instance of the snapshots, or null
+     */
+    public void stream(String serviceId, String instanceId, Date start, Date end, Consumer<InstanceMetricsSnapshot> consumer) {
+        // The snapshots still queued are persisted first, so the latest ones are not missing from the range
+        writeBehindQueue.flush();
+        Date afterTimestamp = start;
+        long afterId = -1;
+        List<InstanceMetricsSnapshot> page;
+        do {
+            page = metricsStorage.findPageAfter(serviceId, instanceId, afterTimestamp, afterId, end, pageSize);
+            page.forEach(consumer);
+            if (!page.isEmpty()) {
+                InstanceMetricsSnapshot last = page.get(page.size() - 1);
+                afterTimestamp = last.getTimestamp();
+                afterId = last.getId();
+            }
+        } while (page.size() == pageSize);
+    }
+
+    /**
+     * Streams the aggregates of each instance for each step of [start, end), ordered by step.
+     * The HTTP aggregations are computed from the increments of the cumulative counters between consecutive ACTIVE snapshots,
+     * so the first snapshot of each instance in the range is only used as baseline.
+     * The P95 is computed from the duration sketches of the successful requests of the step, merged, so it is only available
+     * for the snapshots with the sketches.
+     */
+    public void aggregate(String serviceId, String instanceId, Date start, Date end, long stepMillis, Set<MetricsAggregate.Aggregation> aggregations, Consumer<MetricsAggregate> consumer) {
+        if (stepMillis <= 0)
+            throw new IllegalArgumentException("The step must be greater than 0");
+        StepAggregator aggregator = new StepAggregator(start.getTime(), stepMillis, aggregations, consumer);
+        stream(serviceId, instanceId, start, end, aggregator::add);
+        aggregator.flush();
+    }
+
+    // Keeps only the accumulators of the current step and the previous snapshot of each instance
+    private static class StepAggregator {
+        private final long start;
+        private final long stepMillis;
+        private final Set<MetricsAggregate.Aggregation> aggregations;
+        private final Consumer<MetricsAggregate> consumer;
+
+        private long currentStep = -1;
+        // <instanceId, accumulator of the current step>
+        private final Map<String, StepAccumulator> accumulators = new LinkedHashMap<>();
+        // <instanceId, latest ACTIVE snapshot>
+        private final Map<String, InstanceMetricsSnapshot> previousSnapshots = new HashMap<>();
+
+        private StepAggregator(long start, long stepMillis, Set<MetricsAggregate.Aggregation> aggregations, Consumer<MetricsAggregate> consumer) {
+            this.start = start;
+            this.stepMillis = stepMillis;
+            this.aggregations = aggregations;
+            this.consumer = consumer;
+        }
+
+        private void add(InstanceMetricsSnapshot snapshot) {
+            long step = (snapshot.getTimestamp().getTime() - start) / stepMillis;
+            // The snapshots are ordered by timestamp: no more snapshots of the previous steps will come
+            if (step != currentStep) {
+                flush();
+                currentStep = step;
+            }
+            StepAccumulator accumulator = accumulators.computeIfAbsent(snapshot.getInstanceId(), instanceId -> new StepAccumulator(snapshot.getServiceId()));
+            accumulator.samples++;
+            if (snapshot.getCpuUsage() != null) {
+                accumulator.cpuUsageSum += snapshot.getCpuUsage();
+                accumulator.cpuUsageSamples++;
+            }
+            if (snapshot.getStatus() == InstanceStatus.SHUTDOWN)
+                previousSnapshots.remove(snapshot.getInstanceId());
+            if (!snapshot.isActive())
+                return;
+            InstanceMetricsSnapshot previous = previousSnapshots.put(snapshot.getInstanceId(), snapshot);
+            if (previous == null)
+                return;
+            boolean withP95 = aggregations.contains(MetricsAggregate.Aggregation.P95);
+            for (Map.Entry<String, HttpEndpointMetrics> entry : snapshot.getHttpMetrics().entrySet()) {
+                HttpEndpointMetrics endpointMetrics = entry.getValue();
+                HttpEndpointMetrics previousEndpointMetrics = previous.getHttpMetrics().get(entry.getKey());
+                accumulator.requests += MetricsRollupJob.increment(endpointMetrics.getTotalCount(), previousEndpointMetrics == null ? 0 : previousEndpointMetrics.getTotalCount());
+                accumulator.successfulRequests += MetricsRollupJob.increment(endpointMetrics.getTotalCountOfSuccessful(), previousEndpointMetrics == null ? 0 : previousEndpointMetrics.getTotalCountOfSuccessful());
+                accumulator.successfulRequestsDuration += MetricsRollupJob.increment(endpointMetrics.getTotalDurationOfSuccessful(), previousEndpointMetrics == null ? 0 : previousEndpointMetrics.getTotalDurationOfSuccessful());
+                if (withP95) {
+                    // The sketches are cumulative: the durations of the interval are the difference with the previous one
+                    LatencySketch sketch = endpointMetrics.getLatencySketchOfSuccessful();
+                    if (sketch != null)
+                        accumulator.durationSketch.merge(sketch.minus(previousEndpointMetrics == null ? null : previousEndpointMetrics.getLatencySketchOfSuccessful()));
+                }
+            }
+        }
+
+        private void flush() {
+            Date stepStart = new Date(start + currentStep * stepMillis);
+            accumulators.forEach((instanceId, accumulator) -> consumer.accept(accumulator.toAggregate(instanceId, stepStart, stepMillis, aggregations)));
+            accumulators.clear();
+        }
+    }
+
+    private static class StepAccumulator {
+        private final String serviceId;
+        private int samples;
+        private long requests;
+        private long successfulRequests;
+        private double successfulRequestsDuration;
+        private double cpuUsageSum;
+        private int cpuUsageSamples;
+        // Durations of the successful requests of the step, for the percentiles
+        private final LatencySketch durationSketch = new LatencySketch();
+
+        private StepAccumulator(String serviceId) {
+            this.serviceId = serviceId;
+        }
+
+        private MetricsAggregate toAggregate(String instanceId, Date stepStart, long stepMillis, Set<MetricsAggregate.Aggregation> aggregations) {
+            MetricsAggregate aggregate = new MetricsAggregate(serviceId, instanceId, stepStart);
+            aggregate.setSamples(samples);
+            if (aggregations.contains(MetricsAggregate.Aggregation.RATE))
+                aggregate.setRate(requests * 1000.0 / stepMillis);
+            if (aggregations.contains(MetricsAggregate.Aggregation.AVG) && successfulRequests > 0)
+                aggregate.setAverageResponseTime(successfulRequestsDuration / successfulRequests);
+            if (aggregations.contains(MetricsAggregate.Aggregation.P95) && !durationSketch.isEmpty())
+                aggregate.setP95ResponseTime(durationSketch.getQuantile(0.95));
+            if (aggregations.contains(MetricsAggregate.Aggregation.AVAILABILITY) && requests > 0)
+                aggregate.setAvailability((double) successfulRequests / requests);
+            if (aggregations.contains(MetricsAggregate.Aggregation.CPU) && cpuUsageSamples > 0)
+                aggregate.setAverageCpuUsage(cpuUsageSum / cpuUsageSamples);
+            return aggregate;
+        }
+    }
+}
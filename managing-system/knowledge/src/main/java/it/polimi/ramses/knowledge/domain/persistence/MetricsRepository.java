@@ -1,20 +1,20 @@
 package it.polimi.ramses.knowledge.domain.persistence;
 
+import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
 import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
-import org.springframework.data.repository.query.Param;
 
 import java.sql.Timestamp;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 
 public interface MetricsRepository extends CrudRepository<InstanceMetricsSnapshot, Long> {
     Timestamp MIN_TIMESTAMP = new Timestamp(0);
-    String SHUTDOWNSTATUS = "it.polimi.ramses.knowledge.domain.architecture.InstanceStatus.SHUTDOWN";
 
     Collection<InstanceMetricsSnapshot> findAllByInstanceId(String instanceId);
 
@@ -22,23 +22,48 @@ public interface MetricsRepository extends CrudRepository<InstanceMetricsSnapsho
 
     Collection<InstanceMetricsSnapshot> findAllByInstanceIdAndTimestampBetween(String instanceId, Date start, Date end);
 
-    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.instanceId = :instanceId AND " +
-            "m.timestamp > IFNULL((SELECT MAX(m1.timestamp) FROM InstanceMetricsSnapshot m1 WHERE m1.instanceId = :instanceId AND m.status="+SHUTDOWNSTATUS+"), it.polimi.ramses.knowledge.domain.persistence.MetricsRepository.MIN_TIMESTAMP) " +
+    InstanceMetricsSnapshot findFirstByOrderByTimestampAsc();
+
+    Page<InstanceMetricsSnapshot> findAllByTimestampBefore(Date timestamp, Pageable pageable);
+
+    // Range scan of the (instance_id, timestamp) index from the newest snapshot. A List (instead of a Page) avoids the count query
+    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.instanceId = :instanceId AND m.timestamp > :lastShutdown " +
             "AND m.timestamp >= :after ORDER BY m.timestamp DESC")
-    Page<InstanceMetricsSnapshot> findLatestOfCurrentInstanceOrderByTimestampDesc(String instanceId, Date after, Pageable pageable);
+    List<InstanceMetricsSnapshot> findLatestOfCurrentInstanceOrderByTimestampDesc(String instanceId, Date lastShutdown, Date after, Pageable pageable);
+
+    // Same range scan, bounded by the given date
+    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.instanceId = :instanceId AND m.timestamp > :lastShutdown " +
+            "AND m.timestamp >= :after AND m.timestamp <= :before ORDER BY m.timestamp DESC")
+    List<InstanceMetricsSnapshot> findLatestOfCurrentInstanceBeforeOrderByTimestampDesc(String instanceId, Date lastShutdown, Date after, Date before, Pageable pageable);
+
+    // Keyset pagination on (timestamp, id): each page is a range scan of the timestamp index, whatever its position in the range
+    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE (m.timestamp > :afterTimestamp OR (m.timestamp = :afterTimestamp AND m.id > :afterId)) " +
+            "AND m.timestamp < :end ORDER BY m.timestamp ASC, m.id ASC")
+    List<InstanceMetricsSnapshot> findPageAfter(Date afterTimestamp, long afterId, Date end, Pageable pageable);
+
+    // Keyset pagination on the (service_id, timestamp) index
+    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.serviceId = :serviceId AND (m.timestamp > :afterTimestamp OR (m.timestamp = :afterTimestamp AND m.id > :afterId)) " +
+            "AND m.timestamp < :end ORDER BY m.timestamp ASC, m.id ASC")
+    List<InstanceMetricsSnapshot> findPageOfServiceAfter(String serviceId, Date afterTimestamp, long afterId, Date end, Pageable pageable);
+
+    // Keyset pagination on the (instance_id, timestamp) index
+    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.instanceId = :instanceId AND (m.timestamp > :afterTimestamp OR (m.timestamp = :afterTimestamp AND m.id > :afterId)) " +
+            "AND m.timestamp < :end ORDER BY m.timestamp ASC, m.id ASC")
+    List<InstanceMetricsSnapshot> findPageOfInstanceAfter(String instanceId, Date afterTimestamp, long afterId, Date end, Pageable pageable);
 
     Page<InstanceMetricsSnapshot> findAllByInstanceIdAndTimestampBeforeOrderByTimestampDesc(String instanceId, Date timestamp, Pageable pageable);
 
     Page<InstanceMetricsSnapshot> findAllByInstanceIdAndTimestampAfterOrderByTimestampDesc(String instanceId, Date timestamp, Pageable pageable);
 
-    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.instanceId = :instanceId AND m.timestamp = (SELECT MAX(m2.timestamp) FROM InstanceMetricsSnapshot m2 WHERE m2.instanceId = :instanceId)")
-    Collection<InstanceMetricsSnapshot> findLatestByInstanceId(@Param("instanceId") String instanceId);
+    // Single seek on the (instance_id, timestamp) index
+    InstanceMetricsSnapshot findFirstByInstanceIdOrderByTimestampDesc(String instanceId);
 
-    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.serviceId = :serviceId AND m.timestamp = (SELECT MAX(m2.timestamp) FROM InstanceMetricsSnapshot m2 WHERE m2.serviceId = :serviceId and m2.instanceId = m.instanceId)")
-    Collection<InstanceMetricsSnapshot> findLatestByServiceId(String serviceId);
+    // Single seek on the (instance_id, status, timestamp) index
+    InstanceMetricsSnapshot findFirstByInstanceIdAndStatusOrderByTimestampDesc(String instanceId, InstanceStatus status);
 
-    @Query("SELECT m FROM InstanceMetricsSnapshot m WHERE m.instanceId = :instanceId AND m.status=it.polimi.ramses.knowledge.domain.architecture.InstanceStatus.ACTIVE " +
-            "AND m.timestamp = (SELECT MAX(m2.timestamp) FROM InstanceMetricsSnapshot m2 WHERE m2.instanceId = :instanceId)")
-    Collection<InstanceMetricsSnapshot> findLatestOnlineMeasurementByInstanceId(String instanceId);
+    // The derived table is a loose scan of the (service_id, instance_id, timestamp) index, then each latest snapshot is a seek on (instance_id, timestamp)
+    @Query(value = "select m.* from instance_metrics_snapshot m join (" +
+                "select instance_id, max(timestamp) as latest from instance_metrics_snapshot where service_id = :serviceId group by instance_id" +
+            ") l on m.instance_id = l.instance_id and m.timestamp = l.latest where m.service_id = :serviceId", nativeQuery = true)
+    Collection<InstanceMetricsSnapshot> findLatestByServiceId(String serviceId);
 }
-
@@ -0,0 +1,200 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.metrics.HttpEndpointMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.MetricsRollup;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Background job that rolls the raw InstanceMetricsSnapshots up into per-minute and per-hour MetricsRollups,
+ * and that deletes the raw snapshots and the per-minute rollups older than their retention.
+ * Only complete buckets are rolled up, and the data is deleted only once it has been rolled up.
+ * A minute is complete only "lateness" after its end: the Monitor buffers its snapshots while a loop iteration is running,
+ * and the write-behind queue persists them later, so the latest snapshots of a minute can reach the database after its end.
+ */
+@Slf4j
+@Component
+@EnableScheduling
+public class MetricsRollupJob {
+    private final long rawMetricsRetentionMillis;
+    private final long minuteRollupsRetentionMillis;
+    private final int deleteBatchSize;
+    private final long latenessMillis;
+
+    @Autowired
+    private MetricsStorage metricsStorage;
+
+    @Autowired
+    private MetricsQueryEngine metricsQueryEngine;
+
+    @Autowired
+    private MetricsRollupRepository rollupRepository;
+
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    // Start of the next minute (hour) bucket to roll up. Null until the job runs for the first time
+    private Date nextMinuteBucket;
+    private Date nextHourBucket;
+
+    // <instanceId, latest ACTIVE snapshot rolled up>. The HTTP counters are cumulative, so each snapshot is compared with the previous one
+    private final Map<String, InstanceMetricsSnapshot> previousSnapshots = new HashMap<>();
+
+    public MetricsRollupJob(@Value("${RAW_METRICS_RETENTION_HOURS}") int rawMetricsRetentionHours,
+                            @Value("${MINUTE_METRICS_ROLLUPS_RETENTION_DAYS}") int minuteRollupsRetentionDays,
+                            @Value("${METRICS_RETENTION_DELETE_BATCH_SIZE}") int deleteBatchSize,
+                            @Value("${METRICS_ROLLUP_LATENESS_MILLIS}") long latenessMillis) {
+        if (rawMetricsRetentionHours < 1)
+            throw new IllegalArgumentException("Raw metrics retention must be at least one hour.");
+        if (minuteRollupsRetentionDays < 1)
+            throw new IllegalArgumentException("Minute rollups retention must be at least one day.");
+        if (deleteBatchSize < 1)
+            throw new IllegalArgumentException("Delete batch size must be greater than 0.");
+        if (latenessMillis < 0)
+            throw new IllegalArgumentException("Rollup lateness must not be negative.");
+        this.rawMetricsRetentionMillis = rawMetricsRetentionHours * MetricsRollup.Resolution.HOUR.getMillis();
+        this.minuteRollupsRetentionMillis = minuteRollupsRetentionDays * 24 * MetricsRollup.Resolution.HOUR.getMillis();
+        this.deleteBatchSize = deleteBatchSize;
+        this.latenessMillis = latenessMillis;
+    }
+
+    @Scheduled(fixedDelayString = "${METRICS_ROLLUP_PERIOD}", initialDelayString = "${METRICS_ROLLUP_PERIOD}")
+    public void run() {
+        try {
+            rollUpMinutes();
+            rollUpHours();
+            applyRetention();
+        } catch (Exception e) {
+            log.error("Error while rolling up the metrics: {}", e.getMessage());
+        }
+    }
+
+    private void rollUpMinutes() {
+        if (nextMinuteBucket == null) {
+            Date latest = rollupRepository.findLatestBucketStart(MetricsRollup.Resolution.MINUTE);
+            Date oldestSnapshot = latest == null ? metricsStorage.findOldestTimestamp() : null;
+            if (latest == null && oldestSnapshot == null)
+                return;
+            nextMinuteBucket = latest != null ? new Date(latest.getTime() + MetricsRollup.Resolution.MINUTE.getMillis()) : MetricsRollup.Resolution.MINUTE.bucketStartOf(oldestSnapshot);
+        }
+        // The latest minutes may still receive the snapshots buffered by the Monitor
+        Date end = MetricsRollup.Resolution.MINUTE.bucketStartOf(new Date(System.currentTimeMillis() - latenessMillis));
+        if (!nextMinuteBucket.before(end))
+            return;
+        // The snapshots of the buckets to roll up must be in the database
+        writeBehindQueue.flush();
+        int rollupsCount = 0;
+        // One hour of snapshots at a time, to bound the memory used after a long downtime of the job
+        while (nextMinuteBucket.before(end)) {
+            Date chunkEnd = new Date(Math.min(nextMinuteBucket.getTime() + MetricsRollup.Resolution.HOUR.getMillis(), end.getTime()));
+            // <instanceId@bucketStart, rollup>
+            Map<String, MetricsRollup> rollups = new LinkedHashMap<>();
+            metricsQueryEngine.stream(null, null, nextMinuteBucket, chunkEnd, snapshot -> {
+                Date bucketStart = MetricsRollup.Resolution.MINUTE.bucketStartOf(snapshot.getTimestamp());
+                MetricsRollup rollup = rollups.computeIfAbsent(snapshot.getInstanceId() + "@" + bucketStart.getTime(),
+                        key -> new MetricsRollup(MetricsRollup.Resolution.MINUTE, snapshot.getServiceId(), snapshot.getInstanceId(), bucketStart));
+                accumulate(rollup, snapshot);
+            });
+            rollupRepository.saveAll(rollups.values());
+            rollupsCount += rollups.size();
+            nextMinuteBucket = chunkEnd;
+        }
+        log.debug("Rolled up the metrics until {} into {} minute rollups", end, rollupsCount);
+    }
+
+    private void accumulate(MetricsRollup rollup, InstanceMetricsSnapshot snapshot) {
+        rollup.setSamples(rollup.getSamples() + 1);
+        if (snapshot.getCpuUsage() != null) {
+            rollup.setCpuUsageSum(rollup.getCpuUsageSum() + snapshot.getCpuUsage());
+            rollup.setCpuUsageSamples(rollup.getCpuUsageSamples() + 1);
+        }
+        switch (snapshot.getStatus()) {
+            case ACTIVE -> rollup.setActiveSamples(rollup.getActiveSamples() + 1);
+            case UNREACHABLE -> rollup.setUnreachableSamples(rollup.getUnreachableSamples() + 1);
+            case FAILED -> rollup.setFailedSamples(rollup.getFailedSamples() + 1);
+            case SHUTDOWN -> previousSnapshots.remove(snapshot.getInstanceId());
+            default -> {}
+        }
+        if (!snapshot.isActive())
+            return;
+        InstanceMetricsSnapshot previous = previousSnapshots.put(snapshot.getInstanceId(), snapshot);
+        // Without a previous snapshot the increments of the counters are unknown: the snapshot is only used as baseline
+        if (previous == null)
+            return;
+        for (Map.Entry<String, HttpEndpointMetrics> entry : snapshot.getHttpMetrics().entrySet()) {
+            HttpEndpointMetrics endpointMetrics = entry.getValue();
+            HttpEndpointMetrics previousEndpointMetrics = previous.getHttpMetrics().get(entry.getKey());
+            rollup.setRequestsCount(rollup.getRequestsCount() + increment(endpointMetrics.getTotalCount(),
+                    previousEndpointMetrics == null ? 0 : previousEndpointMetrics.getTotalCount()));
+            rollup.setSuccessfulRequestsCount(rollup.getSuccessfulRequestsCount() + increment(endpointMetrics.getTotalCountOfSuccessful(),
+                    previousEndpointMetrics == null ? 0 : previousEndpointMetrics.getTotalCountOfSuccessful()));
+            rollup.setSuccessfulRequestsTotalDuration(rollup.getSuccessfulRequestsTotalDuration() + increment(endpointMetrics.getTotalDurationOfSuccessful(),
+                    previousEndpointMetrics == null ? 0 : previousEndpointMetrics.getTotalDurationOfSuccessful()));
+            rollup.setMaxRequestDuration(Math.max(rollup.getMaxRequestDuration(), endpointMetrics.getMaxDuration()));
+        }
+    }
+
+    // A counter lower than the previous one has been reset (e.g., the instance restarted)
+    static double increment(double current, double previous) {
+        return current >= previous ? current - previous : current;
+    }
+
+    static long increment(long current, long previous) {
+        return current >= previous ? current - previous : current;
+    }
+
+    private void rollUpHours() {
+        if (nextMinuteBucket == null)
+            return;
+        if (nextHourBucket == null) {
+            Date latest = rollupRepository.findLatestBucketStart(MetricsRollup.Resolution.HOUR);
+            MetricsRollup oldestMinuteRollup = latest == null ? rollupRepository.findFirstByResolutionOrderByBucketStartAsc(MetricsRollup.Resolution.MINUTE) : null;
+            if (latest == null && oldestMinuteRollup == null)
+                return;
+            nextHourBucket = latest != null ? new Date(latest.getTime() + MetricsRollup.Resolution.HOUR.getMillis()) : MetricsRollup.Resolution.HOUR.bucketStartOf(oldestMinuteRollup.getBucketStart());
+        }
+        // Only the hours whose minutes have all been rolled up
+        Date end = MetricsRollup.Resolution.HOUR.bucketStartOf(nextMinuteBucket);
+        while (nextHourBucket.before(end)) {
+            Date hourEnd = new Date(nextHourBucket.getTime() + MetricsRollup.Resolution.HOUR.getMillis());
+            // <instanceId, rollup>
+            Map<String, MetricsRollup> rollups = new LinkedHashMap<>();
+            for (MetricsRollup minuteRollup : rollupRepository.findAllByResolutionAndBucketStartBetweenOrderByBucketStartAsc(MetricsRollup.Resolution.MINUTE, nextHourBucket, new Date(hourEnd.getTime() - 1))) {
+                Date bucketStart = nextHourBucket;
+                rollups.computeIfAbsent(minuteRollup.getInstanceId(),
+                        key -> new MetricsRollup(MetricsRollup.Resolution.HOUR, minuteRollup.getServiceId(), minuteRollup.getInstanceId(), bucketStart))
+                        .merge(minuteRollup);
+            }
+            rollupRepository.saveAll(rollups.values());
+            log.debug("Rolled up the hour starting at {} into {} hour rollups", nextHourBucket, rollups.size());
+            nextHourBucket = hourEnd;
+        }
+    }
+
+    private void applyRetention() {
+        long now = System.currentTimeMillis();
+        if (nextMinuteBucket != null) {
+            Date rawMetricsLimit = new Date(Math.min(now - rawMetricsRetentionMillis, nextMinuteBucket.getTime()));
+            int deleted, totalDeleted = 0;
+            do {
+                deleted = metricsStorage.deleteOldest(rawMetricsLimit, deleteBatchSize);
+                totalDeleted += deleted;
+            } while (deleted == deleteBatchSize);
+            if (totalDeleted > 0)
+                log.debug("Deleted {} metrics snapshots taken before {}", totalDeleted, rawMetricsLimit);
+        }
+        if (nextHourBucket != null) {
+            Date minuteRollupsLimit = new Date(Math.min(now - minuteRollupsRetentionMillis, nextHourBucket.getTime()));
+            int deleted = rollupRepository.deleteAllByResolutionAndBucketStartBefore(MetricsRollup.Resolution.MINUTE, minuteRollupsLimit);
+            if (deleted > 0)
+                log.debug("Deleted {} minute rollups before {}", deleted, minuteRollupsLimit);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.metrics.MetricsRollup;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.Date;
+
+
+public interface MetricsRollupRepository extends CrudRepository<MetricsRollup, Long> {
+
+    Collection<MetricsRollup> findAllByResolutionAndBucketStartBetweenOrderByBucketStartAsc(MetricsRollup.Resolution resolution, Date start, Date end);
+
+    Collection<MetricsRollup> findAllByResolutionAndInstanceIdAndBucketStartBetweenOrderByBucketStartAsc(MetricsRollup.Resolution resolution, String instanceId, Date start, Date end);
+
+    Collection<MetricsRollup> findAllByResolutionAndServiceIdAndBucketStartBetweenOrderByBucketStartAsc(MetricsRollup.Resolution resolution, String serviceId, Date start, Date end);
+
+    MetricsRollup findFirstByResolutionOrderByBucketStartAsc(MetricsRollup.Resolution resolution);
+
+    @Query("SELECT MAX(r.bucketStart) FROM MetricsRollup r WHERE r.resolution = :resolution")
+    Date findLatestBucketStart(MetricsRollup.Resolution resolution);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM MetricsRollup r WHERE r.resolution = :resolution AND r.bucketStart < :before")
+    int deleteAllByResolutionAndBucketStartBefore(MetricsRollup.Resolution resolution, Date before);
+}
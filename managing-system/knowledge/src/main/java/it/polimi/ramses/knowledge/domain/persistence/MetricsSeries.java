@@ -0,0 +1,27 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+// Entry of the dictionary of the series encoded in the CompactMetricsSnapshots
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+public class MetricsSeries {
+    @Id
+    @GeneratedValue
+    private Integer id;
+    @Column(unique = true, nullable = false)
+    private String name;
+
+    public MetricsSeries(String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,7 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import org.springframework.data.repository.CrudRepository;
+
+public interface MetricsSeriesRepository extends CrudRepository<MetricsSeries, Integer> {
+
+}
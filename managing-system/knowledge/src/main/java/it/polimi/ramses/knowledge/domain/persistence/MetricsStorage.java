@@ -0,0 +1,235 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Entry point for the persistence of the InstanceMetricsSnapshots.
+ * In ENTITY mode each snapshot is stored as a graph of JPA entities (snapshot, endpoints, outcomes and circuit breakers).
+ * In COMPACT mode each snapshot is stored as a single CompactMetricsSnapshot row.
+ */
+@Slf4j
+@Component
+public class MetricsStorage {
+    public enum Mode {
+        ENTITY,
+        COMPACT
+    }
+
+    @Getter
+    private final Mode mode;
+
+    @Autowired
+    private MetricsRepository metricsRepository;
+
+    @Autowired
+    private CompactMetricsRepository compactMetricsRepository;
+
+    @Autowired
+    private CompactMetricsCodec compactMetricsCodec;
+
+    @Autowired
+    private WriteBehindQueue writeBehindQueue;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    public MetricsStorage(@Value("${METRICS_STORAGE_MODE}") Mode mode) {
+        this.mode = mode;
+        log.debug("MetricsStorageMode: {}", mode);
+    }
+
+    // The snapshots are persisted in background by the WriteBehindQueue
+    public void save(Collection<InstanceMetricsSnapshot> snapshots) {
+        if (mode == Mode.COMPACT)
+            writeBehindQueue.enqueueCompactMetrics(snapshots.stream().map(compactMetricsCodec::encode).toList());
+        else
+            writeBehindQueue.enqueueMetrics(snapshots);
+    }
+
+    public void save(InstanceMetricsSnapshot snapshot) {
+        save(List.of(snapshot));
+    }
+
+    public InstanceMetricsSnapshot findById(long id) {
+        if (mode == Mode.COMPACT)
+            return compactMetricsRepository.findById(id).map(compactMetricsCodec::decode).orElse(null);
+        return metricsRepository.findById(id).orElse(null);
+    }
+
+    // Snapshots of the current run of the instance, i.e., taken after its latest shutdown, from the newest to the oldest
+    public List<InstanceMetricsSnapshot> findLatestOfCurrentInstance(String instanceId, Date after, int n) {
+        if (mode == Mode.COMPACT) {
+            CompactMetricsSnapshot lastShutdown = compactMetricsRepository.findFirstByInstanceIdAndStatusOrderByTimestampDesc(instanceId, InstanceStatus.SHUTDOWN);
+            return decode(compactMetricsRepository.findLatestOfCurrentInstanceOrderByTimestampDesc(instanceId,
+                    lastShutdown == null ? MetricsRepository.MIN_TIMESTAMP : lastShutdown.getTimestamp(), after, Pageable.ofSize(n)));
+        }
+        InstanceMetricsSnapshot lastShutdown = metricsRepository.findFirstByInstanceIdAndStatusOrderByTimestampDesc(instanceId, InstanceStatus.SHUTDOWN);
+        return metricsRepository.findLatestOfCurrentInstanceOrderByTimestampDesc(instanceId,
+                lastShutdown == null ? MetricsRepository.MIN_TIMESTAMP : lastShutdown.getTimestamp(), after, Pageable.ofSize(n));
+    }
+
+    /**
+     * Snapshots of the current run of the instance in the latest windowMillis, taken at or after the given date, from the newest
+     * to the oldest. The window starts with its anchor, i.e., the newest snapshot taken at least windowMillis before the newest one.
+     * Each lookup is a range scan of the (instance_id, timestamp) index. The result is empty if there is no anchor yet.
+     */
+    public List<InstanceMetricsSnapshot> findWindowOfCurrentInstance(String instanceId, Date after, long windowMillis) {
+        if (mode == Mode.COMPACT) {
+            CompactMetricsSnapshot lastShutdown = compactMetricsRepository.findFirstByInstanceIdAndStatusOrderByTimestampDesc(instanceId, InstanceStatus.SHUTDOWN);
+            Date lastShutdownTimestamp = lastShutdown == null ? MetricsRepository.MIN_TIMESTAMP : lastShutdown.getTimestamp();
+            List<CompactMetricsSnapshot> newest = compactMetricsRepository.findLatestOfCurrentInstanceOrderByTimestampDesc(instanceId, lastShutdownTimestamp, after, Pageable.ofSize(1));
+            if (newest.isEmpty())
+                return List.of();
+            List<CompactMetricsSnapshot> anchor = compactMetricsRepository.findLatestOfCurrentInstanceBeforeOrderByTimestampDesc(instanceId, lastShutdownTimestamp, after,
+                    new Date(newest.get(0).getTimestamp().getTime() - windowMillis), Pageable.ofSize(1));
+            if (anchor.isEmpty())
+                return List.of();
+            return decode(compactMetricsRepository.findLatestOfCurrentInstanceOrderByTimestampDesc(instanceId, lastShutdownTimestamp, anchor.get(0).getTimestamp(), Pageable.unpaged()));
+        }
+        InstanceMetricsSnapshot lastShutdown = metricsRepository.findFirstByInstanceIdAndStatusOrderByTimestampDesc(instanceId, InstanceStatus.SHUTDOWN);
+        Date lastShutdownTimestamp = lastShutdown == null ? MetricsRepository.MIN_TIMESTAMP : lastShutdown.getTimestamp();
+        List<InstanceMetricsSnapshot> newest = metricsRepository.findLatestOfCurrentInstanceOrderByTimestampDesc(instanceId, lastShutdownTimestamp, after, Pageable.ofSize(1));
+        if (newest.isEmpty())
+            return List.of();
+        List<InstanceMetricsSnapshot> anchor = metricsRepository.findLatestOfCurrentInstanceBeforeOrderByTimestampDesc(instanceId, lastShutdownTimestamp, after,
+                new Date(newest.get(0).getTimestamp().getTime() - windowMillis), Pageable.ofSize(1));
+        if (anchor.isEmpty())
+            return List.of();
+        return metricsRepository.findLatestOfCurrentInstanceOrderByTimestampDesc(instanceId, lastShutdownTimestamp, anchor.get(0).getTimestamp(), Pageable.unpaged());
+    }
+
+    public List<InstanceMetricsSnapshot> findAllByInstanceId(String instanceId) {
+        if (mode == Mode.COMPACT)
+            return decode(compactMetricsRepository.findAllByInstanceIdOrderByTimestampAsc(instanceId));
+        return metricsRepository.findAllByInstanceId(instanceId).stream().toList();
+    }
+
+    public List<InstanceMetricsSnapshot> findAllBetween(Date start, Date end) {
+        if (mode == Mode.COMPACT)
+            return decode(compactMetricsRepository.findAllByTimestampBetweenOrderByTimestampAsc(start, end));
+        return metricsRepository.findAllByTimestampBetween(start, end).stream().toList();
+    }
+
+    public List<InstanceMetricsSnapshot> findAllByInstanceIdBetween(String instanceId, Date start, Date end) {
+        if (mode == Mode.COMPACT)
+            return decode(compactMetricsRepository.findAllByInstanceIdAndTimestampBetweenOrderByTimestampAsc(instanceId, start, end));
+        return metricsRepository.findAllByInstanceIdAndTimestampBetween(instanceId, start, end).stream().toList();
+    }
+
+    /**
+     * Keyset pagination over the snapshots taken in [afterTimestamp, end), ordered by (timestamp, id).
+     * The first page starts at afterTimestamp with afterId = -1, each next page after the last snapshot of the previous one.
+     * The snapshots are fully initialized and detached, so they can be used after the end of the transaction
+     * and they are not retained by an entity manager shared by the request (e.g., with open-in-view).
+     * @param serviceId the service of the snapshots, or null
+     * @param instanceId the instance of the snapshots, or null
+     */
+    @Transactional(readOnly = true)
+    public List<InstanceMetricsSnapshot> findPageAfter(String serviceId, String instanceId, Date afterTimestamp, long afterId, Date end, int pageSize) {
+        // A query for each filter, so that each one is a range scan of its own index
+        if (mode == Mode.COMPACT) {
+            if (instanceId != null)
+                return decode(compactMetricsRepository.findPageOfInstanceAfter(instanceId, afterTimestamp, afterId, end, Pageable.ofSize(pageSize)));
+            if (serviceId != null)
+                return decode(compactMetricsRepository.findPageOfServiceAfter(serviceId, afterTimestamp, afterId, end, Pageable.ofSize(pageSize)));
+            return decode(compactMetricsRepository.findPageAfter(afterTimestamp, afterId, end, Pageable.ofSize(pageSize)));
+        }
+        List<InstanceMetricsSnapshot> page;
+        if (instanceId != null)
+            page = metricsRepository.findPageOfInstanceAfter(instanceId, afterTimestamp, afterId, end, Pageable.ofSize(pageSize));
+        else if (serviceId != null)
+            page = metricsRepository.findPageOfServiceAfter(serviceId, afterTimestamp, afterId, end, Pageable.ofSize(pageSize));
+        else
+            page = metricsRepository.findPageAfter(afterTimestamp, afterId, end, Pageable.ofSize(pageSize));
+        page.forEach(snapshot -> {
+            initialize(snapshot);
+            entityManager.detach(snapshot);
+        });
+        return page;
+    }
+
+    public List<InstanceMetricsSnapshot> findNBefore(String instanceId, Date timestamp, int n) {
+        if (mode == Mode.COMPACT)
+            return decode(compactMetricsRepository.findAllByInstanceIdAndTimestampBeforeOrderByTimestampDesc(instanceId, timestamp, Pageable.ofSize(n)).getContent());
+        return metricsRepository.findAllByInstanceIdAndTimestampBeforeOrderByTimestampDesc(instanceId, timestamp, Pageable.ofSize(n)).stream().toList();
+    }
+
+    public List<InstanceMetricsSnapshot> findNAfter(String instanceId, Date timestamp, int n) {
+        if (mode == Mode.COMPACT)
+            return decode(compactMetricsRepository.findAllByInstanceIdAndTimestampAfterOrderByTimestampDesc(instanceId, timestamp, Pageable.ofSize(n)).getContent());
+        return metricsRepository.findAllByInstanceIdAndTimestampAfterOrderByTimestampDesc(instanceId, timestamp, Pageable.ofSize(n)).stream().toList();
+    }
+
+    public InstanceMetricsSnapshot findLatestByInstanceId(String instanceId) {
+        if (mode == Mode.COMPACT) {
+            CompactMetricsSnapshot latest = compactMetricsRepository.findFirstByInstanceIdOrderByTimestampDesc(instanceId);
+            return latest == null ? null : compactMetricsCodec.decode(latest);
+        }
+        return metricsRepository.findFirstByInstanceIdOrderByTimestampDesc(instanceId);
+    }
+
+    public List<InstanceMetricsSnapshot> findLatestByServiceId(String serviceId) {
+        if (mode == Mode.COMPACT)
+            return decode(compactMetricsRepository.findLatestByServiceId(serviceId));
+        return metricsRepository.findLatestByServiceId(serviceId).stream().toList();
+    }
+
+    // The latest snapshot of the instance, if it is ACTIVE
+    public InstanceMetricsSnapshot findLatestActiveByInstanceId(String instanceId) {
+        InstanceMetricsSnapshot latest = findLatestByInstanceId(instanceId);
+        return latest != null && latest.isActive() ? latest : null;
+    }
+
+    public Date findOldestTimestamp() {
+        if (mode == Mode.COMPACT) {
+            CompactMetricsSnapshot oldest = compactMetricsRepository.findFirstByOrderByTimestampAsc();
+            return oldest == null ? null : oldest.getTimestamp();
+        }
+        InstanceMetricsSnapshot oldest = metricsRepository.findFirstByOrderByTimestampAsc();
+        return oldest == null ? null : oldest.getTimestamp();
+    }
+
+    /**
+     * Deletes at most batchSize snapshots taken before the given date.
+     * @return the number of deleted snapshots
+     */
+    public int deleteOldest(Date before, int batchSize) {
+        if (mode == Mode.COMPACT)
+            return compactMetricsRepository.deleteOldest(before, batchSize);
+        // The snapshots are deleted through the repository, so that their endpoints and circuit breakers metrics are deleted in cascade
+        List<InstanceMetricsSnapshot> oldest = metricsRepository.findAllByTimestampBefore(before, Pageable.ofSize(batchSize)).getContent();
+        metricsRepository.deleteAll(oldest);
+        return oldest.size();
+    }
+
+    // The collections are loaded in batches of hibernate.default_batch_fetch_size
+    private static void initialize(InstanceMetricsSnapshot snapshot) {
+        snapshot.getHttpMetrics().values().forEach(endpointMetrics -> Hibernate.initialize(endpointMetrics.getOutcomeMetrics()));
+        snapshot.getCircuitBreakerMetrics().values().forEach(circuitBreakerMetrics -> {
+            Hibernate.initialize(circuitBreakerMetrics.getBufferedCallsCount());
+            Hibernate.initialize(circuitBreakerMetrics.getCallDuration());
+            Hibernate.initialize(circuitBreakerMetrics.getCallMaxDuration());
+            Hibernate.initialize(circuitBreakerMetrics.getCallCount());
+            Hibernate.initialize(circuitBreakerMetrics.getSlowCallCount());
+        });
+    }
+
+    private List<InstanceMetricsSnapshot> decode(Collection<CompactMetricsSnapshot> compactSnapshots) {
+        return compactSnapshots.stream().map(compactMetricsCodec::decode).toList();
+    }
+}
@@ -0,0 +1,120 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polimi.ramses.knowledge.domain.KnowledgeService;
+import it.polimi.ramses.knowledge.domain.architecture.Service;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Periodically writes the architecture model of the Knowledge (services, instances, QoS histories and current values)
+ * to a local gzipped file, so that a restarted Knowledge can restore the QoS histories from it instead of rebuilding them.
+ * The checkpoint is written to a temporary file and then atomically renamed, so a crash never leaves a partial checkpoint.
+ */
+@Slf4j
+@Component
+public class ModelCheckpointStore {
+    private static final int VERSION = 1;
+
+    private final Path checkpointPath;
+    private final long maxAgeMillis;
+
+    @Autowired
+    private KnowledgeService knowledgeService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // The snapshots of the model are immutable: the same reference means that the model has not changed
+    private Map<String, Service> latestCheckpointedServices;
+
+    public ModelCheckpointStore(@Value("${CHECKPOINT_PATH}") String checkpointPath,
+                                @Value("${CHECKPOINT_MAX_AGE_SECONDS}") int maxAgeSeconds) {
+        if (maxAgeSeconds < 0)
+            throw new IllegalArgumentException("Checkpoint max age must be non-negative.");
+        this.checkpointPath = Paths.get(checkpointPath).toAbsolutePath();
+        this.maxAgeMillis = maxAgeSeconds * 1000L;
+        log.debug("CheckpointPath: {}", this.checkpointPath);
+    }
+
+    @Scheduled(fixedDelayString = "${CHECKPOINT_PERIOD}", initialDelayString = "${CHECKPOINT_PERIOD}")
+    public synchronized void checkpoint() {
+        Map<String, Service> services = knowledgeService.getServicesMap();
+        if (services.isEmpty() || services == latestCheckpointedServices)
+            return;
+        long start = System.currentTimeMillis();
+        Path tmpPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            objectMapper.writeValue(out, new Checkpoint(VERSION, new Date(), services));
+        } catch (IOException e) {
+            log.error("Error while writing the checkpoint: {}", e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmpPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error while replacing the checkpoint: {}", e.getMessage());
+            return;
+        }
+        latestCheckpointedServices = services;
+        log.debug("Checkpoint of {} services written in {} ms", services.size(), System.currentTimeMillis() - start);
+    }
+
+    @PreDestroy
+    public void checkpointOnShutdown() {
+        checkpoint();
+    }
+
+    /**
+     * Reads the latest checkpoint.
+     * @return the services of the checkpoint, or null if there is no valid checkpoint younger than the max age
+     */
+    public Map<String, Service> load() {
+        if (!Files.exists(checkpointPath)) {
+            log.info("No checkpoint found at {}", checkpointPath);
+            return null;
+        }
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(checkpointPath)))) {
+            Checkpoint checkpoint = objectMapper.readValue(in, Checkpoint.class);
+            if (checkpoint.getVersion() != VERSION) {
+                log.warn("Ignoring checkpoint with unsupported version {}", checkpoint.getVersion());
+                return null;
+            }
+            long age = System.currentTimeMillis() - checkpoint.getTimestamp().getTime();
+            if (age > maxAgeMillis) {
+                log.info("Ignoring checkpoint taken {} s ago", age / 1000);
+                return null;
+            }
+            return checkpoint.getServices();
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable checkpoint: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class Checkpoint {
+        private int version;
+        private Date timestamp;
+        private Map<String, Service> services;
+    }
+}
@@ -5,18 +5,24 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.List;
+
 
 @Transactional
 public interface QoSRepository extends CrudRepository<QoSValueEntity, Long> {
 
-    // invalidate QoSHistory for a given service and its instances
+    // Invalidates the latest values of the QoS histories, tracked by the KnowledgeService with their ids
     @Modifying
+    @Query("UPDATE QoSValueEntity q SET q.invalidatesThisAndPrevious = true WHERE q.id IN :ids")
+    void invalidateQoSValues(Collection<Long> ids);
+
+    // Latest value of each QoS history of the given implementations, i.e., the one with the highest id
     @Query(value =
-            "update qosvalue_entity set invalidates_this_and_previous = true where id in (select id from (" +
-                "select q.id from qosvalue_entity q where q.service_id = :serviceId and q.service_implementation_id = :implementationId and q.timestamp = (" +
-                    "select max(q2.timestamp) from qosvalue_entity q2 where q2.service_id = :serviceId and q2.service_implementation_id = :implementationId and q2.qos = q.qos and (q2.instance_id = q.instance_id or (q.instance_id is null and q2.instance_id is null))" +
-                ")" +
-            ") as t)", nativeQuery = true)
-    void invalidateServiceQoSHistory(String serviceId, String implementationId);
+            "select q.* from qosvalue_entity q join (" +
+                "select max(q2.id) as id from qosvalue_entity q2 where q2.service_implementation_id in (:implementationIds) " +
+                "group by q2.service_implementation_id, q2.service_id, q2.instance_id, q2.qos" +
+            ") latest on q.id = latest.id", nativeQuery = true)
+    List<QoSValueEntity> findLatestOfImplementations(Collection<String> implementationIds);
 
 }
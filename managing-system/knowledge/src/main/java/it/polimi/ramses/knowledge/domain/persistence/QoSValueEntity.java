@@ -4,17 +4,29 @@ import it.polimi.ramses.knowledge.domain.adaptation.values.QoSHistory;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 import javax.persistence.*;
 import java.util.Date;
 
 @Entity
+@Table(indexes = {
+        @Index(name = "qos_value_history_idx", columnList = "serviceId, serviceImplementationId, timestamp"),
+        // Used to look up the latest value of each QoS history at startup, when they are not tracked in memory yet
+        @Index(name = "qos_value_latest_idx", columnList = "serviceImplementationId, serviceId, instanceId, qos, id")
+})
 @Getter
 @Setter
 @NoArgsConstructor
 public class QoSValueEntity {
     @Id
-    @GeneratedValue
+    @GeneratedValue(generator = "qos_value_entity_seq")
+    @GenericGenerator(name = "qos_value_entity_seq", strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator", parameters = {
+            @Parameter(name = "sequence_name", value = "qos_value_entity_seq"),
+            @Parameter(name = "optimizer", value = "pooled"),
+            @Parameter(name = "increment_size", value = "50")
+    })
     private long id;
     private String serviceId;
     private String serviceImplementationId;
@@ -26,6 +38,9 @@ public class QoSValueEntity {
     private double threshold;
     @Temporal(TemporalType.TIMESTAMP)
     private Date timestamp;
+    // Encoded LatencySketch of the response times of the value, if any
+    @Lob
+    private byte[] sketch;
 
     public QoSValueEntity(String serviceId, String serviceImplementationId, String instanceId, String qos, double threshold, Double currentValue, double value, boolean invalidatesThisAndPrevious, Date timestamp) {
         this.serviceId = serviceId;
@@ -41,5 +56,6 @@ public class QoSValueEntity {
 
     public QoSValueEntity(String serviceId, String serviceImplementationId, String instanceId, String qos, double threshold, QoSHistory.Value currentValue, QoSHistory.Value value) {
         this(serviceId, serviceImplementationId, instanceId, qos, threshold, (currentValue == null ? null : currentValue.getDoubleValue()), value.getDoubleValue(), value.invalidatesThisAndPreviousValues(), value.getTimestamp());
+        this.sketch = value.getSketch();
     }
 }
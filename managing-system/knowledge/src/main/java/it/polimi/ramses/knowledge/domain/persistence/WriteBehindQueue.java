@@ -0,0 +1,317 @@
+package it.polimi.ramses.knowledge.domain.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists the metrics snapshots and the QoS values in background, so that the REST calls of the Monitor and of the
+ * Analyse return as soon as the in-memory model of the Knowledge is updated.
+ * The entities are written in batches by a dedicated thread. The queue is bounded: when it is full, the producers
+ * wait at most WRITE_BEHIND_OFFER_TIMEOUT_MILLIS per call, then the entities that do not fit are appended to the
+ * dead-letter file, so that the producers (which hold the lock of the model) never wait for the database.
+ * The queue holds copies of the entities, so the worker never touches the instances shared with the model and the cache.
+ * A batch that cannot be persisted is retried with an exponential backoff, then it is appended to the dead-letter file.
+ */
+@Slf4j
+@Component
+public class WriteBehindQueue {
+    private final MetricsRepository metricsRepository;
+    private final CompactMetricsRepository compactMetricsRepository;
+    private final QoSRepository qosRepository;
+    private final ObjectMapper objectMapper;
+
+    private final BlockingQueue<PendingWrite> queue;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private final long offerTimeoutMillis;
+    private final String deadLetterPath;
+    // Number of entities enqueued and not persisted yet (including the ones in the batch being persisted)
+    private final AtomicLong pendingWrites = new AtomicLong(0);
+    // Sequence number of the latest entity enqueued, and of the latest one persisted or dead-lettered.
+    // The entities are processed in the enqueuing order, so all the entities up to the processed sequence are done
+    private volatile long enqueuedSequence = 0;
+    private final AtomicLong processedSequence = new AtomicLong(0);
+    private final Counter deadLetteredWrites;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public WriteBehindQueue(MetricsRepository metricsRepository, CompactMetricsRepository compactMetricsRepository,
+                            QoSRepository qosRepository, ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                            @Value("${WRITE_BEHIND_QUEUE_SIZE}") int queueSize,
+                            @Value("${WRITE_BEHIND_BATCH_SIZE}") int batchSize,
+                            @Value("${WRITE_BEHIND_MAX_ATTEMPTS}") int maxAttempts,
+                            @Value("${WRITE_BEHIND_RETRY_BACKOFF_MILLIS}") long retryBackoffMillis,
+                            @Value("${WRITE_BEHIND_OFFER_TIMEOUT_MILLIS}") long offerTimeoutMillis,
+                            @Value("${WRITE_BEHIND_DEAD_LETTER_PATH}") String deadLetterPath) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Write-behind queue size must be greater than 0.");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("Write-behind batch size must be greater than 0.");
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Write-behind max attempts must be greater than 0.");
+        if (retryBackoffMillis < 0)
+            throw new IllegalArgumentException("Write-behind retry backoff must not be negative.");
+        if (offerTimeoutMillis < 0)
+            throw new IllegalArgumentException("Write-behind offer timeout must not be negative.");
+        this.metricsRepository = metricsRepository;
+        this.compactMetricsRepository = compactMetricsRepository;
+        this.qosRepository = qosRepository;
+        this.objectMapper = objectMapper;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.deadLetterPath = deadLetterPath;
+        Gauge.builder("knowledge.writebehind.queue.depth", pendingWrites, AtomicLong::get)
+                .description("Entities waiting to be persisted")
+                .register(meterRegistry);
+        Gauge.builder("knowledge.writebehind.lag", this, WriteBehindQueue::getLagMillis)
+                .description("Age of the oldest entity waiting to be persisted")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        deadLetteredWrites = Counter.builder("knowledge.writebehind.deadlettered")
+                .description("Entities written to the dead-letter file after all the attempts failed")
+                .register(meterRegistry);
+        worker = new Thread(this::run, "knowledge-write-behind");
+        worker.start();
+    }
+
+    public void enqueueMetrics(Collection<InstanceMetricsSnapshot> snapshots) {
+        enqueue(snapshots.stream().map(snapshot -> (Object) copyOf(snapshot)).toList());
+    }
+
+    // The compact snapshots are built for the queue, so they are not shared
+    public void enqueueCompactMetrics(Collection<CompactMetricsSnapshot> snapshots) {
+        enqueue(List.copyOf(snapshots));
+    }
+
+    // The id generated for the copy of each value is set on the given value once persisted, so that it can be invalidated by id
+    public void enqueueQoSValues(Collection<QoSValueEntity> values) {
+        enqueue(values.stream().map(value -> (Object) new QoSValueWrite(copyOf(value), value)).toList());
+    }
+
+    /**
+     * The invalidation is applied after the QoS values enqueued before it have been persisted, so the ids of the given
+     * values are read by the worker. The values not persisted (i.e., dead-lettered) are not invalidated.
+     * @param latestValues the values enqueued by enqueueQoSValues, or loaded from the database
+     */
+    public void enqueueQoSValuesInvalidation(Collection<QoSValueEntity> latestValues) {
+        if (!latestValues.isEmpty())
+            enqueue(List.of(new QoSValuesInvalidation(List.copyOf(latestValues))));
+    }
+
+    // Waits for room in the queue at most offerTimeoutMillis in total. The entities that do not fit are dead-lettered
+    private void enqueue(List<Object> entities) {
+        if (entities.isEmpty())
+            return;
+        long deadline = System.currentTimeMillis() + offerTimeoutMillis;
+        List<PendingWrite> overflow = new ArrayList<>();
+        // The sequence numbers are assigned in the enqueuing order
+        synchronized (queue) {
+            for (Object entity : entities) {
+                PendingWrite pendingWrite = new PendingWrite(entity, enqueuedSequence + 1);
+                pendingWrites.incrementAndGet();
+                boolean enqueued = queue.offer(pendingWrite);
+                if (!enqueued && overflow.isEmpty()) {
+                    try {
+                        enqueued = queue.offer(pendingWrite, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (enqueued)
+                    enqueuedSequence = pendingWrite.sequence;
+                else {
+                    pendingWrites.decrementAndGet();
+                    overflow.add(pendingWrite);
+                }
+            }
+        }
+        if (!overflow.isEmpty()) {
+            log.warn("Write-behind queue full. {} entities are not persisted", overflow.size());
+            deadLetter(overflow);
+        }
+    }
+
+    // Blocks until all the entities enqueued before the call have been persisted (or dead-lettered).
+    // The entities enqueued in the meantime are not waited for, so the call cannot be starved by the producers
+    public void flush() {
+        long target = enqueuedSequence;
+        synchronized (processedSequence) {
+            while (processedSequence.get() < target) {
+                try {
+                    processedSequence.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while flushing the write-behind queue", e);
+                }
+            }
+        }
+    }
+
+    public long getLagMillis() {
+        PendingWrite oldest = queue.peek();
+        return oldest == null ? 0 : System.currentTimeMillis() - oldest.enqueueTime;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        log.info("Flushing {} pending writes", pendingWrites.get());
+        running = false;
+        worker.join();
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                persistWithRetries(batch);
+            } catch (InterruptedException e) {
+                log.warn("Write-behind worker interrupted");
+                if (!batch.isEmpty())
+                    deadLetter(batch);
+            } finally {
+                if (!batch.isEmpty()) {
+                    pendingWrites.addAndGet(-batch.size());
+                    processedSequence.set(batch.get(batch.size() - 1).sequence);
+                    batch.clear();
+                    synchronized (processedSequence) {
+                        processedSequence.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void persistWithRetries(List<PendingWrite> batch) throws InterruptedException {
+        long backoff = retryBackoffMillis;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                persist(batch);
+                return;
+            } catch (Exception e) {
+                log.error("Attempt {}/{} to persist a batch of {} entities failed: {}", attempt, maxAttempts, batch.size(), e.getMessage());
+            }
+            if (attempt < maxAttempts) {
+                // While shutting down, the retries do not wait
+                if (running)
+                    Thread.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+        deadLetter(batch);
+    }
+
+    // Saving an entity again is harmless: the saved entities have an id, so they are merged instead of inserted again
+    private void persist(List<PendingWrite> batch) {
+        List<InstanceMetricsSnapshot> metrics = new ArrayList<>(batch.size());
+        List<CompactMetricsSnapshot> compactMetrics = new ArrayList<>(batch.size());
+        List<QoSValueWrite> qosValues = new ArrayList<>(batch.size());
+        long start = System.currentTimeMillis();
+        for (PendingWrite pendingWrite : batch) {
+            if (pendingWrite.entity instanceof InstanceMetricsSnapshot snapshot)
+                metrics.add(snapshot);
+            else if (pendingWrite.entity instanceof CompactMetricsSnapshot compactSnapshot)
+                compactMetrics.add(compactSnapshot);
+            else if (pendingWrite.entity instanceof QoSValueWrite qosValue)
+                qosValues.add(qosValue);
+            else if (pendingWrite.entity instanceof QoSValuesInvalidation invalidation) {
+                // The values to invalidate may be in this batch
+                saveAll(metrics, compactMetrics, qosValues);
+                List<Long> ids = invalidation.latestValues.stream().map(QoSValueEntity::getId).filter(id -> id != 0).toList();
+                if (ids.size() < invalidation.latestValues.size())
+                    log.warn("{} QoS values to invalidate have not been persisted", invalidation.latestValues.size() - ids.size());
+                if (!ids.isEmpty())
+                    qosRepository.invalidateQoSValues(ids);
+            } else
+                log.error("Unsupported entity in the write-behind queue: {}", pendingWrite.entity);
+        }
+        saveAll(metrics, compactMetrics, qosValues);
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        log.debug("Persisted {} entities in {} ms ({} entities/s). Lag: {} ms",
+                batch.size(), duration, batch.size() * 1000 / duration, System.currentTimeMillis() - batch.get(0).enqueueTime);
+    }
+
+    // Saves and empties the given lists
+    private void saveAll(List<InstanceMetricsSnapshot> metrics, List<CompactMetricsSnapshot> compactMetrics, List<QoSValueWrite> qosValues) {
+        if (!metrics.isEmpty())
+            metricsRepository.saveAll(metrics);
+        if (!compactMetrics.isEmpty())
+            compactMetricsRepository.saveAll(compactMetrics);
+        if (!qosValues.isEmpty()) {
+            // The saved entities are returned in the given order. A retried save may return a merged instance, with a new id
+            Iterator<QoSValueEntity> saved = qosRepository.saveAll(qosValues.stream().map(QoSValueWrite::copy).toList()).iterator();
+            qosValues.forEach(qosValue -> qosValue.source.setId(saved.next().getId()));
+        }
+        metrics.clear();
+        compactMetrics.clear();
+        qosValues.clear();
+    }
+
+    // One JSON line per entity, with its type, so that the entities can be inspected and persisted again
+    private synchronized void deadLetter(List<PendingWrite> batch) {
+        log.error("Writing a batch of {} entities to the dead-letter file {}", batch.size(), deadLetterPath);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(deadLetterPath, true), StandardCharsets.UTF_8))) {
+            for (PendingWrite pendingWrite : batch) {
+                Object entity = pendingWrite.entity instanceof QoSValueWrite qosValue ? qosValue.copy : pendingWrite.entity;
+                writer.write(objectMapper.writeValueAsString(Map.of("type", entity.getClass().getSimpleName(), "entity", entity)));
+                writer.write('\n');
+            }
+            deadLetteredWrites.increment(batch.size());
+        } catch (IOException e) {
+            log.error("Error while writing to the dead-letter file. {} entities are lost: {}", batch.size(), e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T copyOf(T entity) {
+        try {
+            return (T) objectMapper.readValue(objectMapper.writeValueAsBytes(entity), entity.getClass());
+        } catch (IOException e) {
+            throw new RuntimeException("Error while copying " + entity, e);
+        }
+    }
+
+    // The id of the source is only written and read by the worker
+    private record QoSValueWrite(QoSValueEntity copy, QoSValueEntity source) {}
+
+    private record QoSValuesInvalidation(List<QoSValueEntity> latestValues) {}
+
+    private static class PendingWrite {
+        private final Object entity;
+        private final long sequence;
+        private final long enqueueTime;
+
+        private PendingWrite(Object entity, long sequence) {
+            this.entity = entity;
+            this.sequence = sequence;
+            this.enqueueTime = System.currentTimeMillis();
+        }
+    }
+}
@@ -18,6 +18,10 @@ public class VulnerabilityParser {
         Map<String, List<Vulnerability>> servicesVulnerabilities = new HashMap<>();
         Gson gson = new Gson();
         JsonObject servicesJson = gson.fromJson(json, JsonObject.class);
+        // <serviceImplementationId, serviceId>
+        Map<String, String> implementationsServiceIds = new HashMap<>();
+        services.forEach(service -> service.getPossibleImplementations().values().forEach(implementation ->
+                implementationsServiceIds.put(implementation.getImplementationId(), service.getServiceId())));
 
         for (Map.Entry<String, JsonElement> entry : servicesJson.entrySet()) {
             String serviceName = entry.getKey();
@@ -37,10 +41,7 @@ public class VulnerabilityParser {
                         scores.add(scoreJson.isJsonNull() ? null : scoreJson.getAsDouble());
                     }
 
-                    Service service = services.stream().filter(s -> s.getPossibleImplementations().values().stream().anyMatch(impl -> impl.getImplementationId().equals(serviceName))).findFirst().orElse(null);
-                    String serviceId = service != null ? service.getServiceId() : null;
-
-                    Vulnerability vulnerability = new Vulnerability(serviceId, serviceName, jarName, scores.get(0));
+                    Vulnerability vulnerability = new Vulnerability(implementationsServiceIds.get(serviceName), serviceName, jarName, scores.get(0));
                     vulnerabilityList.add(vulnerability);
                 }
             }
@@ -3,17 +3,29 @@ package it.polimi.ramses.knowledge.rest;
 import it.polimi.ramses.knowledge.domain.Modules;
 import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
 import it.polimi.ramses.knowledge.domain.adaptation.values.QoSCollection;
+import it.polimi.ramses.knowledge.domain.architecture.DependencyGraph;
 import it.polimi.ramses.knowledge.domain.architecture.Instance;
 import it.polimi.ramses.knowledge.domain.architecture.Service;
 import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.MetricsAggregate;
+import it.polimi.ramses.knowledge.domain.metrics.MetricsRollup;
 import it.polimi.ramses.knowledge.domain.KnowledgeService;
 import it.polimi.ramses.knowledge.domain.architecture.ServiceConfiguration;
+import it.polimi.ramses.knowledge.domain.architecture.WindowSizes;
 import it.polimi.ramses.knowledge.rest.api.*;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
 
 @Slf4j
@@ -22,6 +34,8 @@ import java.util.*;
 public class KnowledgeRestController {
     @Autowired
     private KnowledgeService knowledgeService;
+    @Autowired
+    private ObjectMapper objectMapper;
 
     @GetMapping("/activeModule")
     public Modules getActiveModule() {
@@ -56,6 +70,11 @@ public class KnowledgeRestController {
         return knowledgeService.getServicesMap();
     }
 
+    @GetMapping("/dependencyGraph")
+    public DependencyGraph getDependencyGraph() {
+        return knowledgeService.getDependencyGraph();
+    }
+
     @GetMapping("/service/{serviceId}")
     public Service getService(@PathVariable String serviceId) {
         return knowledgeService.getService(serviceId);
@@ -91,10 +110,18 @@ public class KnowledgeRestController {
 
     // Analyse-related functions
     @GetMapping("/metrics/getLatestNOfCurrentInstance")
-    public List<InstanceMetricsSnapshot> getLatestNMetricsOfCurrentInstance(@RequestParam String serviceId, @RequestParam String instanceId, @RequestParam int n) {
+    public List<InstanceMetricsSnapshot> getLatestNMetricsOfCurrentInstance(@RequestParam String serviceId, @RequestParam String instanceId, @RequestParam(required = false) Integer n) {
+        // Without n, the metrics window size of the service is used
+        if (n == null)
+            return knowledgeService.getLatestMetricsWindowOfCurrentInstance(serviceId, instanceId);
         return knowledgeService.getLatestNMetricsOfCurrentInstance(serviceId, instanceId, n);
     }
 
+    @GetMapping("/metrics/getWindowOfCurrentInstance")
+    public List<InstanceMetricsSnapshot> getMetricsWindowOfCurrentInstance(@RequestParam String serviceId, @RequestParam String instanceId, @RequestParam long seconds) {
+        return knowledgeService.getMetricsWindowOfCurrentInstance(serviceId, instanceId, seconds);
+    }
+
     @GetMapping("/proposedAdaptationOptions")
     public Map<String, List<AdaptationOption>> getProposedAdaptationOptions() {
         return knowledgeService.getProposedAdaptationOptions();
@@ -178,6 +205,12 @@ public class KnowledgeRestController {
         return ResponseEntity.ok("QoS history invalidated");
     }
 
+    @PostMapping("/invalidateQosHistories")
+    public ResponseEntity<String> invalidateQosHistories(@RequestBody Set<String> serviceIds){
+        knowledgeService.invalidateQosHistories(serviceIds);
+        return ResponseEntity.ok("QoS histories invalidated");
+    }
+
 
     @PutMapping("/service/{serviceId}/implementation/{implementationId}/preference")
     public ResponseEntity<String> updateImplementationPreference(@PathVariable String serviceId, @PathVariable String implementationId, @RequestParam(name = "value") double preference){
@@ -185,6 +218,12 @@ public class KnowledgeRestController {
         return ResponseEntity.ok("Implementation preference updated");
     }
 
+    @PutMapping("/service/{serviceId}/windowSizes")
+    public ResponseEntity<String> updateWindowSizes(@PathVariable String serviceId, @RequestBody WindowSizes windowSizes){
+        knowledgeService.updateWindowSizes(serviceId, windowSizes);
+        return ResponseEntity.ok("Window sizes updated");
+    }
+
     @PutMapping("/service/{serviceId}/availabilityThreshold")
     public ResponseEntity<String> updateAvailabilityThreshold(@PathVariable String serviceId, @RequestParam(name = "value") double availabilityThreshold){
         knowledgeService.updateAvailabilityThreshold(serviceId, availabilityThreshold);
@@ -267,4 +306,49 @@ public class KnowledgeRestController {
     ) {
         return knowledgeService.getNMetricsAfter(instanceId, timestamp, n);
     }
+
+    // Streamed as NDJSON (one JSON object per line) while the snapshots are read, so that long ranges are served in constant memory
+    @GetMapping(path = "/metrics/query", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> queryMetrics(
+            @RequestParam(required = false) String serviceId,
+            @RequestParam(required = false) String instanceId,
+            @RequestParam(name = "after") String startDate, // The date MUST be in the format yyyy-MM-dd'T'HH:mm:ss (without the ' around the T)
+            @RequestParam(name = "before") String endDate, // The date MUST be in the format yyyy-MM-dd'T'HH:mm:ss (without the ' around the T)
+            @RequestParam(required = false) Long step, // In seconds. Without a step the raw snapshots are returned
+            @RequestParam(required = false) Set<MetricsAggregate.Aggregation> aggregations // All of them if not specified
+    ) {
+        if (step != null && step <= 0)
+            throw new IllegalArgumentException("Invalid query arguments");
+        Date start = Date.from(LocalDateTime.parse(startDate).toInstant(ZoneOffset.UTC));
+        Date end = Date.from(LocalDateTime.parse(endDate).toInstant(ZoneOffset.UTC));
+        StreamingResponseBody body = outputStream -> {
+            if (step == null)
+                knowledgeService.streamMetrics(serviceId, instanceId, start, end, snapshot -> writeLine(outputStream, snapshot));
+            else
+                knowledgeService.aggregateMetrics(serviceId, instanceId, start, end, step,
+                        aggregations == null || aggregations.isEmpty() ? EnumSet.allOf(MetricsAggregate.Aggregation.class) : aggregations,
+                        aggregate -> writeLine(outputStream, aggregate));
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(body);
+    }
+
+    private void writeLine(OutputStream outputStream, Object value) {
+        try {
+            outputStream.write(objectMapper.writeValueAsBytes(value));
+            outputStream.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @GetMapping("/metrics/rollups")
+    public List<MetricsRollup> getMetricsRollups(
+            @RequestParam MetricsRollup.Resolution resolution,
+            @RequestParam(required = false) String serviceId,
+            @RequestParam(required = false) String instanceId,
+            @RequestParam(name = "after") String startDate, // The date MUST be in the format yyyy-MM-dd'T'HH:mm:ss (without the ' around the T)
+            @RequestParam(name = "before") String endDate // The date MUST be in the format yyyy-MM-dd'T'HH:mm:ss (without the ' around the T)
+    ) {
+        return knowledgeService.getMetricsRollups(resolution, serviceId, instanceId, startDate, endDate);
+    }
 }
\ No newline at end of file
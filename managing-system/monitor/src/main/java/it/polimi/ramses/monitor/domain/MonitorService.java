@@ -42,6 +42,11 @@ public class MonitorService {
     @Value("${SCHEDULING_PERIOD}")
     private int schedulingPeriod = 5000; // monitor scheduling period [ms]
 
+    // Send each iteration's snapshots to the Analyse as soon as they are collected
+    @Getter
+    @Value("${ONLINE_ANALYSIS}")
+    private boolean onlineAnalysis;
+
     private final AtomicBoolean loopIterationFinished = new AtomicBoolean(true);
     private final Queue<List<InstanceMetricsSnapshot>> instanceMetricsListBuffer = new LinkedList<>();
 
@@ -101,6 +106,15 @@ public class MonitorService {
                     return;
                 }
 
+                if (onlineAnalysis) {
+                    try {
+                        analyseClient.analyseOnline(metricsList);
+                    } catch (Exception e) {
+                        // The snapshots are analysed anyway in the next loop iteration
+                        log.error("Error while sending the snapshots to the online analysis: {}", e.getMessage());
+                    }
+                }
+
                 instanceMetricsListBuffer.add(metricsList);
                 if (getLoopIterationFinished()) {
                     log.debug("Monitor routine completed. Updating Knowledge and notifying the Analyse to start the next iteration.\n");
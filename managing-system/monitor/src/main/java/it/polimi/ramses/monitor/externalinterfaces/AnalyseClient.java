@@ -1,10 +1,18 @@
 package it.polimi.ramses.monitor.externalinterfaces;
 
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
 import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+
+import java.util.List;
 
 @FeignClient(name = "ANALYSE", url = "${ANALYSE_URL}")
 public interface AnalyseClient {
     @GetMapping("/rest/start")
     String start();
+
+    @PostMapping("/rest/metrics")
+    String analyseOnline(@RequestBody List<InstanceMetricsSnapshot> snapshots);
 }
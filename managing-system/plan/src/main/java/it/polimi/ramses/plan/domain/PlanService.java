@@ -6,6 +6,8 @@ import it.polimi.ramses.knowledge.domain.adaptation.options.*;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Availability;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.AverageResponseTime;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.ResponseTimePercentile;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Throughput;
 import it.polimi.ramses.knowledge.domain.adaptation.specifications.Vulnerability;
 import it.polimi.ramses.knowledge.domain.architecture.*;
 import it.polimi.ramses.plan.externalInterfaces.ExecuteClient;
@@ -53,7 +55,8 @@ public class PlanService {
                         log.debug("{} has no forced options. Analysing proposed adaptation options.", serviceId);
                         for (AdaptationOption option : options) {
                             log.debug("Proposed option: {}", option.getDescription());
-                            if (option.getClass().equals(ChangeLoadBalancerWeightsOption.class)) {
+                            // The weights of the options proposed for the outlier instances are already computed by the Analyse
+                            if (option.getClass().equals(ChangeLoadBalancerWeightsOption.class) && ((ChangeLoadBalancerWeightsOption) option).getNewWeights() == null) {
                                 ChangeLoadBalancerWeightsOption changeLoadBalancerWeightsOption = (ChangeLoadBalancerWeightsOption) option;
                                 Map<String, Double> newWeights = handleChangeLoadBalancerWeights(servicesMap.get(option.getServiceId()));
                                 if (newWeights != null) { // If it's null it means that the problem has no solution
@@ -100,12 +103,11 @@ public class PlanService {
                     if (!chosenAdaptationOptionList.isEmpty())
                         chosenAdaptationOptions.put(serviceId, chosenAdaptationOptionList);
                 });
-                Set<String> servicesAlreadyProcessed = new HashSet<>();
-                servicesMap.forEach((serviceId, service) -> {
-                    if (service.isInTransitionState() || chosenAdaptationOptions.containsKey(serviceId)) {
-                        invalidateQoSHistoryOfServiceAndDependants(servicesMap, serviceId, servicesAlreadyProcessed);
-                    }
-                });
+                // The services adapted (or still in transition) and, transitively, their dependants, from the dependency graph cached by the Knowledge
+                Set<String> servicesToInvalidate = knowledgeClient.getDependencyGraph().getServicesAndDependants(servicesMap.values().stream()
+                        .filter(service -> service.isInTransitionState() || chosenAdaptationOptions.containsKey(service.getServiceId()))
+                        .map(Service::getServiceId).toList());
+                invalidateAllQoSHistories(servicesToInvalidate);
                 knowledgeClient.chooseAdaptationOptions(chosenAdaptationOptions);
             }
             log.info("Ending plan. Notifying the Execute module to start the next iteration.");
@@ -118,27 +120,15 @@ public class PlanService {
         }
     }
 
-    private void invalidateQoSHistoryOfServiceAndDependants(Map<String, Service> servicesMap, String serviceId, Set<String> servicesAlreadyProcessed) {
-        if (servicesAlreadyProcessed.contains(serviceId))
-            return;
-        servicesAlreadyProcessed.add(serviceId);
-        Service service = servicesMap.get(serviceId);
-        log.debug("{}: invalidating QoS history", serviceId);
-        invalidateAllQoSHistories(service);
-        servicesMap.values().forEach(s -> {
-            if (s.getDependencies().contains(serviceId))
-                invalidateQoSHistoryOfServiceAndDependants(servicesMap, s.getServiceId(), servicesAlreadyProcessed);
-        });
-    }
-
-
-    /** For a given service, it invalidates its history of QoSes and its instances' history of QoSes.
-     * The update is performed first locally, then the Knowledge is updated.
-     * @param service the service considered
+    /** For the given services, it invalidates their history of QoSes and their instances' history of QoSes.
+     * The whole set of services is invalidated by the Knowledge with a single call.
+     * @param serviceIds the ids of the services considered
      */
-    private void invalidateAllQoSHistories(Service service) {
-        log.debug("Invalidating all QoS histories for service {}", service.getServiceId());
-        knowledgeClient.invalidateQosHistory(service.getServiceId());
+    private void invalidateAllQoSHistories(Set<String> serviceIds) {
+        if (serviceIds.isEmpty())
+            return;
+        log.debug("Invalidating all QoS histories for services {}", serviceIds);
+        knowledgeClient.invalidateQosHistories(serviceIds);
     }
 
     private ShutdownInstanceOption handleShutdownInstance(ShutdownInstanceOption shutdownInstanceOption, Service service, boolean isForced) {
@@ -329,7 +319,7 @@ public class PlanService {
         for (String implementationId: changeImplementationOption.getPossibleImplementations()) {
             Class<? extends QoSSpecification> goal = changeImplementationOption.getQosGoal();
             ServiceImplementation implementation = service.getPossibleImplementations().get(implementationId);
-            if (Availability.class == goal) {
+            if (Availability.class == goal || Throughput.class == goal) { // For Throughput the benchmark is the capacity
                 double benchmark = implementation.getBenchmark(changeImplementationOption.getQosGoal());
                 benchmark = benchmark * implementation.getPreference();
                 if (bestImplementationId == null) {
@@ -340,7 +330,7 @@ public class PlanService {
                     bestImplementationId = implementationId;
                     bestImplementationBenefit = benchmark;
                 }
-            } else if(AverageResponseTime.class == goal) {
+            } else if(AverageResponseTime.class == goal || ResponseTimePercentile.class == goal) {
                 double benchmark = implementation.getBenchmark(changeImplementationOption.getQosGoal());
                 benchmark = benchmark / implementation.getPreference();
                 if (bestImplementationId == null) {
@@ -431,27 +421,29 @@ public class PlanService {
                     bestOptionForGoal.put(Availability.class, adaptationOption);
                 }
             }
-            else if(adaptationOption.getQosGoal() == AverageResponseTime.class){
+            else if(adaptationOption.getQosGoal() == AverageResponseTime.class || adaptationOption.getQosGoal() == ResponseTimePercentile.class){
+                // The response time goals are estimated in the same way: the lower the value, the higher the benefit
+                Class<? extends QoSSpecification> goal = adaptationOption.getQosGoal();
                 double avgResponseTimeEstimation = 0.0;
                 if (service.getConfiguration().getLoadBalancerType() == ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM) {
                     if (ChangeLoadBalancerWeightsOption.class.equals(adaptationOption.getClass())) {
                         ChangeLoadBalancerWeightsOption changeLoadBalancerWeightsOption = (ChangeLoadBalancerWeightsOption) adaptationOption;
                         for (Instance instance : instances) {
                             if(!changeLoadBalancerWeightsOption.getInstancesToShutdownIds().contains(instance.getInstanceId()))
-                                avgResponseTimeEstimation += changeLoadBalancerWeightsOption.getNewWeights().get(instance.getInstanceId()) * instance.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue();
+                                avgResponseTimeEstimation += changeLoadBalancerWeightsOption.getNewWeights().get(instance.getInstanceId()) * instance.getCurrentValueForQoS(goal).getDoubleValue();
                         }
                     } else if (AddInstanceOption.class.equals(adaptationOption.getClass())) {
                         AddInstanceOption addInstanceOption = (AddInstanceOption) adaptationOption;
                         for (Instance instance : instances) {
                             if(!addInstanceOption.getInstancesToShutdownIds().contains(instance.getInstanceId()))
-                                avgResponseTimeEstimation += addInstanceOption.getOldInstancesNewWeights().get(instance.getInstanceId()) * instance.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue();
+                                avgResponseTimeEstimation += addInstanceOption.getOldInstancesNewWeights().get(instance.getInstanceId()) * instance.getCurrentValueForQoS(goal).getDoubleValue();
                         }
-                        avgResponseTimeEstimation += addInstanceOption.getNewInstanceWeight() * service.getCurrentImplementation().getBenchmark(AverageResponseTime.class);
+                        avgResponseTimeEstimation += addInstanceOption.getNewInstanceWeight() * service.getCurrentImplementation().getBenchmark(goal);
                     } else if (ShutdownInstanceOption.class.equals(adaptationOption.getClass())) {
                         ShutdownInstanceOption shutdownInstanceOption = (ShutdownInstanceOption) adaptationOption;
                         for (Instance instance : instances) {
                             if (!instance.getInstanceId().equals(shutdownInstanceOption.getInstanceToShutdownId()))
-                                avgResponseTimeEstimation += shutdownInstanceOption.getNewWeights().get(instance.getInstanceId()) * instance.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue();
+                                avgResponseTimeEstimation += shutdownInstanceOption.getNewWeights().get(instance.getInstanceId()) * instance.getCurrentValueForQoS(goal).getDoubleValue();
                         }
                     }
 
@@ -459,15 +451,15 @@ public class PlanService {
                 else {
                     if (AddInstanceOption.class.equals(adaptationOption.getClass())) {
                         for (Instance instance : instances) {
-                            avgResponseTimeEstimation += instance.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue();
+                            avgResponseTimeEstimation += instance.getCurrentValueForQoS(goal).getDoubleValue();
                         }
-                        avgResponseTimeEstimation += service.getCurrentImplementation().getBenchmark(AverageResponseTime.class);
+                        avgResponseTimeEstimation += service.getCurrentImplementation().getBenchmark(goal);
                         avgResponseTimeEstimation /= instances.size() + 1;
                     } else if (ShutdownInstanceOption.class.equals(adaptationOption.getClass())) {
                         ShutdownInstanceOption shutdownInstanceOption = (ShutdownInstanceOption) adaptationOption;
                         for (Instance instance : instances) {
                             if (!instance.getInstanceId().equals(shutdownInstanceOption.getInstanceToShutdownId()))
-                                avgResponseTimeEstimation += instance.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue();
+                                avgResponseTimeEstimation += instance.getCurrentValueForQoS(goal).getDoubleValue();
                         }
                         avgResponseTimeEstimation /= instances.size() - 1;
                     }
@@ -475,13 +467,13 @@ public class PlanService {
                 }
                 if(ChangeImplementationOption.class.equals(adaptationOption.getClass())) {
                     ChangeImplementationOption changeImplementationOption = (ChangeImplementationOption) adaptationOption;
-                    avgResponseTimeEstimation = service.getPossibleImplementations().get(changeImplementationOption.getNewImplementationId()).getBenchmark(AverageResponseTime.class);
+                    avgResponseTimeEstimation = service.getPossibleImplementations().get(changeImplementationOption.getNewImplementationId()).getBenchmark(goal);
                 }
-                double newBenefit =  service.getCurrentValueForQoS(AverageResponseTime.class).getDoubleValue() / avgResponseTimeEstimation;
-                log.debug(service.getServiceId() + ": " + adaptationOption.getClass().getSimpleName() + " option for AVG RT. BENEFIT: " + newBenefit);
-                if(newBenefit > 1 && (!benefits.containsKey(AverageResponseTime.class) || newBenefit > benefits.get(AverageResponseTime.class))){
-                    benefits.put(AverageResponseTime.class, newBenefit);
-                    bestOptionForGoal.put(AverageResponseTime.class, adaptationOption);
+                double newBenefit =  service.getCurrentValueForQoS(goal).getDoubleValue() / avgResponseTimeEstimation;
+                log.debug(service.getServiceId() + ": " + adaptationOption.getClass().getSimpleName() + " option for " + goal.getSimpleName() + ". BENEFIT: " + newBenefit);
+                if(newBenefit > 1 && (!benefits.containsKey(goal) || newBenefit > benefits.get(goal))){
+                    benefits.put(goal, newBenefit);
+                    bestOptionForGoal.put(goal, adaptationOption);
                 }
             } else if (adaptationOption.getQosGoal() == Vulnerability.class && (ChangeImplementationOption.class.equals(adaptationOption.getClass()))) {
                     ChangeImplementationOption changeImplementationOption = (ChangeImplementationOption) adaptationOption;
@@ -493,6 +485,16 @@ public class PlanService {
                         bestOptionForGoal.put(Vulnerability.class, adaptationOption);
                     }
 
+            } else if (adaptationOption.getQosGoal() == Throughput.class) {
+                Double maxUtilisationEstimation = estimateMaxUtilisation(service, adaptationOption);
+                if (maxUtilisationEstimation == null)
+                    continue;
+                double newBenefit = estimateCurrentMaxUtilisation(service) / maxUtilisationEstimation;
+                log.debug(service.getServiceId() + ": " + adaptationOption.getClass().getSimpleName() + " option for Throughput. BENEFIT: " + newBenefit);
+                if (newBenefit > 1 && (!benefits.containsKey(Throughput.class) || newBenefit > benefits.get(Throughput.class))) {
+                    benefits.put(Throughput.class, newBenefit);
+                    bestOptionForGoal.put(Throughput.class, adaptationOption);
+                }
             }
         }
 
@@ -513,6 +515,54 @@ public class PlanService {
         return bestOptionForGoal.get(bestBenefitClass);
     }
 
+    // The highest utilisation among the instances of the service, given their current throughput
+    private double estimateCurrentMaxUtilisation(Service service) {
+        double instanceCapacity = service.getCurrentImplementation().getBenchmark(Throughput.class);
+        if (service.getConfiguration().getLoadBalancerType() != ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM)
+            return Throughput.getUtilisation(service.getCurrentValueForQoS(Throughput.class).getDoubleValue(), instanceCapacity * service.getInstances().size());
+        double maxUtilisation = 0;
+        for (Instance instance : service.getInstances())
+            maxUtilisation = Math.max(maxUtilisation, Throughput.getUtilisation(instance.getCurrentValueForQoS(Throughput.class).getDoubleValue(), instanceCapacity));
+        return maxUtilisation;
+    }
+
+    /**
+     * Estimates the highest utilisation among the instances of the service after applying the option, assuming
+     * that the throughput of the service does not change and that it is split among the instances according to their weights.
+     * @return the estimation, or null if the option does not change the distribution of the load
+     */
+    private Double estimateMaxUtilisation(Service service, AdaptationOption adaptationOption) {
+        double serviceThroughput = service.getCurrentValueForQoS(Throughput.class).getDoubleValue();
+        double instanceCapacity = service.getCurrentImplementation().getBenchmark(Throughput.class);
+        int instancesCount = service.getInstances().size();
+        Collection<Double> newWeights = null;
+        if (ChangeImplementationOption.class.equals(adaptationOption.getClass())) {
+            ChangeImplementationOption changeImplementationOption = (ChangeImplementationOption) adaptationOption;
+            double newInstanceCapacity = service.getPossibleImplementations().get(changeImplementationOption.getNewImplementationId()).getBenchmark(Throughput.class);
+            return Throughput.getUtilisation(serviceThroughput, newInstanceCapacity * instancesCount);
+        }
+        if (service.getConfiguration().getLoadBalancerType() == ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM) {
+            if (ChangeLoadBalancerWeightsOption.class.equals(adaptationOption.getClass())) {
+                newWeights = ((ChangeLoadBalancerWeightsOption) adaptationOption).getNewWeights().values();
+            } else if (AddInstanceOption.class.equals(adaptationOption.getClass())) {
+                AddInstanceOption addInstanceOption = (AddInstanceOption) adaptationOption;
+                newWeights = new LinkedList<>(addInstanceOption.getOldInstancesNewWeights().values());
+                newWeights.add(addInstanceOption.getNewInstanceWeight());
+            } else if (ShutdownInstanceOption.class.equals(adaptationOption.getClass())) {
+                newWeights = ((ShutdownInstanceOption) adaptationOption).getNewWeights().values();
+            }
+        } else {
+            if (AddInstanceOption.class.equals(adaptationOption.getClass()))
+                return Throughput.getUtilisation(serviceThroughput, instanceCapacity * (instancesCount + 1));
+            if (ShutdownInstanceOption.class.equals(adaptationOption.getClass()))
+                return Throughput.getUtilisation(serviceThroughput, instanceCapacity * (instancesCount - 1));
+        }
+        if (newWeights == null || newWeights.isEmpty())
+            return null;
+        double maxWeight = newWeights.stream().mapToDouble(Double::doubleValue).max().orElseThrow();
+        return Throughput.getUtilisation(serviceThroughput * maxWeight, instanceCapacity);
+    }
+
     /**
      * Redistributes the weight of an instance that will be shutdown to all the other instances of the service.
      *
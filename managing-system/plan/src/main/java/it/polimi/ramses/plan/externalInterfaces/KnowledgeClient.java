@@ -2,6 +2,7 @@ package it.polimi.ramses.plan.externalInterfaces;
 
 import it.polimi.ramses.knowledge.domain.Modules;
 import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
+import it.polimi.ramses.knowledge.domain.architecture.DependencyGraph;
 import it.polimi.ramses.knowledge.domain.architecture.Service;
 import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.http.ResponseEntity;
@@ -9,6 +10,7 @@ import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 @FeignClient(name = "KNOWLEDGE", url = "${KNOWLEDGE_URL}")
@@ -20,6 +22,9 @@ public interface KnowledgeClient {
     @GetMapping("/rest/servicesMap")
     Map<String, Service> getServicesMap();
 
+    @GetMapping("/rest/dependencyGraph")
+    DependencyGraph getDependencyGraph();
+
     @PostMapping("/rest/chooseAdaptationOptions")
     ResponseEntity<String> chooseAdaptationOptions(@RequestBody Map<String, List<AdaptationOption>> adaptationOptions);
 
@@ -31,4 +36,7 @@ public interface KnowledgeClient {
 
     @PostMapping("/rest/service/{serviceId}/invalidateQosHistory")
     ResponseEntity<String> invalidateQosHistory(@PathVariable String serviceId);
+
+    @PostMapping("/rest/invalidateQosHistories")
+    ResponseEntity<String> invalidateQosHistories(@RequestBody Set<String> serviceIds);
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+package it.polimi.ramses.replay;
+
+import it.polimi.ramses.replay.domain.ReplayBenchmark;
+import it.polimi.ramses.replay.domain.ReplayDetectorComparison;
+import it.polimi.ramses.replay.domain.ReplayService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
+
+/**
+ * Offline replay of recorded metrics through the Analyse and the Plan, run in-process and without the other modules.
+ * Only the domain packages of the Analyse and of the Plan are scanned: their REST controllers and Feign clients are
+ * replaced by the in-memory clients of the replay.
+ */
+@SpringBootApplication(scanBasePackages = {"it.polimi.ramses.replay", "it.polimi.ramses.analyse.domain", "it.polimi.ramses.plan.domain"})
+public class ReplayApplication {
+    public static void main(String[] args) {
+        SpringApplication application = new SpringApplication(ReplayApplication.class);
+        application.setWebApplicationType(WebApplicationType.NONE);
+        System.exit(SpringApplication.exit(application.run(args)));
+    }
+
+    @Bean
+    public CommandLineRunner replayRunner(ReplayService replayService, ReplayBenchmark replayBenchmark, ReplayDetectorComparison replayDetectorComparison,
+                                          @Value("${REPLAY_BENCHMARK}") boolean benchmark,
+                                          @Value("${REPLAY_COMPARE_CHANGE_POINT_DETECTORS}") boolean compareDetectors) {
+        return args -> {
+            if (benchmark)
+                replayBenchmark.benchmark();
+            else if (compareDetectors)
+                replayDetectorComparison.compare(args);
+            else
+                replayService.replay();
+        };
+    }
+}
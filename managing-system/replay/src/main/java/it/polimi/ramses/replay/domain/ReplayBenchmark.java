@@ -0,0 +1,292 @@
+package it.polimi.ramses.replay.domain;
+
+import it.polimi.ramses.analyse.domain.AnalyseService;
+import it.polimi.ramses.analyse.domain.MetricsWindowStats;
+import it.polimi.ramses.knowledge.domain.Modules;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Availability;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.AverageResponseTime;
+import it.polimi.ramses.knowledge.domain.architecture.InstanceStatus;
+import it.polimi.ramses.knowledge.domain.architecture.Service;
+import it.polimi.ramses.knowledge.domain.architecture.ServiceConfiguration;
+import it.polimi.ramses.knowledge.domain.architecture.ServiceImplementation;
+import it.polimi.ramses.knowledge.domain.metrics.HttpEndpointMetrics;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.domain.metrics.LatencySketch;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Benchmarks of the Analyse on synthetic data, run instead of the replay when REPLAY_BENCHMARK is true.
+ * The analysis of a synthetic architecture of BENCHMARK_SERVICES services, with BENCHMARK_INSTANCES_PER_SERVICE
+ * instances each, is timed over BENCHMARK_ANALYSIS_ITERATIONS loop iterations: comparing the runs with different
+ * ANALYSIS_PARALLELISM values, and a REPLAY_KNOWLEDGE_LATENCY_MILLIS simulating the REST calls, shows the gain of the
+ * concurrent analysis of the services.
+ * The metrics window statistics of an instance with BENCHMARK_ENDPOINTS endpoints are computed by MetricsWindowStats
+ * (one sweep over the window and one over the outcomes) and by the previous computation of the Analyse (a sweep over
+ * the window for each rate, then a sweep over the endpoints, and over their outcomes, for each statistic), with and
+ * without the latency sketches. Each variant is warmed up, then its mean time per window is logged.
+ */
+@Slf4j
+@org.springframework.stereotype.Service
+public class ReplayBenchmark {
+    private static final String SUCCESS_OUTCOME = "SUCCESS";
+    private static final String SERVER_ERROR_OUTCOME = "SERVER_ERROR";
+
+    // Endpoints of each instance of the synthetic architecture
+    private static final int ARCHITECTURE_ENDPOINTS = 10;
+
+    @Autowired
+    private AnalyseService analyseService;
+
+    @Autowired
+    private ReplayKnowledge replayKnowledge;
+
+    @Autowired
+    private ReplayPlanClient replayPlanClient;
+
+    private final int services;
+    private final int instancesPerService;
+    private final int analysisIterations;
+    private final int analysisParallelism;
+    private final int endpoints;
+    private final int warmupIterations;
+    private final int iterations;
+    // Consumes the results, so that the computations are not optimised away
+    private double sink;
+
+    public ReplayBenchmark(
+        @Value("${BENCHMARK_SERVICES}") int services,
+        @Value("${BENCHMARK_INSTANCES_PER_SERVICE}") int instancesPerService,
+        @Value("${BENCHMARK_ANALYSIS_ITERATIONS}") int analysisIterations,
+        @Value("${ANALYSIS_PARALLELISM}") int analysisParallelism,
+        @Value("${BENCHMARK_ENDPOINTS}") int endpoints,
+        @Value("${BENCHMARK_WARMUP_ITERATIONS}") int warmupIterations,
+        @Value("${BENCHMARK_ITERATIONS}") int iterations
+    ) {
+        if (services < 1)
+            throw new IllegalArgumentException("Benchmark services must be greater than 0.");
+        if (instancesPerService < 1)
+            throw new IllegalArgumentException("Benchmark instances per service must be greater than 0.");
+        if (analysisIterations < 1)
+            throw new IllegalArgumentException("Benchmark analysis iterations must be greater than 0.");
+        if (endpoints < 1)
+            throw new IllegalArgumentException("Benchmark endpoints must be greater than 0.");
+        if (warmupIterations < 0)
+            throw new IllegalArgumentException("Benchmark warmup iterations must not be negative.");
+        if (iterations < 1)
+            throw new IllegalArgumentException("Benchmark iterations must be greater than 0.");
+        this.services = services;
+        this.instancesPerService = instancesPerService;
+        this.analysisIterations = analysisIterations;
+        this.analysisParallelism = analysisParallelism;
+        this.endpoints = endpoints;
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+    }
+
+    public void benchmark() {
+        benchmarkAnalysis();
+        benchmarkWindowStats();
+    }
+
+    private void benchmarkAnalysis() {
+        Map<String, Service> servicesMap = syntheticArchitecture(services, instancesPerService);
+        replayKnowledge.loadServices(servicesMap);
+        // The first iterations only fill the metrics windows and the analysis windows
+        int warmupLoops = analyseService.getMetricsWindowSize() + analyseService.getAnalysisWindowSize();
+        Random random = new Random(42);
+        // <instanceId, cumulative counters of the successful requests of each endpoint: count and duration>
+        Map<String, long[]> counts = new HashMap<>();
+        Map<String, double[]> durations = new HashMap<>();
+        long now = System.currentTimeMillis();
+        double[] analyseMillis = new double[analysisIterations];
+        for (int iteration = 0; iteration < warmupLoops + analysisIterations; iteration++) {
+            Date timestamp = new Date(now + iteration * 5000L);
+            List<InstanceMetricsSnapshot> metricsList = new ArrayList<>();
+            for (Service service : servicesMap.values()) {
+                for (String instanceId : service.getCurrentImplementation().getInstances().keySet()) {
+                    InstanceMetricsSnapshot snapshot = new InstanceMetricsSnapshot(service.getServiceId(), instanceId);
+                    snapshot.setTimestamp(timestamp);
+                    long[] instanceCounts = counts.computeIfAbsent(instanceId, id -> new long[ARCHITECTURE_ENDPOINTS]);
+                    double[] instanceDurations = durations.computeIfAbsent(instanceId, id -> new double[ARCHITECTURE_ENDPOINTS]);
+                    for (int e = 0; e < ARCHITECTURE_ENDPOINTS; e++) {
+                        long newRequests = 10 + random.nextInt(10);
+                        instanceCounts[e] += newRequests;
+                        instanceDurations[e] += newRequests * (40 + random.nextDouble() * 20);
+                        HttpEndpointMetrics endpointMetrics = new HttpEndpointMetrics("/endpoint/" + e, "GET");
+                        endpointMetrics.addOrSetOutcomeMetricsDetails(SUCCESS_OUTCOME, 200, instanceCounts[e], instanceDurations[e]);
+                        snapshot.addHttpMetrics(endpointMetrics);
+                    }
+                    metricsList.add(snapshot);
+                }
+            }
+            replayKnowledge.notifyModuleStart(Modules.MONITOR);
+            replayKnowledge.addMetrics(metricsList);
+            long start = System.nanoTime();
+            analyseService.startAnalysis();
+            // The Plan is started by the Analyse
+            double millis = (System.nanoTime() - start - replayPlanClient.getLatestPlanNanos()) / 1e6;
+            if (iteration >= warmupLoops)
+                analyseMillis[iteration - warmupLoops] = millis;
+        }
+        Arrays.sort(analyseMillis);
+        log.info("Analysis of {} services with {} instances each, parallelism {}: mean {} ms, p50 {} ms, max {} ms over {} iterations",
+                services, instancesPerService, analysisParallelism, String.format("%.2f", Arrays.stream(analyseMillis).average().orElse(0)),
+                String.format("%.2f", analyseMillis[analyseMillis.length / 2]), String.format("%.2f", analyseMillis[analyseMillis.length - 1]), analysisIterations);
+    }
+
+    private void benchmarkWindowStats() {
+        List<InstanceMetricsSnapshot> window = syntheticWindow(analyseService.getMetricsWindowSize(), endpoints);
+        log.info("Metrics window of {} snapshots with {} endpoints each", window.size(), endpoints);
+        StringBuilder sb = new StringBuilder();
+        sb.append(measure("Single pass, without sketches", window, w -> singlePass(w, false)));
+        sb.append(measure("Multi pass, without sketches", window, w -> multiPass(w, false)));
+        sb.append(measure("Single pass, with sketches", window, w -> singlePass(w, true)));
+        sb.append(measure("Multi pass, with sketches", window, w -> multiPass(w, true)));
+        log.info("\n{}(sink {})", sb, sink);
+    }
+
+    private String measure(String variant, List<InstanceMetricsSnapshot> window, ToDoubleFunction<List<InstanceMetricsSnapshot>> computation) {
+        for (int i = 0; i < warmupIterations; i++)
+            sink += computation.applyAsDouble(window);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            sink += computation.applyAsDouble(window);
+        double microsPerWindow = (System.nanoTime() - start) / 1e3 / iterations;
+        return String.format("%s: %.1f us per window%n", variant, microsPerWindow);
+    }
+
+    private static double singlePass(List<InstanceMetricsSnapshot> window, boolean withLatencySketch) {
+        MetricsWindowStats stats = MetricsWindowStats.of(window, withLatencySketch);
+        double result = stats.getFailureRate() + stats.getUnreachableRate();
+        if (stats.getSuccessfulRequestsCount() > 0)
+            result += stats.getSuccessfulRequestsDuration() / stats.getSuccessfulRequestsCount();
+        if (stats.getRequestsCount() > 0)
+            result += (double) stats.getSuccessfulRequestsCount() / stats.getRequestsCount() + stats.getRequestsCount() / stats.getElapsedSeconds();
+        if (!stats.getLatencySketch().isEmpty())
+            result += stats.getLatencySketch().getQuantile(0.95);
+        return result;
+    }
+
+    // The statistics as computed by the Analyse before MetricsWindowStats, with the getters of HttpEndpointMetrics
+    private static double multiPass(List<InstanceMetricsSnapshot> window, boolean withLatencySketch) {
+        double failureRate = window.stream().reduce(0.0, (acc, m) -> acc + (m.isFailed() ? 1 : 0), Double::sum) / window.size();
+        double unreachableRate = window.stream().reduce(0.0, (acc, m) -> acc + (m.isUnreachable() ? 1 : 0), Double::sum) / window.size();
+        List<InstanceMetricsSnapshot> activeMetrics = window.stream().filter(m -> m.isActive() && m.getHttpMetrics().size() > 0).toList();
+        InstanceMetricsSnapshot oldest = activeMetrics.get(activeMetrics.size() - 1);
+        InstanceMetricsSnapshot latest = activeMetrics.get(0);
+        double result = failureRate + unreachableRate;
+
+        double successfulRequestsDuration = 0, successfulRequestsCount = 0;
+        for (String endpoint : latest.getHttpMetrics().keySet()) {
+            successfulRequestsDuration += latest.getHttpMetrics().get(endpoint).getTotalDurationOfSuccessful();
+            successfulRequestsCount += latest.getHttpMetrics().get(endpoint).getTotalCountOfSuccessful();
+            HttpEndpointMetrics oldestEndpointMetrics = oldest.getHttpMetrics().get(endpoint);
+            if (oldestEndpointMetrics != null) {
+                successfulRequestsDuration -= oldestEndpointMetrics.getTotalDurationOfSuccessful();
+                successfulRequestsCount -= oldestEndpointMetrics.getTotalCountOfSuccessful();
+            }
+        }
+        if (successfulRequestsCount > 0)
+            result += successfulRequestsDuration / successfulRequestsCount;
+
+        double availabilitySuccessfulCount = 0, totalRequestsCount = 0;
+        for (String endpoint : latest.getHttpMetrics().keySet()) {
+            HttpEndpointMetrics oldestEndpointMetrics = oldest.getHttpMetrics().get(endpoint);
+            totalRequestsCount += latest.getHttpMetrics().get(endpoint).getTotalCount();
+            availabilitySuccessfulCount += latest.getHttpMetrics().get(endpoint).getTotalCountOfSuccessful();
+            if (oldestEndpointMetrics != null) {
+                totalRequestsCount -= oldestEndpointMetrics.getTotalCount();
+                availabilitySuccessfulCount -= oldestEndpointMetrics.getTotalCountOfSuccessful();
+            }
+        }
+        if (totalRequestsCount > 0)
+            result += availabilitySuccessfulCount / totalRequestsCount;
+
+        double seconds = (latest.getTimestamp().getTime() - oldest.getTimestamp().getTime()) / 1000.0;
+        double requestsCount = 0;
+        for (String endpoint : latest.getHttpMetrics().keySet()) {
+            requestsCount += latest.getHttpMetrics().get(endpoint).getTotalCount();
+            HttpEndpointMetrics oldestEndpointMetrics = oldest.getHttpMetrics().get(endpoint);
+            if (oldestEndpointMetrics != null)
+                requestsCount -= oldestEndpointMetrics.getTotalCount();
+        }
+        result += Math.max(0, requestsCount) / seconds;
+
+        if (withLatencySketch) {
+            LatencySketch sketch = new LatencySketch();
+            for (String endpoint : latest.getHttpMetrics().keySet()) {
+                LatencySketch latestSketch = latest.getHttpMetrics().get(endpoint).getLatencySketchOfSuccessful();
+                if (latestSketch == null)
+                    continue;
+                HttpEndpointMetrics oldestEndpointMetrics = oldest.getHttpMetrics().get(endpoint);
+                sketch.merge(latestSketch.minus(oldestEndpointMetrics == null ? null : oldestEndpointMetrics.getLatencySketchOfSuccessful()));
+            }
+            if (!sketch.isEmpty())
+                result += sketch.getQuantile(0.95);
+        }
+        return result;
+    }
+
+    // Services with a single implementation and the mandatory QoS, whose synthetic metrics always satisfy them
+    private static Map<String, Service> syntheticArchitecture(int services, int instancesPerService) {
+        Map<String, Service> servicesMap = new HashMap<>();
+        for (int s = 0; s < services; s++) {
+            String serviceId = "benchmark-service-" + s;
+            String implementationId = serviceId + "-impl";
+            ServiceImplementation implementation = new ServiceImplementation(implementationId, 1.0, 1, 0.0);
+            implementation.setBenchmark(Availability.class, 0.99);
+            implementation.setBenchmark(AverageResponseTime.class, 50.0);
+            // Each service depends on the next one, as in a chain of calls
+            Service service = new Service(serviceId, List.of(implementation), s + 1 < services ? List.of("benchmark-service-" + (s + 1)) : List.of());
+            service.setCurrentImplementationId(implementationId);
+            service.setAllQoS(List.of(new Availability("{\"weight\": 0.5, \"min_threshold\": 0.9}"), new AverageResponseTime("{\"weight\": 0.5, \"max_threshold\": 1000}")));
+            ServiceConfiguration configuration = new ServiceConfiguration(serviceId);
+            configuration.setLoadBalancerType(ServiceConfiguration.LoadBalancerType.UNKNOWN);
+            configuration.setTimestamp(new Date());
+            service.setConfiguration(configuration);
+            for (int i = 0; i < instancesPerService; i++)
+                service.createInstance("10.0." + s + "." + i + ":8080").setCurrentStatus(InstanceStatus.ACTIVE);
+            servicesMap.put(serviceId, service);
+        }
+        return servicesMap;
+    }
+
+    // ACTIVE snapshots of an instance, from the newest, with cumulative counters and sketches growing at each snapshot
+    private static List<InstanceMetricsSnapshot> syntheticWindow(int size, int endpoints) {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        List<InstanceMetricsSnapshot> window = new ArrayList<>(size);
+        long[] successfulCounts = new long[endpoints];
+        double[] successfulDurations = new double[endpoints];
+        long[] errorCounts = new long[endpoints];
+        LatencySketch[] sketches = new LatencySketch[endpoints];
+        for (int e = 0; e < endpoints; e++)
+            sketches[e] = new LatencySketch();
+        for (int s = 0; s < size; s++) {
+            InstanceMetricsSnapshot snapshot = new InstanceMetricsSnapshot("benchmark-service", "benchmark-service@10.0.0.1:8080");
+            snapshot.setTimestamp(new Date(now - (size - 1 - s) * 5000L));
+            for (int e = 0; e < endpoints; e++) {
+                long newRequests = 1 + random.nextInt(20);
+                for (int r = 0; r < newRequests; r++) {
+                    double duration = 5 + random.nextDouble() * 200;
+                    sketches[e].add(duration);
+                    successfulDurations[e] += duration;
+                }
+                successfulCounts[e] += newRequests;
+                errorCounts[e] += random.nextInt(2);
+                HttpEndpointMetrics endpointMetrics = new HttpEndpointMetrics("/endpoint/" + e, "GET");
+                endpointMetrics.addOrSetOutcomeMetricsDetails(SUCCESS_OUTCOME, 200, successfulCounts[e], successfulDurations[e]);
+                endpointMetrics.addOrSetOutcomeMetricsDurationSketch(SUCCESS_OUTCOME, sketches[e].encode());
+                endpointMetrics.addOrSetOutcomeMetricsDetails(SERVER_ERROR_OUTCOME, 500, errorCounts[e], errorCounts[e] * 10.0);
+                snapshot.addHttpMetrics(endpointMetrics);
+            }
+            window.add(0, snapshot);
+        }
+        return window;
+    }
+}
@@ -0,0 +1,66 @@
+package it.polimi.ramses.replay.domain;
+
+import it.polimi.ramses.analyse.domain.ChangePointDetector;
+import it.polimi.ramses.knowledge.domain.adaptation.options.AddInstanceOption;
+import it.polimi.ramses.replay.ReplayApplication;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.Banner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Replays the same recording once for each type of ChangePointDetector, run instead of the replay when
+ * REPLAY_COMPARE_CHANGE_POINT_DETECTORS is true, and logs the adaptation options chosen with each type.
+ * Each replay runs in a new application context, so that it starts from the recorded services map and with no state
+ * of the Analyse (detectors, forecasts, online analysis) left by the previous replay. Comparing the AddInstanceOptions
+ * chosen with each detector to the ones chosen with NONE shows how many scale-outs each detector avoids.
+ */
+@Slf4j
+@org.springframework.stereotype.Service
+public class ReplayDetectorComparison {
+
+    public void compare(String[] args) {
+        Map<ChangePointDetector.Type, List<ReplayIteration>> replays = new EnumMap<>(ChangePointDetector.Type.class);
+        for (ChangePointDetector.Type type : ChangePointDetector.Type.values()) {
+            log.info("Replaying with the {} change point detector", type);
+            replays.put(type, replay(type, args));
+        }
+        logSummary(replays);
+    }
+
+    // The command line arguments take precedence over the properties files and the environment
+    private List<ReplayIteration> replay(ChangePointDetector.Type type, String[] args) {
+        List<String> replayArgs = new ArrayList<>(List.of(args));
+        replayArgs.add("--CHANGE_POINT_DETECTOR=" + type);
+        replayArgs.add("--REPLAY_COMPARE_CHANGE_POINT_DETECTORS=false");
+        replayArgs.add("--REPLAY_BENCHMARK=false");
+        replayArgs.add("--REPLAY_OUTPUT_FILE=");
+        SpringApplication application = new SpringApplication(ReplayApplication.class);
+        application.setWebApplicationType(WebApplicationType.NONE);
+        application.setBannerMode(Banner.Mode.OFF);
+        try (ConfigurableApplicationContext context = application.run(replayArgs.toArray(String[]::new))) {
+            return context.getBean(ReplayService.class).getReplayedIterations();
+        }
+    }
+
+    private static void logSummary(Map<ChangePointDetector.Type, List<ReplayIteration>> replays) {
+        long baselineAddInstances = countChosen(replays.get(ChangePointDetector.Type.NONE)).getOrDefault(AddInstanceOption.class.getSimpleName(), 0L);
+        StringBuilder sb = new StringBuilder("Adaptation options chosen with each change point detector");
+        replays.forEach((type, iterations) -> {
+            Map<String, Long> chosenOptionsCount = countChosen(iterations);
+            long addInstances = chosenOptionsCount.getOrDefault(AddInstanceOption.class.getSimpleName(), 0L);
+            sb.append(String.format("%n%s: %d AddInstanceOptions (%+d vs NONE), all options %s, failed iterations %d", type, addInstances,
+                    addInstances - baselineAddInstances, chosenOptionsCount, iterations.stream().filter(iteration -> iteration.getError() != null).count()));
+        });
+        log.info("\n{}", sb);
+    }
+
+    private static Map<String, Long> countChosen(List<ReplayIteration> iterations) {
+        return iterations.stream().flatMap(iteration -> iteration.getChosenAdaptationOptions().values().stream())
+                .flatMap(List::stream).collect(Collectors.groupingBy(option -> option.getClass().getSimpleName(), TreeMap::new, Collectors.counting()));
+    }
+}
@@ -0,0 +1,49 @@
+package it.polimi.ramses.replay.domain;
+
+import it.polimi.ramses.knowledge.domain.adaptation.options.*;
+import it.polimi.ramses.plan.externalInterfaces.ExecuteClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Applies the chosen adaptation options to the model of the replay only, as the Execute does with the Knowledge.
+ * The instances added by the options are not created: the replay follows the instances of the recorded run.
+ */
+@Slf4j
+@Component
+public class ReplayExecuteClient implements ExecuteClient {
+    @Autowired
+    private ReplayKnowledge replayKnowledge;
+
+    @Override
+    public String start() {
+        replayKnowledge.getChosenAdaptationOptions().values().forEach(options -> options.forEach(this::apply));
+        return "OK";
+    }
+
+    private void apply(AdaptationOption option) {
+        String serviceId = option.getServiceId();
+        if (option instanceof AddInstanceOption addInstanceOption) {
+            shutdownInstances(serviceId, addInstanceOption.getInstancesToShutdownIds());
+        } else if (option instanceof ShutdownInstanceOption shutdownInstanceOption) {
+            replayKnowledge.markInstanceAsShutdown(serviceId, shutdownInstanceOption.getInstanceToShutdownId());
+            if (shutdownInstanceOption.getNewWeights() != null)
+                replayKnowledge.setLoadBalancerWeights(serviceId, shutdownInstanceOption.getNewWeights());
+        } else if (option instanceof ChangeLoadBalancerWeightsOption changeLoadBalancerWeightsOption) {
+            shutdownInstances(serviceId, changeLoadBalancerWeightsOption.getInstancesToShutdownIds());
+            replayKnowledge.setLoadBalancerWeights(serviceId, changeLoadBalancerWeightsOption.getNewWeights());
+        } else if (option instanceof ChangeImplementationOption changeImplementationOption) {
+            replayKnowledge.changeServiceImplementation(serviceId, changeImplementationOption.getNewImplementationId());
+        } else {
+            log.error("Unknown adaptation option type: " + option.getClass());
+        }
+    }
+
+    private void shutdownInstances(String serviceId, List<String> instancesToShutdownIds) {
+        if (instancesToShutdownIds != null)
+            instancesToShutdownIds.forEach(instanceId -> replayKnowledge.markInstanceAsShutdown(serviceId, instanceId));
+    }
+}
@@ -0,0 +1,31 @@
+package it.polimi.ramses.replay.domain;
+
+import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The decisions and the durations of the phases of a loop iteration of the replay.
+ */
+@Data
+@NoArgsConstructor
+public class ReplayIteration {
+    private int iteration;
+    // Timestamp of the first snapshot of the iteration, in the recorded run
+    private Date recordedTimestamp;
+    private int snapshotsCount;
+
+    // Durations, in ms
+    private double knowledgeMillis;
+    private double onlineAnalysisMillis;
+    private double analyseMillis;
+    private double planMillis;
+
+    private Map<String, List<AdaptationOption>> proposedAdaptationOptions;
+    private Map<String, List<AdaptationOption>> chosenAdaptationOptions;
+    private String error;
+}
@@ -0,0 +1,335 @@
+package it.polimi.ramses.replay.domain;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polimi.ramses.knowledge.domain.Modules;
+import it.polimi.ramses.knowledge.domain.adaptation.options.AdaptationOption;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.QoSSpecification;
+import it.polimi.ramses.knowledge.domain.adaptation.specifications.Vulnerability;
+import it.polimi.ramses.knowledge.domain.adaptation.values.QoSCollection;
+import it.polimi.ramses.knowledge.domain.adaptation.values.QoSHistory;
+import it.polimi.ramses.knowledge.domain.architecture.*;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.knowledge.rest.api.UpdateServiceQosCollectionRequest;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * In-memory Knowledge used by the Analyse and the Plan during a replay. It applies the recorded snapshots to the model
+ * as the Knowledge does with the buffer of the Monitor, and it serves the metrics windows and the QoS updates without
+ * persisting anything. The services are returned as deep copies, as they would be received from the Knowledge.
+ * The clock of the replay is the timestamp of the latest snapshot applied, so the metrics windows of the instances
+ * are the same as in the recorded run, however fast the replay is.
+ */
+@Slf4j
+@Component
+public class ReplayKnowledge implements it.polimi.ramses.analyse.externalInterfaces.KnowledgeClient, it.polimi.ramses.plan.externalInterfaces.KnowledgeClient {
+    // Snapshots kept for each instance, enough for any metrics window
+    private static final int METRICS_KEPT_PER_INSTANCE = 100;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // Simulated round trip of the REST calls made by the Analyse for each instance and service. It is spent outside the
+    // lock of the model, as the concurrent requests to the Knowledge would
+    private final long latencyMillis;
+
+    private final Map<String, Service> servicesMap = new HashMap<>();
+    private DependencyGraph dependencyGraph = new DependencyGraph();
+    // <instanceId, snapshots of the current run of the instance, from the newest>
+    private final Map<String, Deque<InstanceMetricsSnapshot>> instancesMetrics = new HashMap<>();
+    // <instanceId, replay date of the latest QoS value of the instance>. Only the snapshots after it are new metrics
+    private final Map<String, Date> instancesLatestValueDates = new HashMap<>();
+    private Set<String> previouslyActiveInstancesIds = new HashSet<>();
+    @Getter
+    private Date replayDate;
+
+    @Getter
+    private Map<String, List<AdaptationOption>> proposedAdaptationOptions = Map.of();
+    @Getter
+    private Map<String, List<AdaptationOption>> chosenAdaptationOptions = Map.of();
+    @Getter
+    private Modules failedModule = null;
+
+    public ReplayKnowledge(@Value("${REPLAY_KNOWLEDGE_LATENCY_MILLIS}") long latencyMillis) {
+        if (latencyMillis < 0)
+            throw new IllegalArgumentException("Replay knowledge latency must not be negative.");
+        this.latencyMillis = latencyMillis;
+    }
+
+    public synchronized void loadServices(Map<String, Service> services) {
+        servicesMap.clear();
+        servicesMap.putAll(services);
+        dependencyGraph = DependencyGraph.of(servicesMap.values());
+    }
+
+    // Same as the Knowledge, for the snapshots of a single iteration of the Monitor
+    public synchronized void addMetrics(List<InstanceMetricsSnapshot> metricsList) {
+        Set<String> shutdownInstancesStillMonitoredIds = new HashSet<>();
+        Set<String> currentlyActiveInstancesIds = new HashSet<>();
+        for (InstanceMetricsSnapshot metricsSnapshot : metricsList) {
+            if (replayDate == null || metricsSnapshot.getTimestamp().after(replayDate))
+                replayDate = metricsSnapshot.getTimestamp();
+            Service service = servicesMap.get(metricsSnapshot.getServiceId());
+            if (service == null || !Objects.equals(metricsSnapshot.getServiceImplementationId(), service.getCurrentImplementationId()))
+                continue;
+            Instance instance = service.getInstance(metricsSnapshot.getInstanceId());
+            // The instances added by the recorded run are created when they are first monitored
+            if (instance == null)
+                instance = addInstance(service, metricsSnapshot.getInstanceId());
+            if (instance.getCurrentStatus() != InstanceStatus.SHUTDOWN) {
+                addSnapshot(metricsSnapshot);
+                instance.setLatestInstanceMetricsSnapshot(metricsSnapshot);
+                instance.setCurrentStatus(metricsSnapshot.getStatus());
+                if (metricsSnapshot.isActive() || metricsSnapshot.isUnreachable())
+                    currentlyActiveInstancesIds.add(instance.getInstanceId());
+            } else {
+                shutdownInstancesStillMonitoredIds.add(instance.getInstanceId());
+            }
+        }
+        // Failure detection of instances
+        for (Service service : servicesMap.values()) {
+            for (Instance instance : service.getInstances()) {
+                if (!previouslyActiveInstancesIds.contains(instance.getInstanceId()) || currentlyActiveInstancesIds.contains(instance.getInstanceId())
+                        || instance.getCurrentStatus() == InstanceStatus.SHUTDOWN)
+                    continue;
+                instance.setCurrentStatus(InstanceStatus.FAILED);
+                InstanceMetricsSnapshot metrics = new InstanceMetricsSnapshot(instance.getServiceId(), instance.getInstanceId());
+                metrics.setStatus(InstanceStatus.FAILED);
+                metrics.setTimestamp(replayDate);
+                addSnapshot(metrics);
+                instance.setLatestInstanceMetricsSnapshot(metrics);
+            }
+        }
+        previouslyActiveInstancesIds = currentlyActiveInstancesIds;
+        // Remove the instances that have been shutdown and are not monitored anymore
+        for (Service service : servicesMap.values()) {
+            for (Instance instance : service.getShutdownInstances()) {
+                if (shutdownInstancesStillMonitoredIds.contains(instance.getInstanceId()))
+                    continue;
+                log.debug("{}: Removing shutdown instance {}", service.getServiceId(), instance.getInstanceId());
+                service.removeInstance(instance);
+                instancesMetrics.remove(instance.getInstanceId());
+                instancesLatestValueDates.remove(instance.getInstanceId());
+            }
+        }
+    }
+
+    private Instance addInstance(Service service, String instanceId) {
+        Instance instance = service.createInstance(instanceId.split("@")[1]);
+        // The weights chosen by the recorded run are not known: the weight is split equally among the instances
+        if (service.getConfiguration().getLoadBalancerType() == ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM) {
+            Map<String, Double> newWeights = new HashMap<>();
+            service.getInstances().forEach(serviceInstance -> newWeights.put(serviceInstance.getInstanceId(), 1.0 / service.getInstances().size()));
+            service.setLoadBalancerWeights(newWeights);
+        }
+        return instance;
+    }
+
+    private void addSnapshot(InstanceMetricsSnapshot metricsSnapshot) {
+        Deque<InstanceMetricsSnapshot> snapshots = instancesMetrics.computeIfAbsent(metricsSnapshot.getInstanceId(), id -> new ArrayDeque<>());
+        snapshots.addFirst(metricsSnapshot);
+        if (snapshots.size() > METRICS_KEPT_PER_INSTANCE)
+            snapshots.removeLast();
+    }
+
+    // Model changes of the Execute. Nothing is applied to the recorded system
+
+    public synchronized void markInstanceAsShutdown(String serviceId, String instanceId) {
+        Instance instance = servicesMap.get(serviceId).getInstance(instanceId);
+        if (instance == null)
+            return;
+        InstanceMetricsSnapshot metrics = new InstanceMetricsSnapshot(serviceId, instanceId);
+        metrics.setStatus(InstanceStatus.SHUTDOWN);
+        metrics.setTimestamp(replayDate);
+        instancesMetrics.remove(instanceId);
+        instance.setCurrentStatus(InstanceStatus.SHUTDOWN);
+        instance.setLatestInstanceMetricsSnapshot(metrics);
+    }
+
+    public synchronized void setLoadBalancerWeights(String serviceId, Map<String, Double> weights) {
+        servicesMap.get(serviceId).setLoadBalancerWeights(weights);
+    }
+
+    // The instances of the new implementation are created when they are first monitored
+    public synchronized void changeServiceImplementation(String serviceId, String newImplementationId) {
+        Service service = servicesMap.get(serviceId);
+        service.getCurrentImplementation().setPenalty(0);
+        for (Instance instance : service.getInstances()) {
+            service.removeInstance(instance);
+            instancesMetrics.remove(instance.getInstanceId());
+            instancesLatestValueDates.remove(instance.getInstanceId());
+        }
+        service.setCurrentImplementationId(newImplementationId);
+        if (service.getConfiguration().getLoadBalancerType() == ServiceConfiguration.LoadBalancerType.WEIGHTED_RANDOM)
+            service.setLoadBalancerWeights(new HashMap<>());
+    }
+
+    // Knowledge API used by the Analyse and by the Plan
+
+    @Override
+    public synchronized ResponseEntity<String> notifyModuleStart(Modules module) {
+        if (module == Modules.MONITOR) {
+            // A new loop is started: reset the previous chosen options and the current proposed adaptation options
+            for (String serviceId : chosenAdaptationOptions.keySet())
+                servicesMap.get(serviceId).setLatestAdaptationDate(replayDate);
+            proposedAdaptationOptions = Map.of();
+            chosenAdaptationOptions = Map.of();
+        }
+        return ResponseEntity.ok().body("Module start correctly notified");
+    }
+
+    @Override
+    public synchronized Map<String, Service> getServicesMap() {
+        try {
+            return objectMapper.readValue(objectMapper.writeValueAsBytes(servicesMap), new TypeReference<>() {});
+        } catch (IOException e) {
+            throw new RuntimeException("Error while copying the services map", e);
+        }
+    }
+
+    @Override
+    public DependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
+
+    @Override
+    public List<InstanceMetricsSnapshot> getLatestNMetricsOfCurrentInstance(String serviceId, String instanceId, int n) {
+        simulateLatency();
+        return latestNMetrics(instanceId, n);
+    }
+
+    private synchronized List<InstanceMetricsSnapshot> latestNMetrics(String instanceId, int n) {
+        Deque<InstanceMetricsSnapshot> snapshots = instancesMetrics.getOrDefault(instanceId, new ArrayDeque<>());
+        Date after = instancesLatestValueDates.get(instanceId);
+        List<InstanceMetricsSnapshot> result = new ArrayList<>(Math.min(n, snapshots.size()));
+        for (InstanceMetricsSnapshot snapshot : snapshots) {
+            if (snapshot.isShutdown() || (after != null && !snapshot.getTimestamp().after(after)) || result.size() == n)
+                break;
+            result.add(snapshot);
+        }
+        return result;
+    }
+
+    @Override
+    public List<InstanceMetricsSnapshot> getMetricsWindowOfCurrentInstance(String serviceId, String instanceId, long seconds) {
+        simulateLatency();
+        return metricsWindow(instanceId, seconds);
+    }
+
+    private synchronized List<InstanceMetricsSnapshot> metricsWindow(String instanceId, long seconds) {
+        Deque<InstanceMetricsSnapshot> snapshots = instancesMetrics.getOrDefault(instanceId, new ArrayDeque<>());
+        Date after = instancesLatestValueDates.get(instanceId);
+        List<InstanceMetricsSnapshot> result = new ArrayList<>();
+        long start = Long.MIN_VALUE;
+        for (InstanceMetricsSnapshot snapshot : snapshots) {
+            if (snapshot.isShutdown() || (after != null && !snapshot.getTimestamp().after(after)))
+                break;
+            if (result.isEmpty())
+                start = snapshot.getTimestamp().getTime() - seconds * 1000;
+            result.add(snapshot);
+            // The anchor of the window is reached
+            if (snapshot.getTimestamp().getTime() <= start)
+                return result;
+        }
+        return List.of();
+    }
+
+    @Override
+    public synchronized ResponseEntity<String> proposeAdaptationOptions(Map<String, List<AdaptationOption>> adaptationOptions) {
+        proposedAdaptationOptions = Collections.unmodifiableMap(new HashMap<>(adaptationOptions));
+        adaptationOptions.forEach((serviceId, options) -> {
+            if (!options.isEmpty())
+                servicesMap.get(serviceId).getCurrentImplementation().incrementPenalty();
+        });
+        return ResponseEntity.ok("Adaptation options proposed");
+    }
+
+    @Override
+    public synchronized ResponseEntity<String> chooseAdaptationOptions(Map<String, List<AdaptationOption>> adaptationOptions) {
+        chosenAdaptationOptions = Collections.unmodifiableMap(new HashMap<>(adaptationOptions));
+        chosenAdaptationOptions.values().forEach(options -> options.forEach(option -> option.setTimestamp(replayDate)));
+        return ResponseEntity.ok("Adaptation options chosen");
+    }
+
+    @Override
+    public synchronized String setFailedModule(Modules module) {
+        log.error("Module {} failed at {}", module, replayDate);
+        failedModule = module;
+        return "Failed module set";
+    }
+
+    public synchronized void resetFailedModule() {
+        failedModule = null;
+    }
+
+    @Override
+    public void updateServiceQosCollection(UpdateServiceQosCollectionRequest request) {
+        simulateLatency();
+        applyQosCollectionUpdate(request);
+    }
+
+    private synchronized void applyQosCollectionUpdate(UpdateServiceQosCollectionRequest request) {
+        Service service = servicesMap.get(request.getServiceId());
+        request.getNewInstancesCurrentValues().forEach((instanceId, newInstanceQoSCurrentValues) -> {
+            Instance instance = service.getInstance(instanceId);
+            newInstanceQoSCurrentValues.forEach((qosClass, qosValue) -> instance.getQoSCollection().setCurrentValueForQoS(qosClass, qosValue));
+            instancesLatestValueDates.put(instanceId, replayDate);
+        });
+        request.getNewInstancesValues().forEach((instanceId, newInstanceQoSValues) -> {
+            Instance instance = service.getInstance(instanceId);
+            newInstanceQoSValues.forEach((qosClass, qosValue) -> addNewQoSValue(instance.getQoSCollection(), qosClass, qosValue));
+            instancesLatestValueDates.put(instanceId, replayDate);
+        });
+        request.getNewServiceCurrentValues().forEach((qosClass, qosValue) ->
+                service.getCurrentImplementation().getQoSCollection().setCurrentValueForQoS(qosClass, qosValue));
+        request.getNewServiceValues().forEach((qosClass, qosValue) ->
+                addNewQoSValue(service.getCurrentImplementation().getQoSCollection(), qosClass, qosValue));
+    }
+
+    private void simulateLatency() {
+        if (latencyMillis == 0)
+            return;
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The sketches are only kept with the latest values, as in the Knowledge
+    private static void addNewQoSValue(QoSCollection qosCollection, Class<? extends QoSSpecification> qosClass, QoSHistory.Value qosValue) {
+        qosCollection.addNewQoSValue(qosClass, qosValue);
+        qosValue.setSketch(null);
+    }
+
+    @Override
+    public synchronized ResponseEntity<String> updateWindowSizes(String serviceId, WindowSizes windowSizes) {
+        windowSizes.validate();
+        servicesMap.get(serviceId).setWindowSizes(windowSizes);
+        return ResponseEntity.ok("Window sizes updated");
+    }
+
+    @Override
+    public ResponseEntity<String> invalidateQosHistory(String serviceId) {
+        return invalidateQosHistories(Set.of(serviceId));
+    }
+
+    @Override
+    public synchronized ResponseEntity<String> invalidateQosHistories(Set<String> serviceIds) {
+        for (String serviceId : serviceIds) {
+            Service service = servicesMap.get(serviceId);
+            List<Class<? extends QoSSpecification>> qosClasses = service.getQoSSpecifications().keySet().stream().filter(qosClass -> !qosClass.equals(Vulnerability.class)).toList();
+            service.getInstances().forEach(instance -> qosClasses.forEach(instance::invalidateQoSHistory));
+            qosClasses.forEach(service::invalidateQoSHistory);
+        }
+        return ResponseEntity.ok("QoS histories invalidated");
+    }
+}
@@ -0,0 +1,31 @@
+package it.polimi.ramses.replay.domain;
+
+import it.polimi.ramses.analyse.externalInterfaces.PlanClient;
+import it.polimi.ramses.plan.domain.PlanService;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Starts the Plan in-process, at the end of the Analyse, and measures its duration.
+ */
+@Component
+public class ReplayPlanClient implements PlanClient {
+    @Autowired
+    private PlanService planService;
+
+    // Duration of the latest Plan iteration (including the Execute), in ns
+    @Getter
+    private long latestPlanNanos;
+
+    @Override
+    public String start() {
+        long start = System.nanoTime();
+        try {
+            planService.startPlan();
+        } finally {
+            latestPlanNanos = System.nanoTime() - start;
+        }
+        return "OK";
+    }
+}
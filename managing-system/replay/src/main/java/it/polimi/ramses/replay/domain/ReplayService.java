@@ -0,0 +1,210 @@
+package it.polimi.ramses.replay.domain;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polimi.ramses.analyse.domain.AnalyseService;
+import it.polimi.ramses.knowledge.domain.Modules;
+import it.polimi.ramses.knowledge.domain.architecture.Service;
+import it.polimi.ramses.knowledge.domain.metrics.InstanceMetricsSnapshot;
+import it.polimi.ramses.plan.domain.PlanService;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Replays the snapshots recorded by the Knowledge through the Analyse and the Plan, one loop iteration for each
+ * iteration of the Monitor, as fast as possible. Each iteration is started as soon as the previous one ends.
+ * The inputs are the services map (GET /rest/servicesMap of the Knowledge, at the beginning of the recorded run) and
+ * the raw snapshots of the run (GET /rest/metrics/query of the Knowledge without a step), as NDJSON.
+ * The decisions and the durations of each iteration are written to the output file, as NDJSON.
+ */
+@Slf4j
+@org.springframework.stereotype.Service
+public class ReplayService {
+    @Autowired
+    private ReplayKnowledge replayKnowledge;
+
+    @Autowired
+    private ReplayPlanClient replayPlanClient;
+
+    @Autowired
+    private AnalyseService analyseService;
+
+    @Autowired
+    private PlanService planService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final String servicesFile;
+    private final String metricsFile;
+    private final String outputFile;
+    // Snapshots taken within this time from the first snapshot of an iteration of the Monitor belong to that iteration
+    private final long iterationGapMillis;
+    private final boolean onlineAnalysis;
+    private final boolean adaptationAuthorized;
+
+    // Iterations of the latest replay
+    @Getter
+    private List<ReplayIteration> replayedIterations = List.of();
+
+    public ReplayService(
+        @Value("${REPLAY_SERVICES_FILE}") String servicesFile,
+        @Value("${REPLAY_METRICS_FILE}") String metricsFile,
+        @Value("${REPLAY_OUTPUT_FILE}") String outputFile,
+        @Value("${REPLAY_ITERATION_GAP_MILLIS}") long iterationGapMillis,
+        @Value("${ONLINE_ANALYSIS}") boolean onlineAnalysis,
+        @Value("${REPLAY_ADAPTATION_AUTHORIZED}") boolean adaptationAuthorized
+    ) {
+        if (servicesFile.isBlank() || metricsFile.isBlank())
+            throw new IllegalArgumentException("The services file and the metrics file must be specified.");
+        if (iterationGapMillis < 1)
+            throw new IllegalArgumentException("Iteration gap must be greater than 0.");
+        this.servicesFile = servicesFile;
+        this.metricsFile = metricsFile;
+        this.outputFile = outputFile;
+        this.iterationGapMillis = iterationGapMillis;
+        this.onlineAnalysis = onlineAnalysis;
+        this.adaptationAuthorized = adaptationAuthorized;
+    }
+
+    public void replay() {
+        try {
+            Map<String, Service> servicesMap = objectMapper.readValue(new File(servicesFile), new TypeReference<>() {});
+            replayKnowledge.loadServices(servicesMap);
+            List<List<InstanceMetricsSnapshot>> monitorIterations = splitInMonitorIterations(readMetrics());
+            if (monitorIterations.isEmpty()) {
+                log.warn("No metrics to replay");
+                return;
+            }
+            planService.setAdaptationAuthorized(adaptationAuthorized);
+            // The snapshots are moved to the current time, keeping their distance, so that they are not older than the model
+            long recordedStart = monitorIterations.get(0).get(0).getTimestamp().getTime();
+            long recordedEnd = monitorIterations.get(monitorIterations.size() - 1).get(0).getTimestamp().getTime();
+            long offset = System.currentTimeMillis() - recordedStart;
+            log.info("Replaying {} iterations of {} services, recorded in {} s", monitorIterations.size(), servicesMap.size(), (recordedEnd - recordedStart) / 1000);
+
+            List<ReplayIteration> iterations = new ArrayList<>(monitorIterations.size());
+            long start = System.nanoTime();
+            try (PrintStream out = outputFile.isBlank() ? null : new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+                for (List<InstanceMetricsSnapshot> metricsList : monitorIterations) {
+                    ReplayIteration iteration = replayIteration(iterations.size(), metricsList, offset);
+                    iterations.add(iteration);
+                    if (out != null)
+                        out.println(objectMapper.writeValueAsString(iteration));
+                }
+            }
+            double replayMillis = (System.nanoTime() - start) / 1e6;
+            replayedIterations = iterations;
+            logSummary(iterations, replayMillis, recordedEnd - recordedStart);
+        } catch (IOException e) {
+            throw new RuntimeException("Error during the replay: " + e.getMessage(), e);
+        }
+    }
+
+    private ReplayIteration replayIteration(int index, List<InstanceMetricsSnapshot> metricsList, long offset) {
+        ReplayIteration iteration = new ReplayIteration();
+        iteration.setIteration(index);
+        iteration.setRecordedTimestamp(metricsList.get(0).getTimestamp());
+        iteration.setSnapshotsCount(metricsList.size());
+        List<InstanceMetricsSnapshot> shiftedMetrics = metricsList.stream().map(snapshot -> shift(snapshot, offset)).toList();
+
+        long start = System.nanoTime();
+        replayKnowledge.notifyModuleStart(Modules.MONITOR);
+        replayKnowledge.addMetrics(shiftedMetrics);
+        iteration.setKnowledgeMillis((System.nanoTime() - start) / 1e6);
+
+        if (onlineAnalysis) {
+            start = System.nanoTime();
+            analyseService.analyseOnline(shiftedMetrics);
+            iteration.setOnlineAnalysisMillis((System.nanoTime() - start) / 1e6);
+        }
+
+        start = System.nanoTime();
+        long planNanos = 0;
+        try {
+            analyseService.startAnalysis();
+            planNanos = replayPlanClient.getLatestPlanNanos();
+        } catch (RuntimeException e) {
+            log.error("Iteration {} failed: {}", index, e.getMessage());
+            iteration.setError(replayKnowledge.getFailedModule() + ": " + e.getMessage());
+            replayKnowledge.resetFailedModule();
+        }
+        // The Plan is started by the Analyse
+        iteration.setAnalyseMillis((System.nanoTime() - start - planNanos) / 1e6);
+        iteration.setPlanMillis(planNanos / 1e6);
+        iteration.setProposedAdaptationOptions(replayKnowledge.getProposedAdaptationOptions());
+        iteration.setChosenAdaptationOptions(replayKnowledge.getChosenAdaptationOptions());
+        return iteration;
+    }
+
+    private List<InstanceMetricsSnapshot> readMetrics() throws IOException {
+        List<InstanceMetricsSnapshot> metrics = new ArrayList<>();
+        try (MappingIterator<InstanceMetricsSnapshot> iterator = objectMapper.readerFor(InstanceMetricsSnapshot.class).readValues(new File(metricsFile))) {
+            iterator.forEachRemaining(metrics::add);
+        }
+        metrics.sort(Comparator.comparing(InstanceMetricsSnapshot::getTimestamp));
+        return metrics;
+    }
+
+    // An iteration of the Monitor takes a snapshot of each instance, within a short time
+    private List<List<InstanceMetricsSnapshot>> splitInMonitorIterations(List<InstanceMetricsSnapshot> metrics) {
+        List<List<InstanceMetricsSnapshot>> monitorIterations = new ArrayList<>();
+        List<InstanceMetricsSnapshot> current = new ArrayList<>();
+        Set<String> currentInstancesIds = new HashSet<>();
+        for (InstanceMetricsSnapshot snapshot : metrics) {
+            if (!current.isEmpty() && (snapshot.getTimestamp().getTime() - current.get(0).getTimestamp().getTime() >= iterationGapMillis
+                    || currentInstancesIds.contains(snapshot.getInstanceId()))) {
+                monitorIterations.add(current);
+                current = new ArrayList<>();
+                currentInstancesIds.clear();
+            }
+            current.add(snapshot);
+            currentInstancesIds.add(snapshot.getInstanceId());
+        }
+        if (!current.isEmpty())
+            monitorIterations.add(current);
+        return monitorIterations;
+    }
+
+    private static InstanceMetricsSnapshot shift(InstanceMetricsSnapshot snapshot, long offset) {
+        snapshot.setTimestamp(new Date(snapshot.getTimestamp().getTime() + offset));
+        return snapshot;
+    }
+
+    private void logSummary(List<ReplayIteration> iterations, double replayMillis, long recordedMillis) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Replayed %d iterations in %.0f ms (%.1fx the recorded run)%n", iterations.size(), replayMillis, recordedMillis / replayMillis));
+        sb.append(phaseSummary("Knowledge", iterations, ReplayIteration::getKnowledgeMillis));
+        if (onlineAnalysis)
+            sb.append(phaseSummary("Online analysis", iterations, ReplayIteration::getOnlineAnalysisMillis));
+        sb.append(phaseSummary("Analyse", iterations, ReplayIteration::getAnalyseMillis));
+        sb.append(phaseSummary("Plan", iterations, ReplayIteration::getPlanMillis));
+        Map<String, Long> chosenOptionsCount = iterations.stream().flatMap(iteration -> iteration.getChosenAdaptationOptions().values().stream())
+                .flatMap(List::stream).collect(Collectors.groupingBy(option -> option.getClass().getSimpleName(), TreeMap::new, Collectors.counting()));
+        sb.append("Chosen adaptation options: ").append(chosenOptionsCount).append("\n");
+        sb.append("Failed iterations: ").append(iterations.stream().filter(iteration -> iteration.getError() != null).count());
+        log.info("\n{}", sb);
+    }
+
+    private static String phaseSummary(String phase, List<ReplayIteration> iterations, ToDoubleFunction<ReplayIteration> duration) {
+        double[] durations = iterations.stream().mapToDouble(duration).sorted().toArray();
+        double mean = Arrays.stream(durations).average().orElse(0);
+        return String.format("%s: mean %.2f ms, p50 %.2f ms, p95 %.2f ms, max %.2f ms%n", phase, mean,
+                percentile(durations, 0.5), percentile(durations, 0.95), durations.length == 0 ? 0 : durations[durations.length - 1]);
+    }
+
+    // Nearest rank percentile of the sorted values
+    private static double percentile(double[] sortedValues, double quantile) {
+        if (sortedValues.length == 0)
+            return 0;
+        return sortedValues[Math.max(0, (int) Math.ceil(quantile * sortedValues.length) - 1)];
+    }
+}
@@ -8,6 +8,7 @@ import lombok.Setter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 
 @Getter
@@ -32,6 +33,8 @@ public class HttpEndpointMetrics {
         private long count = 0;
         private double totalDuration = 0;
         private double maxDuration = 0;
+        // <upper bound in ms, cumulative count> of the duration histogram
+        private Map<Double, Long> durationBuckets = new TreeMap<>();
 
         @JsonIgnore
         public double getAverageDuration() {
@@ -57,6 +60,11 @@ public class HttpEndpointMetrics {
                 this.maxDuration = maxDuration;
         }
 
+        // The series with the same outcome (e.g. status 200 and 201) have the same bounds, so their cumulative counts add up
+        public void updateDurationBuckets(Map<Double, Long> durationBuckets) {
+            durationBuckets.forEach((upperBound, cumulativeCount) -> this.durationBuckets.merge(upperBound, cumulativeCount, Long::sum));
+        }
+
 
 
     }
@@ -195,6 +203,12 @@ public class HttpEndpointMetrics {
         outcomeMetrics.put(outcome, outcomeMetric);
     }
 
+    public void addOrSetOutcomeMetricsDurationBuckets(String outcome, Map<Double, Long> durationBuckets) {
+        OutcomeMetrics outcomeMetric = outcomeMetrics.getOrDefault(outcome, new OutcomeMetrics(outcome));
+        outcomeMetric.updateDurationBuckets(durationBuckets);
+        outcomeMetrics.put(outcome, outcomeMetric);
+    }
+
 
 
 
@@ -85,6 +85,11 @@ public class PrometheusParser {
             return;
         HttpEndpointMetrics metrics = httpMetricsMap.getOrDefault(labels.get("method") + "@" + labels.get("uri"), new HttpEndpointMetrics(labels.get("uri"), labels.get("method")));
         metrics.addOrSetOutcomeMetricsDetails(labels.get("outcome"), Integer.parseInt(labels.get("status")), (int) metric.getSampleCount(), metric.getSampleSum()*1000);
+        if (metric.getBuckets() != null) {
+            Map<Double, Long> durationBuckets = new HashMap<>();
+            metric.getBuckets().forEach(bucket -> durationBuckets.put(bucket.getUpperBound()*1000, bucket.getCumulativeCount()));
+            metrics.addOrSetOutcomeMetricsDurationBuckets(labels.get("outcome"), durationBuckets);
+        }
         httpMetricsMap.putIfAbsent(labels.get("method") + "@" + labels.get("uri"), metrics);
     }
 